@@ -0,0 +1,120 @@
+package com.getirkit;
+
+import android.util.Log;
+
+import com.getirkit.irkit.net.IRDeviceAPIService;
+import com.getirkit.irkit.net.IRJsonConverter;
+import com.getirkit.irkit.net.IRJsonWriter;
+import com.google.gson.Gson;
+
+import junit.framework.TestCase;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import retrofit.converter.Converter;
+import retrofit.converter.GsonConverter;
+import retrofit.mime.TypedByteArray;
+import retrofit.mime.TypedOutput;
+
+/**
+ * 1,000パルスの赤外線信号でJSONのエンコードとデコードの時間を比較します。
+ * Compares JSON encoding and decoding times on an IR signal of 1,000 pulses.
+ */
+public class IRJsonBenchmark extends TestCase {
+    public static final String TAG = IRJsonBenchmark.class.getSimpleName();
+
+    private static final int PULSES = 1000;
+    private static final int WARMUP_ITERATIONS = 200;
+    private static final int ITERATIONS = 2000;
+
+    private int[] data;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        data = new int[PULSES];
+        for (int i = 0; i < data.length; i++) {
+            // Typical NEC-like pulses: on, short off, long off
+            data[i] = (i % 2 == 0) ? 1150 : ((i % 3 == 0) ? 3341 : 1150);
+        }
+    }
+
+    public void testEncode() throws Exception {
+        String expected = encodeWithJSONObject();
+        assertEquals(expected, IRJsonWriter.toMessageJson("raw", 38, data));
+
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            encodeWithJSONObject();
+            IRJsonWriter.toMessageJson("raw", 38, data);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            encodeWithJSONObject();
+        }
+        long jsonObjectNs = (System.nanoTime() - start) / ITERATIONS;
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            IRJsonWriter.toMessageJson("raw", 38, data);
+        }
+        long writerNs = (System.nanoTime() - start) / ITERATIONS;
+        Log.i(TAG, "encode: JSONObject=" + jsonObjectNs + "ns IRJsonWriter=" + writerNs + "ns");
+    }
+
+    public void testDecode() throws Exception {
+        byte[] body = IRJsonWriter.toMessageBytes("raw", 38, data);
+        Converter gsonConverter = new GsonConverter(new Gson());
+        Converter converter = new IRJsonConverter();
+        IRDeviceAPIService.GetMessagesResponse response = (IRDeviceAPIService.GetMessagesResponse)
+                converter.fromBody(new TypedByteArray("application/json", body), IRDeviceAPIService.GetMessagesResponse.class);
+        assertEquals("raw", response.format);
+        assertEquals(38.0, response.freq);
+        assertTrue(Arrays.equals(data, response.data));
+
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            gsonConverter.fromBody(new TypedByteArray("application/json", body), IRDeviceAPIService.GetMessagesResponse.class);
+            converter.fromBody(new TypedByteArray("application/json", body), IRDeviceAPIService.GetMessagesResponse.class);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            gsonConverter.fromBody(new TypedByteArray("application/json", body), IRDeviceAPIService.GetMessagesResponse.class);
+        }
+        long gsonNs = (System.nanoTime() - start) / ITERATIONS;
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            converter.fromBody(new TypedByteArray("application/json", body), IRDeviceAPIService.GetMessagesResponse.class);
+        }
+        long converterNs = (System.nanoTime() - start) / ITERATIONS;
+        Log.i(TAG, "decode: GsonConverter=" + gsonNs + "ns IRJsonConverter=" + converterNs + "ns");
+    }
+
+    public void testRequestBody() throws Exception {
+        IRDeviceAPIService.PostMessagesRequest req = new IRDeviceAPIService.PostMessagesRequest();
+        req.format = "raw";
+        req.freq = 38;
+        req.data = data;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TypedOutput body = new IRJsonConverter().toBody(req);
+        body.writeTo(out);
+        assertEquals(out.size(), body.length());
+    }
+
+    /**
+     * 以前のIRSignal.toJson()の実装です。
+     * Former implementation of IRSignal.toJson().
+     */
+    private String encodeWithJSONObject() throws Exception {
+        JSONObject jsonObj = new JSONObject();
+        jsonObj.put("format", "raw");
+        jsonObj.put("freq", 38.0f);
+        JSONArray dataArray = new JSONArray();
+        for (int value : data) {
+            dataArray.put(value);
+        }
+        jsonObj.put("data", dataArray);
+        return jsonObj.toString();
+    }
+}
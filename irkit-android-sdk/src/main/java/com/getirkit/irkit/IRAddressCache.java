@@ -0,0 +1,434 @@
+package com.getirkit.irkit;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.getirkit.irkit.net.IRDeviceAPIService;
+import com.getirkit.irkit.net.IRHTTPClient;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import retrofit.Callback;
+import retrofit.RetrofitError;
+import retrofit.client.Response;
+
+/**
+ * <p class="ja">
+ * mDNSで解決したIRKitのローカルアドレス（ホスト、ポート、解決した時刻、Wi-FiのBSSID）を
+ * 保存するキャッシュです。IRPeripheral#hostとportは保存されないため、起動直後はmDNSで
+ * 再び解決されるまでローカルネットワークで送信できません。IRPeripherals#load()は同じWi-Fiで
+ * 解決されたアドレスをこのキャッシュからすぐに復元し、同じdeviceidのIRKitが応答するかを
+ * バックグラウンドで確認します。別のIRKitが応答したか、応答しなかったアドレスは破棄され、
+ * mDNSで解決されたアドレスは常にキャッシュより優先されます。
+ * </p>
+ *
+ * <p class="en">
+ * Cache which persists local addresses of IRKits resolved over mDNS (host, port, time of
+ * resolution and Wi-Fi BSSID). IRPeripheral#host and port are not persisted, so right after
+ * launch no IRKit can be reached on the local network until mDNS resolves it again.
+ * IRPeripherals#load() restores addresses resolved on the same Wi-Fi from this cache right away,
+ * and checks in the background that the IRKit with the same deviceid answers at each of them.
+ * An address at which another IRKit or nothing answers is discarded, and an address resolved
+ * over mDNS always takes precedence over the cache.
+ * </p>
+ *
+ * @since 1.4.0
+ */
+public class IRAddressCache {
+    public static final String TAG = IRAddressCache.class.getSimpleName();
+
+    /**
+     * データを保存するファイル名です。ネットワークごとに異なるためキャッシュディレクトリに置きます。
+     * Name of the file which holds the data. It is network-specific, so it lives in the cache directory.
+     */
+    public static final String FILENAME = "addresses.dat";
+
+    /**
+     * 復元するアドレスの既定の有効期間（ミリ秒）。
+     * Default maximum age in milliseconds of addresses to be restored.
+     */
+    public static final long DEFAULT_MAX_AGE_MS = 7 * 24 * 60 * 60 * 1000L;
+
+    /**
+     * アドレスが変わっていない場合に解決時刻だけを保存し直す間隔（ミリ秒）。
+     * Interval in milliseconds to re-save only the time of resolution when the address is unchanged.
+     */
+    private static final long REFRESH_INTERVAL_MS = 60 * 60 * 1000L;
+
+    private static class Entry {
+        private String hostname;
+        private String hostAddress;
+        private int port;
+        private long resolvedAt;
+        private String bssid;
+
+        private boolean hasSameAddress(Entry other) {
+            return hostAddress.equals(other.hostAddress) && port == other.port &&
+                    (bssid != null ? bssid.equals(other.bssid) : other.bssid == null);
+        }
+
+        private byte[] toRecord() throws IOException {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(baos);
+            IRRecordFile.writeString(out, hostname);
+            IRRecordFile.writeString(out, hostAddress);
+            IRRecordFile.writeVarInt(out, port);
+            out.writeLong(resolvedAt);
+            IRRecordFile.writeString(out, bssid);
+            out.close();
+            return baos.toByteArray();
+        }
+
+        private static Entry fromRecord(byte[] record) throws IOException {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+            Entry entry = new Entry();
+            entry.hostname = IRRecordFile.readString(in);
+            entry.hostAddress = IRRecordFile.readString(in);
+            entry.port = IRRecordFile.readVarInt(in);
+            entry.resolvedAt = in.readLong();
+            entry.bssid = IRRecordFile.readString(in);
+            return entry;
+        }
+    }
+
+    /**
+     * 小文字のhostnameをキーとするエントリ。
+     * Entries keyed by lowercase hostname.
+     */
+    private final HashMap<String, Entry> entries = new HashMap<>();
+    private boolean isLoaded;
+    private long maxAgeMs = DEFAULT_MAX_AGE_MS;
+
+    IRAddressCache() {
+    }
+
+    /**
+     * 復元するアドレスの有効期間をセットします。既定は7日です。
+     * Set the maximum age of addresses to be restored. Default is 7 days.
+     *
+     * @param maxAgeMs 有効期間（ミリ秒）。 Maximum age in milliseconds.
+     */
+    public synchronized void setMaxAgeMs(long maxAgeMs) {
+        this.maxAgeMs = maxAgeMs;
+    }
+
+    /**
+     * 復元するアドレスの有効期間を返します。
+     * Return the maximum age of addresses to be restored.
+     *
+     * @return 有効期間（ミリ秒）。 Maximum age in milliseconds.
+     */
+    public synchronized long getMaxAgeMs() {
+        return maxAgeMs;
+    }
+
+    /**
+     * 保存されているすべてのアドレスを削除します。
+     * Delete all cached addresses.
+     */
+    public void clear() {
+        synchronized (this) {
+            ensureLoaded();
+            entries.clear();
+        }
+        save();
+    }
+
+    /**
+     * peripheralの現在のローカルアドレスを現在のWi-Fiのものとして記録します。
+     * Record the current local address of peripheral as one on the current Wi-Fi.
+     *
+     * @param peripheral アドレスが解決されたIRPeripheral。 IRPeripheral whose address has been resolved.
+     */
+    void put(IRPeripheral peripheral) {
+        InetAddress host = peripheral.getHost();
+        if (host == null || peripheral.getHostname() == null) {
+            return;
+        }
+        Entry entry = new Entry();
+        entry.hostname = peripheral.getHostname();
+        entry.hostAddress = host.getHostAddress();
+        entry.port = peripheral.getPort();
+        entry.resolvedAt = System.currentTimeMillis();
+        entry.bssid = IRKit.sharedInstance().getCurrentBSSID();
+        synchronized (this) {
+            ensureLoaded();
+            Entry oldEntry = entries.put(entry.hostname.toLowerCase(), entry);
+            if (oldEntry != null && oldEntry.hasSameAddress(entry) &&
+                    entry.resolvedAt - oldEntry.resolvedAt < REFRESH_INTERVAL_MS) {
+                // Nothing worth writing
+                entry.resolvedAt = oldEntry.resolvedAt;
+                return;
+            }
+        }
+        save();
+    }
+
+    /**
+     * peripheralのアドレスを削除します。
+     * Delete the address of peripheral.
+     *
+     * @param peripheral アドレスを失ったIRPeripheral。 IRPeripheral which has lost its address.
+     */
+    void remove(IRPeripheral peripheral) {
+        String hostname = peripheral.getHostname();
+        if (hostname == null) {
+            return;
+        }
+        synchronized (this) {
+            ensureLoaded();
+            if (entries.remove(hostname.toLowerCase()) == null) {
+                return;
+            }
+        }
+        save();
+    }
+
+    /**
+     * <p class="ja">
+     * 現在のWi-Fiで有効期間内に解決されたアドレスを、まだアドレスが解決されていない
+     * peripheralsの要素にすぐに復元し、バックグラウンドで確認します。deviceidを持つ要素は
+     * POST /keysでdeviceidが同じかを確認し、別のIRKitであれば復元を取り消します。
+     * deviceidが取得できない場合やdeviceidを持たない要素は、GET /でIRKitが応答するかだけを確認します。
+     * BSSIDが分からない場合は、BSSIDが分からない状態で解決されたアドレスを復元します。
+     * 複数のIRKitが同じアドレスを持つ場合、そのアドレスは古いため復元しません。
+     * </p>
+     *
+     * <p class="en">
+     * Restore addresses resolved on the current Wi-Fi within the maximum age to elements of
+     * peripherals which have not been resolved yet right away, and check them in the background.
+     * For elements with deviceid, POST /keys checks that the deviceid is the same, and the
+     * restoration is rolled back if it is another IRKit. If deviceid cannot be obtained, or for
+     * elements without deviceid, GET / only checks that an IRKit answers. If the BSSID is unknown,
+     * addresses resolved while the BSSID was unknown are restored.
+     * An address shared by several IRKits is stale and is not restored.
+     * </p>
+     *
+     * @param peripherals 復元先。 Peripherals to restore addresses to.
+     * @return 復元したIRPeripheralのリスト。 List of IRPeripherals which have been restored.
+     */
+    List<IRPeripheral> restore(IRPeripherals peripherals) {
+        ArrayList<IRPeripheral> restored = new ArrayList<>();
+        IRKit irkit = IRKit.sharedInstance();
+        if (irkit.getContext() == null || !irkit.isWifiConnected()) {
+            return restored;
+        }
+        // Null if the network cannot be identified, e.g. without location permission
+        String bssid = irkit.getCurrentBSSID();
+        long now = System.currentTimeMillis();
+        HashMap<IRPeripheral, Entry> candidates = new HashMap<>();
+        HashMap<String, Integer> addressCounts = new HashMap<>();
+        synchronized (this) {
+            ensureLoaded();
+            synchronized (peripherals) {
+                for (IRPeripheral peripheral : peripherals) {
+                    if (peripheral.isLocalAddressResolved() || peripheral.getHostname() == null) {
+                        continue;
+                    }
+                    Entry entry = entries.get(peripheral.getHostname().toLowerCase());
+                    if (entry == null || !(bssid == null ? entry.bssid == null : bssid.equals(entry.bssid)) ||
+                            now - entry.resolvedAt > maxAgeMs) {
+                        continue;
+                    }
+                    candidates.put(peripheral, entry);
+                    String address = entry.hostAddress + ":" + entry.port;
+                    Integer count = addressCounts.get(address);
+                    addressCounts.put(address, count != null ? count + 1 : 1);
+                }
+            }
+        }
+        for (Map.Entry<IRPeripheral, Entry> candidate : candidates.entrySet()) {
+            Entry entry = candidate.getValue();
+            if (addressCounts.get(entry.hostAddress + ":" + entry.port) > 1) {
+                continue;
+            }
+            InetAddress host;
+            try {
+                // A numeric address never causes a DNS lookup
+                host = InetAddress.getByName(entry.hostAddress);
+            } catch (IOException ex) {
+                Log.e(TAG, "restore: invalid address: " + entry.hostAddress);
+                continue;
+            }
+            IRPeripheral peripheral = candidate.getKey();
+            peripheral.setHost(host);
+            peripheral.setPort(entry.port);
+            restored.add(peripheral);
+        }
+        for (IRPeripheral peripheral : restored) {
+            verify(peripheral, peripheral.getHost());
+        }
+        return restored;
+    }
+
+    /**
+     * <p class="ja">
+     * 復元したアドレスのIRKitのdeviceidをPOST /keysとInternet HTTP APIで取得し、peripheralと
+     * 異なれば復元を取り消します。IRKitのGET /は識別できる情報を返さないため、deviceidで確認します。
+     * deviceidを取得できない場合（インターネットに接続できない場合など）やperipheralがdeviceidを
+     * 持たない場合は、verifyReachable()でIRKitが応答するかだけを確認します。
+     * </p>
+     *
+     * <p class="en">
+     * Obtain the deviceid of the IRKit at the restored address with POST /keys and Internet HTTP API,
+     * and roll back the restoration if it differs from that of peripheral. GET / of IRKit returns
+     * nothing which identifies the device, so deviceid is checked instead. If deviceid cannot be
+     * obtained (e.g. the Internet is unreachable) or peripheral has no deviceid, verifyReachable()
+     * only checks that an IRKit answers.
+     * </p>
+     */
+    private void verify(final IRPeripheral peripheral, final InetAddress restoredHost) {
+        if (peripheral.getDeviceId() == null) {
+            verifyReachable(peripheral, restoredHost);
+            return;
+        }
+        // A throwaway peripheral which is never added to IRPeripherals
+        final IRPeripheral probe = new IRPeripheral();
+        probe.setHost(restoredHost);
+        probe.setPort(peripheral.getPort());
+        probe.setListener(new IRPeripheral.IRPeripheralListener() {
+            @Override
+            public void onErrorFetchingDeviceId(String message) {
+                verifyReachable(peripheral, restoredHost);
+            }
+
+            @Override
+            public void onDeviceIdStatusChange() {
+            }
+
+            @Override
+            public void onFetchDeviceIdSuccess() {
+                if (!peripheral.getDeviceId().equals(probe.getDeviceId())) {
+                    rollBack(peripheral, restoredHost, "restored address belongs to another IRKit: ");
+                }
+            }
+
+            @Override
+            public void onFetchModelInfoSuccess() {
+            }
+
+            @Override
+            public void onErrorFetchingModelInfo(String message) {
+            }
+        });
+        probe.fetchDeviceId();
+    }
+
+    /**
+     * <p class="ja">
+     * 復元したアドレスでIRKitが応答するかをGET /で確認します。IRKitはGET /に404を返しますが、
+     * Serverヘッダでモデル名が分かります。応答がないか、IRKitでなければ復元を取り消します。
+     * </p>
+     *
+     * <p class="en">
+     * Check with GET / that an IRKit answers at the restored address. IRKit returns 404 for GET /,
+     * but the Server header tells its model name. If there is no answer or it is not an IRKit,
+     * the restoration is rolled back.
+     * </p>
+     */
+    private void verifyReachable(final IRPeripheral peripheral, final InetAddress restoredHost) {
+        String endpoint = peripheral.getDeviceAPIEndpoint();
+        if (peripheral.getHost() != restoredHost || endpoint == null) {
+            // Resolved over mDNS or lost in the meantime
+            return;
+        }
+        IRHTTPClient.sharedInstance().getThrottledDeviceAPIService(peripheral.getDeviceId(), endpoint).getHome(new Callback<IRDeviceAPIService.GetHomeResponse>() {
+            @Override
+            public void success(IRDeviceAPIService.GetHomeResponse getHomeResponse, Response response) {
+                onVerified(response);
+            }
+
+            @Override
+            public void failure(RetrofitError error) {
+                onVerified(error.getResponse());
+            }
+
+            private void onVerified(Response response) {
+                if (response != null && IRPeripheral.isIRKitResponse(response)) {
+                    if (peripheral.getHost() == restoredHost && peripheral.storeResponseHeaders(response)) {
+                        IRKit.sharedInstance().peripherals.save();
+                    }
+                    return;
+                }
+                rollBack(peripheral, restoredHost, "restored address is not reachable: ");
+            }
+        });
+    }
+
+    /**
+     * 復元したアドレスが使われたままであれば、peripheralのアドレスとこのキャッシュのエントリを削除します。
+     * Remove the address of peripheral and the entry of this cache if the restored address is still in use.
+     */
+    private void rollBack(IRPeripheral peripheral, InetAddress restoredHost, String reason) {
+        if (peripheral.getHost() != restoredHost) {
+            // Resolved over mDNS or lost in the meantime
+            return;
+        }
+        Log.w(TAG, reason + peripheral.getHostname());
+        // Also removes the entry of this cache
+        peripheral.lostLocalAddress();
+    }
+
+    /**
+     * エントリをまだ読み込んでいなければファイルから読み込みます。ロックした状態で呼んでください。
+     * Load entries from the file if not loaded yet. Must be called with this locked.
+     */
+    private void ensureLoaded() {
+        if (isLoaded) {
+            return;
+        }
+        isLoaded = true;
+        IRRecordFile recordFile = getRecordFile();
+        if (recordFile == null || !recordFile.exists()) {
+            return;
+        }
+        try {
+            for (byte[] record : recordFile.read()) {
+                Entry entry = Entry.fromRecord(record);
+                if (entry.hostname != null && entry.hostAddress != null) {
+                    entries.put(entry.hostname.toLowerCase(), entry);
+                }
+            }
+        } catch (IOException ex) {
+            Log.e(TAG, "Failed to load addresses");
+            ex.printStackTrace();
+        }
+    }
+
+    private void save() {
+        IRRecordFile recordFile = getRecordFile();
+        if (recordFile == null) {
+            return;
+        }
+        // Hold the lock while writing so that saves never reorder
+        synchronized (this) {
+            ArrayList<byte[]> records = new ArrayList<>(entries.size());
+            try {
+                for (Entry entry : entries.values()) {
+                    records.add(entry.toRecord());
+                }
+                recordFile.write(records);
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    private static IRRecordFile getRecordFile() {
+        Context context = IRKit.sharedInstance().getContext();
+        if (context == null) {
+            return null;
+        }
+        return new IRRecordFile(new File(context.getCacheDir(), FILENAME));
+    }
+}
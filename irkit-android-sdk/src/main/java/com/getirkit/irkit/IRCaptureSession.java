@@ -0,0 +1,280 @@
+package com.getirkit.irkit;
+
+import com.getirkit.irkit.net.IRSignalReceiver;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import retrofit.RetrofitError;
+
+/**
+ * <p class="ja">
+ * 多数のボタンの赤外線信号を続けて学習するためのセッションです。start()すると
+ * IRSignalReceiverで受信し続け、受信した信号に自動で名前を付けて保持します。
+ * セッション内で既に学習した信号や、保存先のIRSignalsに既にある信号と同じ信号は
+ * 重複として無視されます。on/off時間の差がPULSE_TOLERANCE以内であれば同じ信号とみなします。commit()で保持している信号をまとめてIRSignalsに追加し、1回だけ保存します。
+ * </p>
+ *
+ * <p class="en">
+ * Session for learning IR signals of many buttons in a row. After start(), it keeps
+ * receiving through IRSignalReceiver and holds received signals with automatically
+ * assigned names. A signal which is the same as one already learned in the session
+ * or already in the target IRSignals is ignored as a duplicate. Signals whose on/off times
+ * differ within PULSE_TOLERANCE are regarded as the same. commit() adds the held
+ * signals to IRSignals at once and saves them only once.
+ * </p>
+ *
+ * <p>Example:
+ * <pre><code>
+ * IRCaptureSession session = new IRCaptureSession(IRKit.sharedInstance().signals, listener);
+ * session.setNamePrefix("TV");
+ * session.start();
+ * // ... press buttons on the remote ...
+ * session.commit();
+ * </code></pre>
+ *
+ * @since 1.4.0
+ */
+public class IRCaptureSession {
+    public static final String TAG = IRCaptureSession.class.getSimpleName();
+
+    /**
+     * 同じ信号とみなすon/off時間の差の割合。
+     * Ratio of difference in on/off times within which signals are regarded as the same.
+     */
+    public static final float PULSE_TOLERANCE = 0.12f;
+
+    /**
+     * start()が購読を始めている間subscriptionに入る値。
+     * Placeholder held in subscription while start() is subscribing.
+     */
+    private static final IRSignalReceiver.Subscription STARTING = new IRSignalReceiver.Subscription() {
+        @Override
+        public void cancel() {
+        }
+    };
+
+    /**
+     * 学習の経過を受け取るインタフェースです。
+     * Interface to receive the progress of learning.
+     */
+    public interface Listener {
+        /**
+         * 新しい信号を学習した際に呼ばれます。
+         * Called when a new signal has been learned.
+         *
+         * @param signal 名前が付けられた信号。 Signal with an assigned name.
+         * @param count セッション内で学習した信号の数。 Number of signals learned in the session.
+         */
+        void onSignalCaptured(IRSignal signal, int count);
+
+        /**
+         * 既に学習済みの信号を受信した際に呼ばれます。
+         * Called when a signal which has already been learned is received.
+         *
+         * @param original 同じ内容の学習済みの信号。 Learned signal with the same content.
+         */
+        void onDuplicateCaptured(IRSignal original);
+
+        /**
+         * 受信でエラーが起きた際に呼ばれます。受信は自動的に再試行されます。
+         * Called when receiving has failed. Receiving is retried automatically.
+         *
+         * @param reason エラーの理由。 Reason of the error.
+         */
+        void onError(String reason);
+    }
+
+    private final IRSignals target;
+    private final Listener listener;
+    private final ArrayList<IRSignal> captured = new ArrayList<>();
+    private String namePrefix = "Signal";
+    private int nameCounter;
+    private IRSignalReceiver.Subscription subscription;
+
+    /**
+     * コンストラクタ。
+     * Constructor.
+     *
+     * @param target commit()で信号を追加するIRSignals。 IRSignals to which commit() adds signals.
+     * @param listener 学習の経過を受け取るリスナ。 Listener to receive the progress.
+     */
+    public IRCaptureSession(IRSignals target, Listener listener) {
+        this.target = target;
+        this.listener = listener;
+    }
+
+    /**
+     * 自動で付ける名前の接頭辞をセットします。名前は "接頭辞 番号" になります。既定は "Signal" です。
+     * Set the prefix of assigned names. Names look like "prefix number". Default is "Signal".
+     *
+     * @param namePrefix 名前の接頭辞。 Prefix of names.
+     */
+    public synchronized void setNamePrefix(String namePrefix) {
+        this.namePrefix = namePrefix;
+    }
+
+    /**
+     * 受信を開始します。IRKitサーバに保存されている以前の信号は削除されます。
+     * Start receiving. The previous signal saved in IRKit server is deleted.
+     */
+    public void start() {
+        synchronized (this) {
+            if (subscription != null) {
+                return;
+            }
+            subscription = STARTING;
+        }
+        IRSignalReceiver.Subscription newSubscription = IRKit.sharedInstance().getHTTPClient().getSignalReceiver().subscribe(new IRSignalReceiver.Subscriber() {
+            @Override
+            public void onSignalReceived(IRSignal signal) {
+                onCapture(signal);
+            }
+
+            @Override
+            public void onError(RetrofitError error) {
+                if (listener != null) {
+                    listener.onError(error.getMessage());
+                }
+            }
+        }, true);
+        synchronized (this) {
+            if (subscription == STARTING) {
+                subscription = newSubscription;
+                return;
+            }
+        }
+        // stop() was called while subscribing
+        newSubscription.cancel();
+    }
+
+    /**
+     * 受信を停止します。学習した信号は保持されたままです。
+     * Stop receiving. Learned signals are kept.
+     */
+    public void stop() {
+        IRSignalReceiver.Subscription oldSubscription;
+        synchronized (this) {
+            oldSubscription = subscription;
+            subscription = null;
+        }
+        if (oldSubscription != null) {
+            oldSubscription.cancel();
+        }
+    }
+
+    /**
+     * 受信中かどうかを返します。
+     * Return whether receiving.
+     *
+     * @return 受信中の場合はtrue。 True if receiving.
+     */
+    public synchronized boolean isStarted() {
+        return subscription != null;
+    }
+
+    /**
+     * セッション内で学習した信号を返します。
+     * Return signals learned in the session.
+     *
+     * @return 学習した信号のリスト。 List of learned signals.
+     */
+    public synchronized List<IRSignal> getCapturedSignals() {
+        return Collections.unmodifiableList(new ArrayList<>(captured));
+    }
+
+    /**
+     * 学習した信号を1個取り除きます。誤って押したボタンを取り消す際に使います。
+     * Remove a learned signal. Used to undo a button pressed by mistake.
+     *
+     * @param signal 取り除く信号。 Signal to be removed.
+     * @return 取り除いた場合はtrue。 True if removed.
+     */
+    public synchronized boolean removeCapturedSignal(IRSignal signal) {
+        return captured.remove(signal);
+    }
+
+    /**
+     * <p class="ja">
+     * 受信を停止し、学習した信号に新しいidを付けてIRSignalsにまとめて追加し、1回だけ保存します。
+     * </p>
+     *
+     * <p class="en">
+     * Stop receiving, add learned signals to IRSignals at once with new ids, and save only once.
+     * </p>
+     *
+     * @return 追加した信号のリスト。 List of added signals.
+     */
+    public List<IRSignal> commit() {
+        stop();
+        ArrayList<IRSignal> added;
+        synchronized (this) {
+            added = new ArrayList<>(captured);
+            captured.clear();
+        }
+        if (added.isEmpty()) {
+            return added;
+        }
+        synchronized (target) {
+            for (IRSignal signal : added) {
+                signal.setId(target.getNewId());
+                target.add(signal);
+            }
+        }
+        target.save();
+        return added;
+    }
+
+    /**
+     * 受信を停止し、学習した信号を破棄します。
+     * Stop receiving and discard learned signals.
+     */
+    public void discard() {
+        stop();
+        synchronized (this) {
+            captured.clear();
+        }
+    }
+
+    private void onCapture(IRSignal signal) {
+        IRSignal original = findSimilarContent(signal);
+        if (original != null) {
+            if (listener != null) {
+                listener.onDuplicateCaptured(original);
+            }
+            return;
+        }
+        int count;
+        synchronized (this) {
+            if (subscription == null) {
+                // Stopped while the signal was being delivered
+                return;
+            }
+            captured.add(signal);
+            count = captured.size();
+            signal.setName(namePrefix + " " + (++nameCounter));
+        }
+        if (listener != null) {
+            listener.onSignalCaptured(signal, count);
+        }
+    }
+
+    private IRSignal findSimilarContent(IRSignal signal) {
+        synchronized (this) {
+            for (IRSignal capturedSignal : captured) {
+                if (capturedSignal.hasSimilarContent(signal, PULSE_TOLERANCE)) {
+                    return capturedSignal;
+                }
+            }
+        }
+        synchronized (target) {
+            for (IRSignal existingSignal : target) {
+                if (existingSignal.hasSimilarContent(signal, PULSE_TOLERANCE)) {
+                    return existingSignal;
+                }
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,85 @@
+package com.getirkit.irkit;
+
+import android.content.Context;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+
+/**
+ * <p class="ja">
+ * IRDiscoveryEngineがmDNSでIRKitを検索するために使うバックエンドです。
+ * すべてのメソッドはIRDiscoveryEngineの1本のスレッドから呼ばれるため、スレッドセーフである必要はありません。
+ * open()で作成したソケットなどの資源はclose()まで保持し、pause()とresume()では問い合わせだけを止めたり再開したりします。
+ * </p>
+ *
+ * <p class="en">
+ * Backend used by IRDiscoveryEngine to discover IRKits over mDNS.
+ * Every method is called from the single thread of IRDiscoveryEngine, so it need not be thread-safe.
+ * Resources such as sockets created by open() are kept until close(), and pause() and
+ * resume() only stop and restart querying.
+ * </p>
+ *
+ * @see IRJmDNSDiscoveryBackend
+ * @see IRNsdDiscoveryBackend
+ * @since 1.4.0
+ */
+public interface IRDiscoveryBackend {
+    /**
+     * 検索結果を受け取るインタフェースです。任意のスレッドから呼ばれます。
+     * Interface to receive discovery results. Called from any thread.
+     */
+    interface Listener {
+        /**
+         * サービスのアドレスが解決された際に呼ばれます。
+         * Called when the address of a service has been resolved.
+         *
+         * @param serviceName サービス名。IRKitのホスト名です。 Service name, which is the hostname of IRKit.
+         * @param host IPv4アドレス。 IPv4 address.
+         * @param port ポート番号。 Port number.
+         */
+        void onServiceResolved(String serviceName, Inet4Address host, int port);
+
+        /**
+         * サービスが使えなくなった際に呼ばれます。
+         * Called when a service has become unavailable.
+         *
+         * @param serviceName サービス名。 Service name.
+         */
+        void onServiceLost(String serviceName);
+    }
+
+    /**
+     * <p class="ja">
+     * 検索に必要な資源を作成します。問い合わせはresume()まで始めません。
+     * </p>
+     *
+     * <p class="en">
+     * Create resources needed for discovery. Querying does not begin until resume().
+     * </p>
+     *
+     * @param context Context
+     * @param localAddress Wi-FiインタフェースのIPv4アドレス。 IPv4 address of Wi-Fi interface.
+     * @param listener 検索結果を受け取るリスナ。 Listener to receive discovery results.
+     * @throws IOException 資源を作成できなかった場合。 If resources cannot be created.
+     */
+    void open(Context context, InetAddress localAddress, Listener listener) throws IOException;
+
+    /**
+     * 問い合わせを開始または再開します。
+     * Start or resume querying.
+     */
+    void resume();
+
+    /**
+     * 資源を保持したまま問い合わせを止めます。
+     * Stop querying while keeping the resources.
+     */
+    void pause();
+
+    /**
+     * 問い合わせを止めて資源を解放します。
+     * Stop querying and release the resources.
+     */
+    void close();
+}
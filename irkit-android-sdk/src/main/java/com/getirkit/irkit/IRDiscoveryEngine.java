@@ -0,0 +1,223 @@
+package com.getirkit.irkit;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * <p class="ja">
+ * mDNSによるIRKitの検索を長期間保持するエンジンです。IRDiscoveryBackendの操作はすべて
+ * このエンジンが持つ1本のスレッドで行われ、見つかったIRKitもこのスレッドで1個ずつ処理されます。pause()は資源を保持したまま問い合わせだけを止めるため、
+ * フォアグラウンドとバックグラウンドを行き来するたびにソケットを作り直すことはありません。
+ * Wi-FiのIPアドレスが変わっていた場合はresume()の際にバックエンドを開き直します。
+ * </p>
+ *
+ * <p class="en">
+ * Long-lived engine for discovering IRKits over mDNS. Every operation on IRDiscoveryBackend
+ * runs on the single thread owned by this engine, and found IRKits are handled one at a time
+ * on that thread as well. pause() only stops querying and keeps the
+ * resources, so sockets are not recreated every time the app goes to the background and back.
+ * If the Wi-Fi IP address has changed, the backend is reopened on resume().
+ * </p>
+ *
+ * @since 1.4.0
+ */
+public class IRDiscoveryEngine {
+    public static final String TAG = IRDiscoveryEngine.class.getSimpleName();
+
+    private final ExecutorService ownerThread = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "IRKit-discovery");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private final IRDiscoveryBackend.Listener listener;
+
+    /**
+     * resume()とpause()で要求された状態。オーナースレッドが実際の状態をこれに合わせます。
+     * State requested by resume() and pause(). The owner thread brings the actual state in line with it.
+     */
+    private volatile boolean isResumeRequested;
+
+    // Accessed only on the owner thread
+    private IRDiscoveryBackend backend;
+    private InetAddress boundAddress;
+    private boolean isOpen;
+    private boolean isResumed;
+
+    IRDiscoveryEngine(IRDiscoveryBackend backend, final IRDiscoveryBackend.Listener listener) {
+        this.backend = backend;
+        // Backends call back from their own threads
+        this.listener = new IRDiscoveryBackend.Listener() {
+            @Override
+            public void onServiceResolved(final String serviceName, final Inet4Address host, final int port) {
+                post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onServiceResolved(serviceName, host, port);
+                    }
+                });
+            }
+
+            @Override
+            public void onServiceLost(final String serviceName) {
+                post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onServiceLost(serviceName);
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * <p class="ja">
+     * バックエンドを差し替えます。現在のバックエンドは閉じられ、検索中であれば新しいバックエンドで検索を続けます。
+     * </p>
+     *
+     * <p class="en">
+     * Replace the backend. The current backend is closed, and if discovering, discovery
+     * continues with the new backend.
+     * </p>
+     *
+     * @param newBackend 新しいバックエンド。 New backend.
+     */
+    public void setBackend(final IRDiscoveryBackend newBackend) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                closeBackend();
+                backend = newBackend;
+                reconcile();
+            }
+        });
+    }
+
+    /**
+     * 検索を開始または再開します。
+     * Start or resume discovery.
+     */
+    public void resume() {
+        isResumeRequested = true;
+        post(new Runnable() {
+            @Override
+            public void run() {
+                reconcile();
+            }
+        });
+    }
+
+    /**
+     * 資源を保持したまま検索を止めます。
+     * Stop discovery while keeping the resources.
+     */
+    public void pause() {
+        isResumeRequested = false;
+        post(new Runnable() {
+            @Override
+            public void run() {
+                reconcile();
+            }
+        });
+    }
+
+    /**
+     * 検索を止めて資源を解放します。Wi-Fiが切断された際に使います。
+     * Stop discovery and release the resources. Used when Wi-Fi has been disconnected.
+     */
+    public void close() {
+        isResumeRequested = false;
+        post(new Runnable() {
+            @Override
+            public void run() {
+                closeBackend();
+            }
+        });
+    }
+
+    /**
+     * 検索が要求されているかどうかを返します。
+     * Return whether discovery has been requested.
+     *
+     * @return 要求されている場合はtrue。 True if requested.
+     */
+    public boolean isResumeRequested() {
+        return isResumeRequested;
+    }
+
+    /**
+     * <p class="ja">
+     * runnableをオーナースレッドで実行します。IRSubnetScannerなどmDNS以外で見つかったIRKitも
+     * これを通して処理することで、同じIRKitが並行して処理されIRPeripheralが重複することを防ぎます。
+     * </p>
+     *
+     * <p class="en">
+     * Run runnable on the owner thread. IRKits found other than over mDNS, e.g. by IRSubnetScanner,
+     * are also handled through this, so the same IRKit is never handled concurrently and
+     * IRPeripherals never gets a duplicate.
+     * </p>
+     *
+     * @param runnable 実行する処理。 Runnable to be run.
+     */
+    void post(Runnable runnable) {
+        ownerThread.execute(runnable);
+    }
+
+    /**
+     * バックエンドの状態を要求された状態に合わせます。オーナースレッドで呼ばれます。
+     * Bring the backend in line with the requested state. Called on the owner thread.
+     */
+    private void reconcile() {
+        if (!isResumeRequested) {
+            if (isResumed) {
+                backend.pause();
+                isResumed = false;
+            }
+            return;
+        }
+        IRKit irkit = IRKit.sharedInstance();
+        Context context = irkit.getContext();
+        InetAddress address = irkit.getWifiIPv4Address();
+        if (context == null || address == null) {
+            Log.e(TAG, "resume: Wi-Fi address is not available");
+            return;
+        }
+        if (isOpen && !address.equals(boundAddress)) {
+            // Sockets are bound to the old address
+            closeBackend();
+        }
+        if (!isOpen) {
+            try {
+                backend.open(context, address, listener);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to open discovery backend", e);
+                backend.close();
+                return;
+            }
+            isOpen = true;
+            boundAddress = address;
+        }
+        if (!isResumed) {
+            backend.resume();
+            isResumed = true;
+        }
+    }
+
+    private void closeBackend() {
+        if (isOpen) {
+            backend.close();
+        }
+        isOpen = false;
+        isResumed = false;
+        boundAddress = null;
+    }
+}
@@ -0,0 +1,97 @@
+package com.getirkit.irkit;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+/**
+ * <p class="ja">
+ * 要素（IRSignalやIRPeripheral）をインデックスに登録しているコレクションの一覧です。
+ * 要素のキー（idやhostnameなど）が変わった際は、その要素を登録しているコレクションの
+ * インデックスだけを無効にします。一時的に作られてどのコレクションにも入っていない要素の
+ * 変更は、どのインデックスにも影響しません。キー以外の保存対象の項目が変わった場合も通知され、
+ * コレクションは次の保存で書き出す要素を把握できます。
+ * </p>
+ *
+ * <p class="en">
+ * List of collections whose index holds an element (IRSignal or IRPeripheral).
+ * When a key of the element (id, hostname, etc.) changes, only the indexes of
+ * the collections holding that element are invalidated. Changes to throwaway
+ * elements which belong to no collection never affect any index. Changes to other
+ * persisted fields are notified as well, so that a collection knows which elements
+ * its next save has to write.
+ * </p>
+ */
+class IRIndexOwners {
+    /**
+     * 1個のコレクションのインデックスを無効にします。
+     * Invalidates the index of one collection.
+     */
+    static abstract class Invalidator {
+        abstract void invalidate();
+
+        /**
+         * 要素の保存対象の項目が変わった際に呼ばれます。
+         * Called when a persisted field of element has changed.
+         *
+         * @param element 変更された要素。 Element which has changed.
+         */
+        void changed(Object element) {
+        }
+    }
+
+    // Collections strongly reference their invalidators, so these live as long as the collections
+    private final ArrayList<WeakReference<Invalidator>> owners = new ArrayList<>(1);
+
+    /**
+     * インデックスを無効にする対象を追加します。既に追加されていれば何もしません。
+     * Add an invalidator. Nothing happens if it has already been added.
+     *
+     * @param invalidator Invalidator
+     */
+    synchronized void add(Invalidator invalidator) {
+        for (Iterator<WeakReference<Invalidator>> iter = owners.iterator(); iter.hasNext(); ) {
+            Invalidator owner = iter.next().get();
+            if (owner == invalidator) {
+                return;
+            }
+            if (owner == null) {
+                iter.remove();
+            }
+        }
+        owners.add(new WeakReference<>(invalidator));
+    }
+
+    /**
+     * 要素のキーが変わった際に呼びます。ロックせずに呼んでください。
+     * Call when a key of the element has changed. Must be called without holding locks of the element.
+     */
+    void keyChanged() {
+        for (Invalidator owner : getLiveOwners()) {
+            owner.invalidate();
+        }
+    }
+
+    /**
+     * 要素の保存対象の項目が変わった際に呼びます。ロックせずに呼んでください。
+     * Call when a persisted field of the element has changed. Must be called without holding locks of the element.
+     *
+     * @param element 変更された要素。 Element which has changed.
+     */
+    void changed(Object element) {
+        for (Invalidator owner : getLiveOwners()) {
+            owner.changed(element);
+        }
+    }
+
+    private synchronized ArrayList<Invalidator> getLiveOwners() {
+        ArrayList<Invalidator> liveOwners = new ArrayList<>(owners.size());
+        for (WeakReference<Invalidator> ref : owners) {
+            Invalidator owner = ref.get();
+            if (owner != null) {
+                liveOwners.add(owner);
+            }
+        }
+        return liveOwners;
+    }
+}
@@ -0,0 +1,139 @@
+package com.getirkit.irkit;
+
+import android.content.Context;
+import android.net.wifi.WifiManager;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+
+import javax.jmdns.JmDNS;
+import javax.jmdns.ServiceEvent;
+import javax.jmdns.ServiceInfo;
+import javax.jmdns.ServiceListener;
+
+/**
+ * <p class="ja">
+ * JmDNSを使うIRDiscoveryBackendです。既定のバックエンドです。JmDNSのインスタンスはopen()からclose()まで
+ * 使い回し、マルチキャストロックはresume()からpause()までの間だけ取得します。
+ * </p>
+ *
+ * <p class="en">
+ * IRDiscoveryBackend using JmDNS. This is the default backend. The JmDNS instance is reused from
+ * open() until close(), and the multicast lock is held only between resume() and pause().
+ * </p>
+ *
+ * @since 1.4.0
+ */
+public class IRJmDNSDiscoveryBackend implements IRDiscoveryBackend {
+    public static final String TAG = IRJmDNSDiscoveryBackend.class.getSimpleName();
+
+    private WifiManager.MulticastLock multicastLock;
+    private JmDNS jmdns;
+    private ServiceListener serviceListener;
+    private Listener listener;
+
+    @Override
+    public void open(Context context, InetAddress localAddress, Listener listener) throws IOException {
+        this.listener = listener;
+        WifiManager wifi = (WifiManager) context.getApplicationContext().getSystemService(Context.WIFI_SERVICE);
+        multicastLock = wifi.createMulticastLock(TAG);
+        multicastLock.setReferenceCounted(false);
+        // Do not use default constructor i.e. JmDNS.create()
+        jmdns = JmDNS.create(localAddress);
+    }
+
+    @Override
+    public void resume() {
+        if (jmdns == null || serviceListener != null) {
+            return;
+        }
+        multicastLock.acquire();
+        serviceListener = new JmDNSServiceListener();
+        jmdns.addServiceListener(IRKit.SERVICE_TYPE, serviceListener);
+    }
+
+    @Override
+    public void pause() {
+        if (jmdns == null || serviceListener == null) {
+            return;
+        }
+        jmdns.removeServiceListener(IRKit.SERVICE_TYPE, serviceListener);
+        serviceListener = null;
+        multicastLock.release();
+    }
+
+    @Override
+    public void close() {
+        pause();
+        if (jmdns != null) {
+            try {
+                jmdns.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            jmdns = null;
+        }
+        multicastLock = null;
+        listener = null;
+    }
+
+    /**
+     * JmDNSからの通知を受け取るリスナクラスです。
+     * Listener for JmDNS.
+     */
+    private class JmDNSServiceListener implements ServiceListener {
+        /**
+         * サービスが追加された際に呼ばれます。
+         * Called when a service is added.
+         *
+         * @param serviceEvent ServiceEvent
+         */
+        @Override
+        public void serviceAdded(ServiceEvent serviceEvent) {
+            JmDNS currentJmDNS = jmdns;
+            if (currentJmDNS != null) {
+                currentJmDNS.requestServiceInfo(serviceEvent.getType(), serviceEvent.getName());
+            }
+        }
+
+        /**
+         * サービスが使えなくなった際に呼ばれます。
+         * Called when a service become unavailable.
+         *
+         * @param serviceEvent ServiceEvent
+         */
+        @Override
+        public void serviceRemoved(ServiceEvent serviceEvent) {
+            Listener currentListener = listener;
+            if (currentListener != null) {
+                currentListener.onServiceLost(serviceEvent.getName());
+            }
+        }
+
+        /**
+         * サービスが解決されてServiceInfoが利用可能になった際に呼ばれます。
+         * Called when a service is resolved and ServiceInfo become available.
+         *
+         * @param serviceEvent ServiceEvent
+         */
+        @Override
+        public void serviceResolved(ServiceEvent serviceEvent) {
+            ServiceInfo serviceInfo = serviceEvent.getInfo();
+            if (serviceInfo == null) {
+                Log.e(TAG, "serviceResolved: service info is null");
+                return;
+            }
+            Inet4Address[] addresses = serviceInfo.getInet4Addresses();
+            if (addresses.length == 0) {
+                Log.e(TAG, "serviceResolved: no address");
+                return;
+            }
+            Listener currentListener = listener;
+            if (currentListener != null) {
+                currentListener.onServiceResolved(serviceEvent.getName(), addresses[0], serviceInfo.getPort());
+            }
+        }
+    }
+}
@@ -17,7 +17,6 @@ import android.net.wifi.ScanResult;
 import android.net.wifi.WifiConfiguration;
 import android.net.wifi.WifiInfo;
 import android.net.wifi.WifiManager;
-import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
@@ -29,33 +28,39 @@ import android.view.WindowManager;
 import com.getirkit.irkit.net.IRAPICallback;
 import com.getirkit.irkit.net.IRAPIError;
 import com.getirkit.irkit.net.IRAPIResult;
+import com.getirkit.irkit.net.IRBatchResult;
+import com.getirkit.irkit.net.IRDeviceAPIService;
+import com.getirkit.irkit.net.IRExecutorScheduler;
 import com.getirkit.irkit.net.IRHTTPClient;
 import com.getirkit.irkit.net.IRInternetAPIService;
+import com.getirkit.irkit.net.IRRequestHandle;
+import com.getirkit.irkit.net.IRScheduler;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.IOException;
 import java.math.BigInteger;
+import java.net.ConnectException;
 import java.net.Inet4Address;
 import java.net.InetAddress;
+import java.net.NoRouteToHostException;
 import java.net.UnknownHostException;
 import java.nio.ByteOrder;
-import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Date;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import javax.jmdns.JmDNS;
-import javax.jmdns.ServiceEvent;
-import javax.jmdns.ServiceInfo;
-import javax.jmdns.ServiceListener;
+import javax.net.ssl.SSLHandshakeException;
 
+import retrofit.Callback;
 import retrofit.RetrofitError;
 import retrofit.client.Response;
 
@@ -93,6 +98,14 @@ public class IRKit {
      */
     public IRSignals signals;
 
+    /**
+     * 既存のIRSceneインスタンスが格納されたIRScenesインスタンスです。
+     * IRScenes instance which holds existing IRScene instances.
+     *
+     * @since 1.4.0
+     */
+    public IRScenes scenes;
+
     private Context context;
     private IRKitEventListener irkitEventListener;
     private IRHTTPClient httpClient;
@@ -101,16 +114,24 @@ public class IRKit {
     private ScanResultReceiver scanResultReceiver;
     private WifiEnableEventReceiver wifiEnableEventReceiver;
     private boolean isDiscovering = false;
-    private LinkedList<Boolean> discoveryQueue;
-    private boolean isProcessingBonjour = false;
     private boolean isInitialized = false;
     private IRKitSetupManager setupManager;
     private NetworkStateChangeReceiver networkStateChangeReceiver;
 
-    // For JmDNS
-    private WifiManager.MulticastLock multicastLock;
-    private JmDNS jmdns;
-    private BonjourServiceListener bonjourServiceListener;
+    private final IRDiscoveryEngine discoveryEngine = new IRDiscoveryEngine(new IRJmDNSDiscoveryBackend(), new IRDiscoveryBackend.Listener() {
+        @Override
+        public void onServiceResolved(String serviceName, Inet4Address host, int port) {
+            IRKit.this.onServiceResolved(serviceName, host, port);
+        }
+
+        @Override
+        public void onServiceLost(String serviceName) {
+            IRPeripheral peripheral = peripherals.getPeripheral(serviceName);
+            if (peripheral != null) {
+                peripheral.lostLocalAddress();
+            }
+        }
+    });
 
     // singleton
     private static IRKit ourInstance = new IRKit();
@@ -129,11 +150,39 @@ public class IRKit {
         return httpClient;
     }
 
-    private ArrayDeque<SendSignalItem> sendSignalQueue = new ArrayDeque<>();
+    private IRSendScheduler sendScheduler;
+    private final IRRouteHealthCache routeHealth = new IRRouteHealthCache();
+    private volatile String lastNetworkKey;
+    private final IRAddressCache addressCache = new IRAddressCache();
+    private final IRProbeScheduler probeScheduler = new IRProbeScheduler();
+    private final IRSubnetScanner subnetScanner = new IRSubnetScanner();
+    private volatile boolean isSubnetScanEnabled = false;
+
+    /**
+     * ヘッジ送信で履歴がない場合にインターネット経路を追加で使うまでの待ち時間（ミリ秒）。
+     * Delay in milliseconds before a hedged send adds the Internet route when there is no history.
+     */
+    private static final long DEFAULT_HEDGE_DELAY_MS = 1000;
+
+    /**
+     * modelNameとfirmwareVersionの既定の有効期間（ミリ秒）。
+     * Default TTL in milliseconds of modelName and firmwareVersion.
+     */
+    public static final long DEFAULT_MODEL_INFO_TTL_MS = 24 * 60 * 60 * 1000L;
+
+    private volatile long modelInfoTTLMs = DEFAULT_MODEL_INFO_TTL_MS;
+    private volatile boolean isIdempotentHedgingEnabled = false;
+    private volatile double hedgePercentile = 0.9;
 
     private IRKit() {
         httpClient = IRHTTPClient.sharedInstance();
         TAG = IRKit.class.getSimpleName() + ":" + this.hashCode();
+        sendScheduler = new IRSendScheduler(new IRSendScheduler.Sender() {
+            @Override
+            public void send(IRSignal signal, IRAPIResult result) {
+                _sendSignal(signal, result);
+            }
+        });
     }
 
     /**
@@ -154,6 +203,9 @@ public class IRKit {
             }
             signals.removeInvalidSignals();
 
+            scenes = new IRScenes();
+            scenes.load();
+
             isDataLoaded = true;
         }
     }
@@ -470,7 +522,6 @@ public class IRKit {
         setContext(context);
         if (!isInitialized) {
             isInitialized = true;
-            discoveryQueue = new LinkedList<>();
             loadData();
         }
     }
@@ -507,6 +558,24 @@ public class IRKit {
         return sharedPrefs.getString(key, null);
     }
 
+    /**
+     * SharedPreferencesからデータを削除します。
+     * Remove data from SharedPreferences.
+     *
+     * @param key Key
+     * @since 1.4.0
+     */
+    public void removePreference(String key) {
+        SharedPreferences sharedPrefs = context.getSharedPreferences(
+                context.getString(R.string.preferences_file_key), Context.MODE_PRIVATE
+        );
+        SharedPreferences.Editor editor = sharedPrefs.edit();
+        editor.remove(key);
+        editor.apply();
+
+        this.requestBackup();
+    }
+
     /**
      * Androidバックアップサービスにバックアップをリクエストします。
      * Request backup to Android backup service.
@@ -648,6 +717,49 @@ public class IRKit {
         }
     }
 
+    /**
+     * 位置情報の権限がない場合などにWifiInfo.getBSSID()が返す値です。ネットワークを識別できません。
+     * Value returned by WifiInfo.getBSSID() e.g. without location permission. It identifies no network.
+     */
+    static final String UNKNOWN_BSSID = "02:00:00:00:00:00";
+
+    /**
+     * 接続しているWi-FiのBSSIDを返します。
+     * Return the BSSID of the Wi-Fi currently connected.
+     *
+     * @return BSSID。Wi-Fiに接続していないか、BSSIDが分からない場合はnull。
+     *         BSSID, or null if not connected to Wi-Fi or the BSSID is unknown.
+     */
+    String getCurrentBSSID() {
+        if (context == null || !isWifiConnected()) {
+            return null;
+        }
+        WifiInfo wifiInfo = getCurrentWifiInfo();
+        if (wifiInfo == null) {
+            return null;
+        }
+        String bssid = wifiInfo.getBSSID();
+        if (bssid == null || bssid.equals(UNKNOWN_BSSID)) {
+            return null;
+        }
+        return bssid;
+    }
+
+    /**
+     * 接続しているネットワークを識別する文字列を返します。
+     * Return a string which identifies the network currently connected.
+     *
+     * @param netInfo 接続しているネットワーク。 Active network.
+     * @return Wi-FiのBSSID。Wi-Fiでないか、識別できない場合はnull。
+     *         BSSID of the Wi-Fi, or null if it is not Wi-Fi or cannot be identified.
+     */
+    private String getCurrentNetworkKey(NetworkInfo netInfo) {
+        if (netInfo == null || netInfo.getType() != ConnectivityManager.TYPE_WIFI) {
+            return null;
+        }
+        return getCurrentBSSID();
+    }
+
     /**
      * WifiManagerインスタンスを取得します。
      * Fetch WifiManager instance.
@@ -1078,342 +1190,1075 @@ public class IRKit {
     }
 
     /**
-     * JmDNSからの通知を受け取るリスナクラスです。
-     * Listener for JmDNS.
+     * サービスが解決された際にIRDiscoveryEngineから、またはIRSubnetScannerがIRKitを見つけた際に
+     * IRDiscoveryEngineのオーナースレッドで呼ばれます。
+     * Called on the owner thread of IRDiscoveryEngine when it resolves a service, or when
+     * IRSubnetScanner finds an IRKit.
+     *
+     * @param serviceName サービス名。 Service name.
+     * @param host IPv4アドレス。 IPv4 address.
+     * @param port ポート番号。 Port number.
      */
-    class BonjourServiceListener implements ServiceListener {
-        /**
-         * サービスが追加された際に呼ばれます。
-         * Called when a service is added.
-         *
-         * @param serviceEvent ServiceEvent
-         */
-        @Override
-        public void serviceAdded(ServiceEvent serviceEvent) {
-            jmdns.requestServiceInfo(serviceEvent.getType(), serviceEvent.getName());
-        }
-
-        /**
-         * サービスが使えなくなった際に呼ばれます。
-         * Called when a service become unavailable.
-         *
-         * @param serviceEvent ServiceEvent
-         */
-        @Override
-        public void serviceRemoved(ServiceEvent serviceEvent) {
-            String serviceName = serviceEvent.getName();
-            IRPeripheral peripheral = peripherals.getPeripheral(serviceName);
-            if (peripheral != null) {
-                peripheral.lostLocalAddress();
-            }
-        }
-
-        /**
-         * サービスが解決されてServiceInfoが利用可能になった際に呼ばれます。
-         * Called when a service is resolved and ServiceInfo become available.
-         *
-         * @param serviceEvent ServiceEvent
-         */
-        @Override
-        public void serviceResolved(ServiceEvent serviceEvent) {
-            ServiceInfo serviceInfo = serviceEvent.getInfo();
-            if (serviceInfo == null) {
-                Log.e(TAG, "serviceResolved: service info is null");
-                return;
+    void onServiceResolved(String serviceName, Inet4Address host, int port) {
+//        Log.d(TAG, "resolve success: name=" + serviceName + " host=" + host + " port=" + port);
+        savePreference(PREF_KEY_BONJOUR_HOSTNAME, serviceName + "." + SERVICE_TYPE);
+        savePreference(PREF_KEY_BONJOUR_RESOLVED_AT, String.valueOf(new Date().getTime() / 1000));
+        IRPeripheral peripheral = peripherals.getPeripheral(serviceName);
+        boolean isNewIRKit = false;
+        if (peripheral == null) { // Found new IRKit
+            peripheral = peripherals.addPeripheral(serviceName);
+            isNewIRKit = true;
+        }
+        peripheral.setHost(host);
+        peripheral.setPort(port);
+        addressCache.put(peripheral);
+        // Wait a short period of time to settle before sending a request.
+        // Probes go through probeScheduler so that a burst of announcements doesn't spawn threads.
+        if (!peripheral.hasDeviceId()) {
+            probeScheduler.schedule(peripheral, IRProbeScheduler.Probe.DEVICE_ID, FETCH_DEVICE_ID_DELAY_MS);
+        } else if (!peripheral.isModelInfoFresh()) {
+            // The model info (modelName and firmwareVersion) may change with a firmware update.
+            // Responses to sends keep it fresh, so GET / is needed only when it has expired.
+            probeScheduler.schedule(peripheral, IRProbeScheduler.Probe.MODEL_INFO, FETCH_MODEL_INFO_DELAY_MS);
+        }
+
+        if (isNewIRKit) {
+            if (irkitEventListener != null) {
+                irkitEventListener.onNewIRKitFound(peripheral);
             }
-            Inet4Address[] addresses = serviceInfo.getInet4Addresses();
-            if (addresses.length == 0) {
-                Log.e(TAG, "serviceResolved: no address");
-                return;
-            }
-            Inet4Address host = addresses[0];
-            int port = serviceInfo.getPort();
-
-            String serviceName = serviceEvent.getName();
-//            Log.d(TAG, "resolve success: name=" + serviceName + " host=" + host + " port=" + port);
-            savePreference(PREF_KEY_BONJOUR_HOSTNAME, serviceEvent.getInfo().getQualifiedName());
-            savePreference(PREF_KEY_BONJOUR_RESOLVED_AT, String.valueOf(new Date().getTime() / 1000));
-            IRPeripheral peripheral = peripherals.getPeripheral(serviceName);
-            boolean isNewIRKit = false;
-            if (peripheral == null) { // Found new IRKit
-                peripheral = peripherals.addPeripheral(serviceName);
-                isNewIRKit = true;
-            }
-            peripheral.setHost(host);
-            peripheral.setPort(port);
-            final IRPeripheral p = peripheral;
-            if (!peripheral.hasDeviceId()) {
-                // Wait a short period of time to settle before sending a request.
-                // We can't use Handler nor AsyncTask here since we aren't on the UI thread.
-                p.setIsWaitingForConfiguration(true);
-                Timer t = new Timer();
-                t.schedule(new TimerTask() {
-                    @Override
-                    public void run() {
-                        p.setIsWaitingForConfiguration(false);
-                        p.fetchDeviceId();
-                    }
-                }, FETCH_DEVICE_ID_DELAY_MS);
-            } else {
-                // Retrieve the model info (modelName and firmwareVersion) every time as it may change.
-                // Wait a short period of time to settle before sending a request.
-                // We can't use Handler nor AsyncTask here since we aren't on the UI thread.
-                p.setIsWaitingForConfiguration(true);
-                Timer t = new Timer();
-                t.schedule(new TimerTask() {
-                    @Override
-                    public void run() {
-                        p.setIsWaitingForConfiguration(false);
-                        p.fetchModelInfo();
-                    }
-                }, FETCH_MODEL_INFO_DELAY_MS);
-            }
-
-            if (isNewIRKit) {
-                if (irkitEventListener != null) {
-                    irkitEventListener.onNewIRKitFound(peripheral);
-                }
-            } else {
-                if (irkitEventListener != null) {
-                    irkitEventListener.onExistingIRKitFound(peripheral);
-                }
+        } else {
+            if (irkitEventListener != null) {
+                irkitEventListener.onExistingIRKitFound(peripheral);
             }
         }
     }
 
-    private void pushDiscoveryQueue(boolean startDiscovery) {
-        int originalSize;
-        synchronized (discoveryQueue) {
-            originalSize = discoveryQueue.size();
-            while (discoveryQueue.size() >= 1) {
-                boolean set = discoveryQueue.peekLast();
-                if (set == startDiscovery) {
-                    return;
-                } else {
-                    if (discoveryQueue.size() >= 2) {
-                        discoveryQueue.removeLast();
-                        continue;
-                    }
-                }
-                break;
-            }
-            discoveryQueue.add(startDiscovery);
+    /**
+     * mDNSでの検索を開始します。
+     * Start mDNS discovery.
+     */
+    public void startBonjourDiscovery() {
+        discoveryEngine.resume();
+        if (isSubnetScanEnabled) {
+            subnetScanner.scanIfDue();
         }
+    }
 
-        if (originalSize == 0 && !isProcessingBonjour) {
-            nextDiscoveryQueue();
-        }
+    /**
+     * mDNSでの検索を停止します。ソケットは保持されるため、次のstartBonjourDiscovery()はすぐに検索を再開します。
+     * Stop mDNS discovery. Sockets are kept, so the next startBonjourDiscovery() resumes discovery right away.
+     */
+    public void stopBonjourDiscovery() {
+        discoveryEngine.pause();
     }
 
-    private void nextDiscoveryQueue() {
-        boolean startDiscovery;
-        synchronized (discoveryQueue) {
-            if (discoveryQueue.isEmpty()) {
-                return;
-            }
-            startDiscovery = discoveryQueue.pop();
-        }
-        if (startDiscovery) {
-            _startBonjourDiscovery();
-        } else {
-            _stopBonjourDiscovery();
-        }
+    /**
+     * mDNSでの検索を行うIRDiscoveryEngineを返します。
+     * Return the IRDiscoveryEngine which performs mDNS discovery.
+     *
+     * @return IRDiscoveryEngine instance.
+     * @since 1.4.0
+     */
+    public IRDiscoveryEngine getDiscoveryEngine() {
+        return discoveryEngine;
     }
 
-    private void _startBonjourDiscovery() {
-        if (isProcessingBonjour) {
-            Log.e(TAG, "isProcessingBonjour is true");
-            return;
-        }
-        isProcessingBonjour = true;
-        // Do network tasks in background. We can't use Handler here.
-        new AsyncTask<Void, Void, Void>() {
-            @Override
-            protected Void doInBackground(Void... params) {
-                fetchWifiManager();
-
-                WifiManager wifi = (WifiManager) context.getSystemService(Context.WIFI_SERVICE);
-                multicastLock = wifi.createMulticastLock(getClass().getName());
-                multicastLock.setReferenceCounted(true);
-                multicastLock.acquire();
-
-                InetAddress deviceIPAddress = getWifiIPv4Address();
-                try {
-                    // Do not use default constructor i.e. JmDNS.create()
-                    jmdns = JmDNS.create(deviceIPAddress);
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-                if (jmdns != null) {
-                    // Started zeroconf probe
-                    bonjourServiceListener = new BonjourServiceListener();
-                    jmdns.addServiceListener(SERVICE_TYPE, bonjourServiceListener);
-                }
-                isProcessingBonjour = false;
-                nextDiscoveryQueue();
-                return null;
-            }
-        }.execute();
+    /**
+     * <p class="ja">
+     * マルチキャストが遮断されたネットワークのために、startBonjourDiscovery()の際に
+     * IRSubnetScannerによるアドレスのスキャンも行うかどうかをセットします。既定は無効です。
+     * スキャンは最短でも5分に1回しか行われません。
+     * </p>
+     *
+     * <p class="en">
+     * Set whether startBonjourDiscovery() also scans addresses with IRSubnetScanner for networks
+     * where multicast is blocked. Disabled by default. A scan runs at most once every 5 minutes.
+     * </p>
+     *
+     * @param enabled 有効にする場合はtrue。 True to enable.
+     * @since 1.4.0
+     */
+    public void setSubnetScanEnabled(boolean enabled) {
+        isSubnetScanEnabled = enabled;
     }
 
     /**
-     * mDNSでの検索を開始します。
-     * Start mDNS discovery.
+     * startBonjourDiscovery()の際にアドレスのスキャンも行うかどうかを返します。
+     * Return whether startBonjourDiscovery() also scans addresses.
+     *
+     * @return 有効な場合はtrue。 True if enabled.
+     * @since 1.4.0
      */
-    public void startBonjourDiscovery() {
-        pushDiscoveryQueue(true);
+    public boolean isSubnetScanEnabled() {
+        return isSubnetScanEnabled;
     }
 
     /**
-     * mDNSでの検索を停止します。
-     * Stop mDNS discovery.
+     * アドレスのスキャンでIRKitを検索するIRSubnetScannerを返します。
+     * Return the IRSubnetScanner which discovers IRKits by scanning addresses.
+     *
+     * @return IRSubnetScanner instance.
+     * @since 1.4.0
      */
-    public void stopBonjourDiscovery() {
-        pushDiscoveryQueue(false);
+    public IRSubnetScanner getSubnetScanner() {
+        return subnetScanner;
     }
 
-    private void _stopBonjourDiscovery() {
-        if (isProcessingBonjour) {
-            Log.e(TAG, "isProcessingBonjour is true");
-            return;
-        }
-        isProcessingBonjour = true;
-        // Do network tasks in another thread
-        new Thread(new Runnable() {
-            @Override
-            public void run() {
-                if (jmdns != null) {
-                    if (bonjourServiceListener != null) {
-                        jmdns.removeServiceListener(SERVICE_TYPE, bonjourServiceListener);
-                        bonjourServiceListener = null;
-                    }
-                    try {
-                        jmdns.close();
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                    jmdns = null;
-                }
-                if (multicastLock != null) {
-                    multicastLock.release();
-                    multicastLock = null;
-                }
-                // Stopped zeroconf probe
-                isProcessingBonjour = false;
-                nextDiscoveryQueue();
-            }
-        }).start();
+    /**
+     * <p class="ja">
+     * mDNSでの検索に使うバックエンドをセットします。既定はIRJmDNSDiscoveryBackendです。
+     * Android 4.1以降ではIRNsdDiscoveryBackendも使えます。
+     * </p>
+     *
+     * <p class="en">
+     * Set the backend used for mDNS discovery. Default is IRJmDNSDiscoveryBackend.
+     * IRNsdDiscoveryBackend is also available on Android 4.1 or later.
+     * </p>
+     *
+     * @param backend IRDiscoveryBackend
+     * @since 1.4.0
+     */
+    public void setDiscoveryBackend(IRDiscoveryBackend backend) {
+        discoveryEngine.setBackend(backend);
     }
 
     /**
      * <p class="ja">
      * IRKitから赤外線信号を送信します。ローカルネットワーク内でIRKitに接続できる場合はDevice HTTP APIが使われ、
      * Device HTTP APIが利用できない場合はInternet HTTP APIで送信します。sendSignal()が短時間に複数回
-     * 呼ばれた際は、IRKitがパニックを起こさないよう1個ずつ順に送信されます。
+     * 呼ばれた際は、IRKitがパニックを起こさないよう同じIRKitへの信号は1個ずつ順に送信されます。
+     * 異なるIRKitへの信号は互いを待たずに並行して送信されます。
      * </p>
      *
      * <p class="en">
      * Send signal via IRKit device. When sendSignal() is called multiple times in a short period
-     * of time, it will be sent one by one to prevent IRKit device panic.
+     * of time, signals for the same IRKit will be sent one by one to prevent IRKit device panic.
+     * Signals for different IRKits are sent in parallel without waiting for each other.
      * NOTE: IRKit panics when received parallel requests from local network.
      * </p>
      *
      * @param signal 送信する赤外線信号。 IR signal to be sent.
      * @param callback 結果を受け取るコールバック。 Callback for receiving the result.
+     * @return 送信を取り消すためのハンドル。取り消した場合callbackは呼ばれません。
+     *         Handle to cancel the send. callback is never called once cancelled.
      */
-    public void sendSignal(IRSignal signal, IRAPIResult callback) {
-        boolean doSendSignal = false;
-        synchronized (sendSignalQueue) {
-            sendSignalQueue.add(new SendSignalItem(signal, callback));
-            if (sendSignalQueue.size() == 1) {
-                // Do it now
-                doSendSignal = true;
+    public IRRequestHandle sendSignal(final IRSignal signal, final IRAPIResult callback) {
+        IRRequestHandle handle = new IRRequestHandle();
+        handle.run(new Runnable() {
+            @Override
+            public void run() {
+                sendScheduler.enqueue(signal, callback);
             }
-        }
-        if (doSendSignal) {
-            _sendSignal(signal, callback);
-        }
+        });
+        return handle;
     }
 
-    private void consumeNextSendSignal() {
-        SendSignalItem sendSignalItem = null;
-        synchronized (sendSignalQueue) {
-            sendSignalQueue.removeFirst();
-            sendSignalItem = sendSignalQueue.peek();
-        }
-        if (sendSignalItem != null) {
-            // Consume the next signal
-            _sendSignal(sendSignalItem.signal, sendSignalItem.callback);
+    /**
+     * <p class="ja">
+     * 複数の赤外線信号をまとめて送信します。信号はIRKitデバイスごとに1個の単位として
+     * 順番に送信され、その間に他の信号が割り込むことはありません。送信経路（ローカル
+     * ネットワークかインターネットか）はIRKitデバイスごとに1回だけ解決されます。
+     * 異なるIRKitデバイスへの信号は並行して送信されます。各信号はリスト内の順序に従い、
+     * 呼び出し時刻からその信号より前のdelaysMsを足し合わせた時刻より前には送信されません。
+     * </p>
+     *
+     * <p class="en">
+     * Send several IR signals as a batch. Signals are sent in order as a single unit per
+     * IRKit device, and no other signal is interleaved with them. The route (local network
+     * or Internet) is resolved only once per IRKit device. Signals for different IRKit
+     * devices are sent in parallel. Delays follow the order of the list: each signal is not
+     * sent before the call time plus the sum of delaysMs preceding it.
+     * </p>
+     *
+     * @param signals 送信する信号のリスト。 List of signals to be sent.
+     * @param delaysMs delaysMs[i]はsignals[i]からsignals[i + 1]までの間隔（ミリ秒）です。
+     *                 2つの信号の送信先のIRKitデバイスが異なる場合も適用されます。nullの場合は待ちません。
+     *                 delaysMs[i] is the interval in milliseconds from signals[i] to signals[i + 1].
+     *                 It applies even if the two signals are for different IRKit devices.
+     *                 If null, no wait.
+     * @param result 結果を受け取るコールバック。 Callback for receiving the result.
+     * @return 送信待ちの信号と送信中のリクエストを取り消すためのハンドル。取り消した場合resultは呼ばれません。
+     *         Handle to cancel the signals waiting to be sent and the request in flight.
+     *         result is never called once cancelled.
+     * @throws IllegalArgumentException delaysMsの長さがsignals.size() - 1でない場合。
+     *                                  If the length of delaysMs is not signals.size() - 1.
+     * @since 1.4.0
+     */
+    public IRRequestHandle sendSignals(List<IRSignal> signals, final long[] delaysMs, final IRBatchResult result) {
+        if (delaysMs != null && delaysMs.length != Math.max(0, signals.size() - 1)) {
+            throw new IllegalArgumentException("delaysMs must have signals.size() - 1 elements");
+        }
+        final IRRequestHandle handle = new IRRequestHandle();
+        final long startedAt = System.currentTimeMillis();
+        // Offset of each signal from startedAt, in list order regardless of the device
+        final long[] offsetsMs = new long[signals.size()];
+        for (int i = 1; i < signals.size(); i++) {
+            offsetsMs[i] = offsetsMs[i - 1] + (delaysMs != null ? Math.max(0, delaysMs[i - 1]) : 0);
+        }
+        final ArrayList<IRBatchResult.Step> steps = new ArrayList<>(signals.size());
+        final LinkedHashMap<String, ArrayList<IRBatchResult.Step>> stepsByDeviceId = new LinkedHashMap<>();
+        for (int i = 0; i < signals.size(); i++) {
+            IRSignal signal = signals.get(i);
+            IRBatchResult.Step step = new IRBatchResult.Step(i, signal);
+            steps.add(step);
+            if (signal == null || signal.getDeviceId() == null) {
+                step.status = IRBatchResult.Status.ERROR;
+                step.error = new IRAPIError("deviceId is null");
+                continue;
+            }
+            if (!signal.hasData()) {
+                step.status = IRBatchResult.Status.ERROR;
+                step.error = new IRAPIError("data is null");
+                continue;
+            }
+            ArrayList<IRBatchResult.Step> deviceSteps = stepsByDeviceId.get(signal.getDeviceId());
+            if (deviceSteps == null) {
+                deviceSteps = new ArrayList<>();
+                stepsByDeviceId.put(signal.getDeviceId(), deviceSteps);
+            }
+            deviceSteps.add(step);
         }
-    }
 
-    private void _sendSignal(final IRSignal signal, final IRAPIResult callback) {
-        String deviceId = signal.getDeviceId();
-        if (deviceId == null) {
-            // This shouldn't happen under normal circumstances
-            Log.e(TAG, "sendSignal: deviceId is null");
-            if (callback != null) {
-                callback.onError(new IRAPIError("deviceId is null"));
+        final AtomicInteger remainingDevices = new AtomicInteger(stepsByDeviceId.size());
+        final Runnable onDeviceDone = new Runnable() {
+            @Override
+            public void run() {
+                if (remainingDevices.decrementAndGet() == 0) {
+                    completeBatch(steps, result);
+                }
             }
-            consumeNextSendSignal();
-            return;
+        };
+        if (stepsByDeviceId.isEmpty()) {
+            completeBatch(steps, result);
+            return handle;
         }
-        final IRPeripheral peripheral = peripherals.getPeripheralByDeviceId(deviceId);
+        // Jobs enqueued under the handle are removed or aborted when it is cancelled
+        handle.run(new Runnable() {
+            @Override
+            public void run() {
+                for (Map.Entry<String, ArrayList<IRBatchResult.Step>> entry : stepsByDeviceId.entrySet()) {
+                    enqueueBatchJob(entry.getKey(), entry.getValue(), startedAt, offsetsMs, onDeviceDone);
+                }
+            }
+        });
+        return handle;
+    }
 
-        // If a peripheral is registered twice, its deviceId is overwritten.
-        // But we still try to send those signals over Internet API.
+    private void enqueueBatchJob(String deviceId, final List<IRBatchResult.Step> deviceSteps,
+                                 final long startedAt, final long[] offsetsMs, final Runnable onDeviceDone) {
+        // Resolve the route once for all steps of this device
+        final IRPeripheral peripheral = peripherals.getPeripheralByDeviceId(deviceId);
+        sendScheduler.enqueueJob(deviceId, new IRSendScheduler.Job() {
+            @Override
+            public void run(IRAPIResult done) {
+                // IRSendScheduler runs the job under the handle of this send
+                runBatchStep(deviceSteps, 0, peripheral, IRRequestHandle.current(), startedAt, offsetsMs, done);
+            }
+        }, new IRAPIResult() {
+            @Override
+            public void onSuccess() {
+                onDeviceDone.run();
+            }
 
-        final IRAPICallback<IRInternetAPIService.PostMessagesResponse> internetAPICallback = new IRAPICallback<IRInternetAPIService.PostMessagesResponse>() {
             @Override
-            public void success(IRInternetAPIService.PostMessagesResponse postMessagesResponse, Response response) {
-                if (callback != null) {
-                    callback.onSuccess();
-                }
-                consumeNextSendSignal();
+            public void onError(IRAPIError error) {
+                onDeviceDone.run();
             }
 
             @Override
-            public void failure(RetrofitError error) {
-                if (callback != null) {
-                    callback.onError(new IRAPIError(error.getLocalizedMessage()));
+            public void onTimeout() {
+                onDeviceDone.run();
+            }
+        });
+    }
+
+    /**
+     * <p class="ja">
+     * バッチのposition番目のステップを、batchStartedAtからのオフセットを待って送信し、終わったら次のステップに進みます。
+     * ステップはhandleの下で送信され、handleが取り消された後は送信しません。
+     * </p>
+     *
+     * <p class="en">
+     * Send the step at position of a batch once its offset from batchStartedAt has passed,
+     * then proceed to the next step. Steps are sent under handle, and none is sent once it is cancelled.
+     * </p>
+     */
+    private void runBatchStep(final List<IRBatchResult.Step> deviceSteps, final int position,
+                              final IRPeripheral peripheral, final IRRequestHandle handle,
+                              final long batchStartedAt, final long[] offsetsMs, final IRAPIResult done) {
+        if (isCancelled(handle)) {
+            // IRSendScheduler has already moved on to the next send
+            return;
+        }
+        if (position == deviceSteps.size()) {
+            for (IRBatchResult.Step step : deviceSteps) {
+                if (step.status != IRBatchResult.Status.SUCCESS) {
+                    done.onError(new IRAPIError("step " + step.index + " failed"));
+                    return;
                 }
-                consumeNextSendSignal();
             }
-        };
+            done.onSuccess();
+            return;
+        }
+        final IRBatchResult.Step step = deviceSteps.get(position);
+        final Runnable sendStep = new Runnable() {
+            @Override
+            public void run() {
+                if (isCancelled(handle)) {
+                    return;
+                }
+                step.startedAt = System.currentTimeMillis();
+                sendSignalThroughRoute(step.signal, peripheral, new IRAPIResult() {
+                    @Override
+                    public void onSuccess() {
+                        finishStep(IRBatchResult.Status.SUCCESS, null);
+                    }
 
-        // Try to send a message via local network
-        if ( peripheral != null && peripheral.isLocalAddressResolved() ) {
-            httpClient.setDeviceAPIEndpoint(peripheral.getDeviceAPIEndpoint());
-            httpClient.sendSignalOverLocalNetwork(signal, new IRAPIResult() {
-                @Override
-                public void onSuccess() {
-                    if (callback != null) {
-                        callback.onSuccess();
+                    @Override
+                    public void onError(IRAPIError error) {
+                        finishStep(IRBatchResult.Status.ERROR, error);
                     }
-                    consumeNextSendSignal();
-                }
 
-                @Override
-                public void onError(IRAPIError error) {
-                    // Try to send signal over Internet
-                    httpClient.sendSignalOverInternet(signal, internetAPICallback);
-                }
+                    @Override
+                    public void onTimeout() {
+                        finishStep(IRBatchResult.Status.ERROR, new IRAPIError("timeout"));
+                    }
 
+                    private void finishStep(IRBatchResult.Status status, IRAPIError error) {
+                        step.status = status;
+                        step.error = error;
+                        step.durationMs = System.currentTimeMillis() - step.startedAt;
+                        runBatchStep(deviceSteps, position + 1, peripheral, handle, batchStartedAt, offsetsMs, done);
+                    }
+                });
+            }
+        };
+        long delayMs = batchStartedAt + offsetsMs[step.index] - System.currentTimeMillis();
+        if (delayMs > 0) {
+            IRExecutorScheduler.getDefault().schedule(new Runnable() {
                 @Override
-                public void onTimeout() {
-                    peripheral.lostLocalAddress();
-                    // Try to send signal over Internet
-                    httpClient.sendSignalOverInternet(signal, internetAPICallback);
+                public void run() {
+                    IRRequestHandle.run(handle, sendStep);
                 }
-            });
-        } else {  // Local address isn't resolved
-            httpClient.sendSignalOverInternet(signal, internetAPICallback);
+            }, delayMs);
+        } else {
+            // This may be a callback of the previous step, where no handle is in effect
+            IRRequestHandle.run(handle, sendStep);
         }
     }
 
-    /**
-     * Wi-Fiに接続済みかどうかを返します。
-     * Return whether Android is connected to Wi-Fi.
+    private static void completeBatch(List<IRBatchResult.Step> steps, IRBatchResult result) {
+        boolean isSuccess = true;
+        for (IRBatchResult.Step step : steps) {
+            if (step.status != IRBatchResult.Status.SUCCESS) {
+                isSuccess = false;
+                break;
+            }
+        }
+        if (result != null) {
+            result.onComplete(steps, isSuccess);
+        }
+    }
+
+    /**
+     * <p class="ja">
+     * シーンを実行します。各ステップはシーン開始時刻から各ステップのdelayMsを足し合わせた
+     * 時刻に送信キューへ追加されるため、前のステップの送信にかかった時間で後のステップが
+     * ずれることはありません。異なるIRKitへのステップは並行して、同じIRKitへのステップは
+     * 順番に送信されます。結果のStep#startedAtは送信キューに追加した時刻です。
+     * </p>
+     *
+     * <p class="en">
+     * Run a scene. Each step is added to the send queue at the scene start time plus the sum
+     * of delayMs up to that step, so time spent on earlier sends never pushes later steps back.
+     * Steps for different IRKits run concurrently and steps for the same IRKit run serially.
+     * Step#startedAt of the result is the time the step was added to the send queue.
+     * </p>
+     *
+     * @param scene 実行するシーン。 Scene to be run.
+     * @param result 結果を受け取るコールバック。 Callback for receiving the result.
+     * @return まだ送信キューに追加されていないステップ、送信待ちのステップ、送信中のリクエストを
+     *         取り消すためのハンドル。取り消した場合resultは呼ばれません。
+     *         Handle to cancel the steps not added to the send queue yet, the steps waiting
+     *         to be sent and the request in flight. result is never called once cancelled.
+     * @since 1.4.0
+     */
+    public IRRequestHandle runScene(IRScene scene, final IRBatchResult result) {
+        final IRRequestHandle handle = new IRRequestHandle();
+        List<IRScene.Step> sceneSteps = scene.getSteps();
+        final ArrayList<IRBatchResult.Step> steps = new ArrayList<>(sceneSteps.size());
+        // Steps to be sent and their offsets from the scene start
+        final ArrayList<IRBatchResult.Step> stepsToSend = new ArrayList<>(sceneSteps.size());
+        ArrayList<Long> offsetsMs = new ArrayList<>(sceneSteps.size());
+        long offsetMs = 0;
+        for (int i = 0; i < sceneSteps.size(); i++) {
+            IRScene.Step sceneStep = sceneSteps.get(i);
+            offsetMs += Math.max(0, sceneStep.getDelayMs());
+            IRSignal signal = signals != null ? signals.getSignal(sceneStep.getSignalId()) : null;
+            if (signal != null && sceneStep.getDeviceId() != null &&
+                    !sceneStep.getDeviceId().equals(signal.getDeviceId())) {
+                signal = signal.copyForDevice(sceneStep.getDeviceId());
+            }
+            IRBatchResult.Step step = new IRBatchResult.Step(i, signal);
+            steps.add(step);
+            if (signal == null) {
+                step.status = IRBatchResult.Status.ERROR;
+                step.error = new IRAPIError("signal not found: " + sceneStep.getSignalId());
+                continue;
+            }
+            stepsToSend.add(step);
+            offsetsMs.add(offsetMs);
+        }
+        if (stepsToSend.isEmpty()) {
+            completeBatch(steps, result);
+            return handle;
+        }
+
+        final AtomicInteger remainingSteps = new AtomicInteger(stepsToSend.size());
+        final long startedAt = System.currentTimeMillis();
+        int first = 0;
+        while (first < stepsToSend.size()) {
+            // Enqueue steps due at the same time in one task to keep their order
+            int last = first;
+            while (last + 1 < stepsToSend.size() && offsetsMs.get(last + 1).equals(offsetsMs.get(first))) {
+                last++;
+            }
+            final List<IRBatchResult.Step> dueSteps = stepsToSend.subList(first, last + 1);
+            long dueAt = startedAt + offsetsMs.get(first);
+            final IRScheduler.Task task = IRExecutorScheduler.getDefault().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (handle.isCancelled()) {
+                        return;
+                    }
+                    // Sends enqueued under the handle are removed or aborted when it is cancelled
+                    handle.run(new Runnable() {
+                        @Override
+                        public void run() {
+                            for (IRBatchResult.Step step : dueSteps) {
+                                enqueueSceneStep(step, remainingSteps, steps, result);
+                            }
+                        }
+                    });
+                }
+            }, dueAt - System.currentTimeMillis());
+            handle.addCancelAction(new Runnable() {
+                @Override
+                public void run() {
+                    task.cancel();
+                }
+            });
+            first = last + 1;
+        }
+        return handle;
+    }
+
+    private void enqueueSceneStep(final IRBatchResult.Step step, final AtomicInteger remainingSteps,
+                                  final List<IRBatchResult.Step> steps, final IRBatchResult result) {
+        step.startedAt = System.currentTimeMillis();
+        sendScheduler.enqueue(step.signal, new IRAPIResult() {
+            @Override
+            public void onSuccess() {
+                finishStep(IRBatchResult.Status.SUCCESS, null);
+            }
+
+            @Override
+            public void onError(IRAPIError error) {
+                finishStep(IRBatchResult.Status.ERROR, error);
+            }
+
+            @Override
+            public void onTimeout() {
+                finishStep(IRBatchResult.Status.ERROR, new IRAPIError("timeout"));
+            }
+
+            private void finishStep(IRBatchResult.Status status, IRAPIError error) {
+                step.status = status;
+                step.error = error;
+                step.durationMs = System.currentTimeMillis() - step.startedAt;
+                if (remainingSteps.decrementAndGet() == 0) {
+                    completeBatch(steps, result);
+                }
+            }
+        });
+    }
+
+    /**
+     * 赤外線信号の送信をスケジューリングしているIRSendSchedulerを返します。
+     * IRKitデバイスごとのキューの長さや遅延の統計を取得するのに使います。
+     * Return the IRSendScheduler which schedules signal transmissions.
+     * Use it to obtain per-device queue depth and latency statistics.
+     *
+     * @return IRSendScheduler instance.
+     * @since 1.4.0
+     */
+    public IRSendScheduler getSendScheduler() {
+        return sendScheduler;
+    }
+
+    private void _sendSignal(final IRSignal signal, final IRAPIResult callback) {
+        String deviceId = signal.getDeviceId();
+        if (deviceId == null) {
+            // This shouldn't happen under normal circumstances
+            Log.e(TAG, "sendSignal: deviceId is null");
+            if (callback != null) {
+                callback.onError(new IRAPIError("deviceId is null"));
+            }
+            return;
+        }
+        IRPeripheral peripheral = peripherals.getPeripheralByDeviceId(deviceId);
+
+        // If a peripheral is registered twice, its deviceId is overwritten.
+        // But we still try to send those signals over Internet API.
+        sendSignalThroughRoute(signal, peripheral, callback);
+    }
+
+    /**
+     * <p class="ja">
+     * IRPeripheralのmodelNameとfirmwareVersionの有効期間をセットします。既定は24時間です。
+     * mDNSでIRKitが解決された際、有効期間内であればGET /で取得し直しません。
+     * Device HTTP APIのレスポンスのServerヘッダを受け取るたびに有効期間は延長されます。
+     * </p>
+     *
+     * <p class="en">
+     * Set the TTL of modelName and firmwareVersion of IRPeripheral. Default is 24 hours.
+     * When an IRKit is resolved over mDNS within the TTL, they are not fetched again with GET /.
+     * The TTL is extended every time Server header of a Device HTTP API response is received.
+     * </p>
+     *
+     * @param ttlMs 有効期間（ミリ秒）。0の場合は毎回取得します。 TTL in milliseconds. 0 to fetch every time.
+     * @since 1.4.0
+     */
+    public void setModelInfoTTLMs(long ttlMs) {
+        modelInfoTTLMs = ttlMs;
+    }
+
+    /**
+     * IRPeripheralのmodelNameとfirmwareVersionの有効期間を返します。
+     * Return the TTL of modelName and firmwareVersion of IRPeripheral.
+     *
+     * @return 有効期間（ミリ秒）。 TTL in milliseconds.
+     * @since 1.4.0
+     */
+    public long getModelInfoTTLMs() {
+        return modelInfoTTLMs;
+    }
+
+    /**
+     * 解決したIRKitのローカルアドレスを保存しているIRAddressCacheを返します。
+     * Return the IRAddressCache which persists resolved local addresses of IRKits.
+     *
+     * @return IRAddressCache instance.
+     * @since 1.4.0
+     */
+    public IRAddressCache getAddressCache() {
+        return addressCache;
+    }
+
+    /**
+     * 経路ごとの成否と応答時間を記録しているIRRouteHealthCacheを返します。
+     * Return the IRRouteHealthCache which records success and response time per route.
+     *
+     * @return IRRouteHealthCache instance.
+     * @since 1.4.0
+     */
+    public IRRouteHealthCache getRouteHealthCache() {
+        return routeHealth;
+    }
+
+    /**
+     * <p class="ja">
+     * 冪等な信号のヘッジ送信を有効にするかどうかをセットします。有効な場合、冪等な信号
+     * （IRSignal#isIdempotent()）をローカル経路で送信した際に、過去の応答時間のパーセンタイル
+     * （setHedgePercentile()）を過ぎても完了しなければインターネット経路でも送信し、先に成功した方の
+     * 結果を返します。送信済みのリクエストは取り消せないため、両方の経路から赤外線が送信されることが
+     * あります。冪等でない信号はヘッジ送信されません。既定では無効です。
+     * </p>
+     *
+     * <p class="en">
+     * Set whether idempotent-only hedging is enabled. When enabled, an idempotent signal
+     * (IRSignal#isIdempotent()) sent over the local route is also sent over the Internet
+     * route if the local send has not completed within a percentile of its historical
+     * response times (setHedgePercentile()), and the result of whichever succeeds first is
+     * returned. A request already sent cannot be withdrawn, so the signal may be emitted
+     * through both routes. Signals which are not idempotent are never hedged. Disabled by default.
+     * </p>
+     *
+     * @param enabled 有効にする場合はtrue。 True to enable.
+     * @since 1.4.0
+     */
+    public void setIdempotentHedgingEnabled(boolean enabled) {
+        isIdempotentHedgingEnabled = enabled;
+    }
+
+    /**
+     * 冪等な信号のヘッジ送信が有効かどうかを返します。
+     * Return whether idempotent-only hedging is enabled.
+     *
+     * @return 有効な場合はtrue。 True if enabled.
+     * @since 1.4.0
+     */
+    public boolean isIdempotentHedgingEnabled() {
+        return isIdempotentHedgingEnabled;
+    }
+
+    /**
+     * ヘッジ送信でインターネット経路を追加するまでの待ち時間を、ローカル経路の応答時間の何パーセンタイルにするかをセットします。既定は0.9です。
+     * Set the percentile of local response times after which a hedged send adds the Internet route. Default is 0.9.
+     *
+     * @param percentile 0から1までのパーセンタイル。 Percentile between 0 and 1.
+     * @throws IllegalArgumentException percentileが0から1の範囲外の場合。 If percentile is out of 0 to 1.
+     * @since 1.4.0
+     */
+    public void setHedgePercentile(double percentile) {
+        if (percentile < 0 || percentile > 1) {
+            throw new IllegalArgumentException("percentile must be between 0 and 1");
+        }
+        hedgePercentile = percentile;
+    }
+
+    /**
+     * IRRouteHealthCacheが選んだ経路（Device HTTP APIまたはInternet HTTP API）で信号を送信し、
+     * 失敗した場合はもう一方の経路で再送します。
+     * Send a signal over the route (Device HTTP API or Internet HTTP API) chosen by
+     * IRRouteHealthCache, and retry over the other route if it fails.
+     *
+     * @param signal 送信する信号。 Signal to be sent.
+     * @param peripheral 信号のdeviceidに対応するIRPeripheral。見つからない場合はnull。
+     *                   IRPeripheral for the deviceid of the signal, or null if not found.
+     * @param callback 結果を受け取るコールバック。 Callback for receiving the result.
+     */
+    private void sendSignalThroughRoute(final IRSignal signal, final IRPeripheral peripheral, final IRAPIResult callback) {
+        final IRRequestHandle handle = IRRequestHandle.current();
+        // Captured once, since the address may be lost or change while this send is in progress
+        final String localEndpoint = peripheral != null ? peripheral.getDeviceAPIEndpoint() : null;
+        boolean isLocalAvailable = localEndpoint != null;
+        if (routeHealth.chooseRoute(signal.getDeviceId(), isLocalAvailable) == IRRouteHealthCache.Route.LOCAL) {
+            if (isIdempotentHedgingEnabled && signal.isIdempotent()) {
+                sendIdempotentSignalHedged(signal, peripheral, localEndpoint, callback);
+                return;
+            }
+            sendSignalOverLocalRoute(signal, peripheral, localEndpoint, new IRAPIResult() {
+                @Override
+                public void onSuccess() {
+                    if (callback != null) {
+                        callback.onSuccess();
+                    }
+                }
+
+                @Override
+                public void onError(IRAPIError error) {
+                    fallBackToInternet();
+                }
+
+                @Override
+                public void onTimeout() {
+                    fallBackToInternet();
+                }
+
+                private void fallBackToInternet() {
+                    // Try to send signal over Internet
+                    runFallback(handle, new Runnable() {
+                        @Override
+                        public void run() {
+                            sendSignalOverInternetRoute(signal, callback);
+                        }
+                    });
+                }
+            });
+        } else {
+            if (isLocalAvailable && routeHealth.claimLocalProbe(signal.getDeviceId())) {
+                probeLocalRoute(signal.getDeviceId(), localEndpoint);
+            }
+            sendSignalOverInternetRoute(signal, !isLocalAvailable ? callback : new IRAPIResult() {
+                @Override
+                public void onSuccess() {
+                    if (callback != null) {
+                        callback.onSuccess();
+                    }
+                }
+
+                @Override
+                public void onError(IRAPIError error) {
+                    // The server may have queued the signal before failing, and sending it again
+                    // would toggle e.g. power twice, unless it never reached the server
+                    if (signal.isIdempotent() || error instanceof UndeliveredError) {
+                        fallBackToLocal();
+                    } else if (callback != null) {
+                        callback.onError(error);
+                    }
+                }
+
+                @Override
+                public void onTimeout() {
+                    if (signal.isIdempotent()) {
+                        fallBackToLocal();
+                    } else if (callback != null) {
+                        callback.onTimeout();
+                    }
+                }
+
+                private void fallBackToLocal() {
+                    // Internet was preferred but failed; the IRKit is still on the local network
+                    runFallback(handle, new Runnable() {
+                        @Override
+                        public void run() {
+                            sendSignalOverLocalRoute(signal, peripheral, localEndpoint, callback);
+                        }
+                    });
+                }
+            });
+        }
+    }
+
+    /**
+     * <p class="ja">
+     * handleが取り消されていなければ、handleの下でfallbackを実行します。取り消されている場合は
+     * 何もしません。取り消された送信の結果はIRSendSchedulerが破棄します。
+     * </p>
+     *
+     * <p class="en">
+     * Run fallback under handle unless handle has been cancelled, in which case nothing is done.
+     * IRSendScheduler discards the result of a cancelled send.
+     * </p>
+     */
+    private static void runFallback(IRRequestHandle handle, Runnable fallback) {
+        if (handle != null && handle.isCancelled()) {
+            return;
+        }
+        IRRequestHandle.run(handle, fallback);
+    }
+
+    private static boolean isCancelled(IRRequestHandle handle) {
+        return handle != null && handle.isCancelled();
+    }
+
+    /**
+     * <p class="ja">
+     * インターネット経路が選ばれている間に、ローカル経路が回復したかをGET /で確認します。
+     * IRKitはGET /に404を返しますが、Serverヘッダが付いていれば応答したとみなします。
+     * GET /messagesはIRKitが受信した信号を消費するため使いません。
+     * </p>
+     *
+     * <p class="en">
+     * Check with GET / whether the local route has recovered while the Internet route is chosen.
+     * IRKit returns 404 for GET /, but a response with its Server header counts as an answer.
+     * GET /messages is not used because it consumes the signal received by the IRKit.
+     * </p>
+     */
+    private void probeLocalRoute(final String deviceId, String endpoint) {
+        httpClient.getThrottledDeviceAPIService(deviceId, endpoint).getHome(new Callback<IRDeviceAPIService.GetHomeResponse>() {
+            @Override
+            public void success(IRDeviceAPIService.GetHomeResponse getHomeResponse, Response response) {
+                onProbed(response);
+            }
+
+            @Override
+            public void failure(RetrofitError error) {
+                onProbed(error.getResponse());
+            }
+
+            private void onProbed(Response response) {
+                routeHealth.recordProbeResult(deviceId, IRRouteHealthCache.Route.LOCAL,
+                        response != null && IRPeripheral.isIRKitResponse(response));
+            }
+        });
+    }
+
+    /**
+     * <p class="ja">
+     * サーバに届く前に失敗したため、信号が送信されていないことが確かなエラーです。
+     * </p>
+     *
+     * <p class="en">
+     * Error of a request which failed before reaching the server, so the signal has
+     * certainly not been sent.
+     * </p>
+     */
+    private static class UndeliveredError extends IRAPIError {
+        UndeliveredError(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * 接続の確立より前に失敗したかを返します。
+     * Return whether the request failed before a connection was established.
+     */
+    private static boolean isFailedBeforeConnect(RetrofitError error) {
+        if (error.getKind() != RetrofitError.Kind.NETWORK) {
+            return false;
+        }
+        for (Throwable cause = error.getCause(); cause != null; cause = cause.getCause()) {
+            if (cause instanceof UnknownHostException || cause instanceof ConnectException ||
+                    cause instanceof NoRouteToHostException || cause instanceof SSLHandshakeException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * <p class="ja">
+     * 経路を選んだ時点のendpointのIRKitから信号を送信します。endpointがnullの場合は何も送らずに
+     * UndeliveredErrorでcallbackのonError()を呼びます。
+     * </p>
+     *
+     * <p class="en">
+     * Send a signal from the IRKit at endpoint captured when the route was chosen. If endpoint is
+     * null, nothing is sent and onError() of callback is called with UndeliveredError.
+     * </p>
+     */
+    private void sendSignalOverLocalRoute(final IRSignal signal, final IRPeripheral peripheral, String endpoint, final IRAPIResult callback) {
+        if (endpoint == null) {
+            if (callback != null) {
+                callback.onError(new UndeliveredError("local address is not resolved"));
+            }
+            return;
+        }
+        final IRRequestHandle handle = IRRequestHandle.current();
+        final long startedAt = System.currentTimeMillis();
+        httpClient.sendSignalOverLocalNetwork(signal, endpoint, new IRAPIResult() {
+            @Override
+            public void onSuccess() {
+                routeHealth.recordResult(signal.getDeviceId(), IRRouteHealthCache.Route.LOCAL,
+                        true, System.currentTimeMillis() - startedAt);
+                if (callback != null) {
+                    callback.onSuccess();
+                }
+            }
+
+            @Override
+            public void onError(IRAPIError error) {
+                if (!isCancelled(handle)) {
+                    routeHealth.recordResult(signal.getDeviceId(), IRRouteHealthCache.Route.LOCAL,
+                            false, System.currentTimeMillis() - startedAt);
+                }
+                if (callback != null) {
+                    callback.onError(error);
+                }
+            }
+
+            @Override
+            public void onTimeout() {
+                if (isCancelled(handle)) {
+                    // Aborted by IRRequestHandle, not by the network
+                    if (callback != null) {
+                        callback.onTimeout();
+                    }
+                    return;
+                }
+                routeHealth.recordResult(signal.getDeviceId(), IRRouteHealthCache.Route.LOCAL,
+                        false, System.currentTimeMillis() - startedAt);
+                peripheral.lostLocalAddress();
+                if (callback != null) {
+                    callback.onTimeout();
+                }
+            }
+        });
+    }
+
+    private void sendSignalOverInternetRoute(final IRSignal signal, final IRAPIResult callback) {
+        sendSignalOverInternetRoute(signal, false, callback);
+    }
+
+    private void sendSignalOverInternetRoute(final IRSignal signal, boolean isImmediate, final IRAPIResult callback) {
+        final IRRequestHandle handle = IRRequestHandle.current();
+        final long startedAt = System.currentTimeMillis();
+        IRAPICallback<IRInternetAPIService.PostMessagesResponse> internetAPICallback = new IRAPICallback<IRInternetAPIService.PostMessagesResponse>() {
+            @Override
+            public void success(IRInternetAPIService.PostMessagesResponse postMessagesResponse, Response response) {
+                routeHealth.recordResult(signal.getDeviceId(), IRRouteHealthCache.Route.INTERNET,
+                        true, System.currentTimeMillis() - startedAt);
+                if (callback != null) {
+                    callback.onSuccess();
+                }
+            }
+
+            @Override
+            public void failure(RetrofitError error) {
+                if (!isCancelled(handle)) {
+                    routeHealth.recordResult(signal.getDeviceId(), IRRouteHealthCache.Route.INTERNET,
+                            false, System.currentTimeMillis() - startedAt);
+                }
+                if (callback != null) {
+                    if (isFailedBeforeConnect(error)) {
+                        callback.onError(new UndeliveredError(error.getLocalizedMessage()));
+                    } else {
+                        callback.onError(new IRAPIError(error.getLocalizedMessage()));
+                    }
+                }
+            }
+        };
+        if (isImmediate) {
+            httpClient.sendSignalOverInternetNow(signal, internetAPICallback);
+        } else {
+            httpClient.sendSignalOverInternet(signal, internetAPICallback);
+        }
+    }
+
+    /**
+     * <p class="ja">
+     * 冪等な信号をローカル経路で送信し、過去のローカル経路の応答時間のhedgePercentileを過ぎても
+     * 完了しなければインターネット経路でも送信します。先に成功した経路の結果をcallbackに渡します。
+     * どちらの経路の送信も取り消さないため、両方の経路から赤外線が送信されることがあります。
+     * 冪等でない信号には使わないでください。
+     * </p>
+     *
+     * <p class="en">
+     * Send an idempotent signal over the local route, and also over the Internet route if the
+     * local send has not completed within hedgePercentile of its historical response times.
+     * The result of the route which succeeds first is passed to callback. Neither send is
+     * withdrawn, so the signal may be emitted through both routes. Do not use this for
+     * signals which are not idempotent.
+     * </p>
+     */
+    private void sendIdempotentSignalHedged(final IRSignal signal, final IRPeripheral peripheral, String localEndpoint, final IRAPIResult callback) {
+        long hedgeDelayMs = routeHealth.getLatencyPercentileMs(signal.getDeviceId(),
+                IRRouteHealthCache.Route.LOCAL, hedgePercentile);
+        if (hedgeDelayMs < 0) {
+            hedgeDelayMs = DEFAULT_HEDGE_DELAY_MS;
+        }
+        final IRRequestHandle handle = IRRequestHandle.current();
+        final HedgedSend hedge = new HedgedSend(callback);
+        final IRAPIResult internetResult = new IRAPIResult() {
+            @Override
+            public void onSuccess() {
+                hedge.onLegSuccess();
+            }
+
+            @Override
+            public void onError(IRAPIError error) {
+                hedge.onLegFailure(error, false);
+            }
+
+            @Override
+            public void onTimeout() {
+                hedge.onLegFailure(null, true);
+            }
+        };
+        hedge.setHedgeTask(IRExecutorScheduler.getDefault().schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (!isCancelled(handle) && hedge.startInternetLeg()) {
+                    IRRequestHandle.run(handle, new Runnable() {
+                        @Override
+                        public void run() {
+                            sendSignalOverInternetRoute(signal, true, internetResult);
+                        }
+                    });
+                }
+            }
+        }, hedgeDelayMs));
+        sendSignalOverLocalRoute(signal, peripheral, localEndpoint, new IRAPIResult() {
+            @Override
+            public void onSuccess() {
+                hedge.onLegSuccess();
+            }
+
+            @Override
+            public void onError(IRAPIError error) {
+                onLocalFailure(error, false);
+            }
+
+            @Override
+            public void onTimeout() {
+                onLocalFailure(null, true);
+            }
+
+            private void onLocalFailure(IRAPIError error, boolean isTimeout) {
+                // Fall back to Internet right away unless the hedge has already started it
+                if (!isCancelled(handle) && hedge.startInternetLeg()) {
+                    IRRequestHandle.run(handle, new Runnable() {
+                        @Override
+                        public void run() {
+                            sendSignalOverInternetRoute(signal, true, internetResult);
+                        }
+                    });
+                }
+                hedge.onLegFailure(error, isTimeout);
+            }
+        });
+    }
+
+    /**
+     * 冪等な信号のヘッジ送信の状態です。callbackは最初に成功した経路か、両方が失敗した時点で1回だけ呼ばれます。
+     * State of a hedged send of an idempotent signal. callback is called only once, by the first route to succeed
+     * or when every started route has failed.
+     */
+    private static class HedgedSend {
+        private final IRAPIResult callback;
+        private IRScheduler.Task hedgeTask;
+        private boolean isInternetStarted;
+        private int runningLegs = 1;
+        private boolean isDone;
+
+        private HedgedSend(IRAPIResult callback) {
+            this.callback = callback;
+        }
+
+        private synchronized void setHedgeTask(IRScheduler.Task hedgeTask) {
+            this.hedgeTask = hedgeTask;
+        }
+
+        /**
+         * インターネット経路をまだ始めていなければtrueを返し、始めたことを記録します。
+         * Return true and mark the Internet route as started if it has not been started yet.
+         */
+        private boolean startInternetLeg() {
+            IRScheduler.Task task;
+            synchronized (this) {
+                if (isDone || isInternetStarted) {
+                    return false;
+                }
+                isInternetStarted = true;
+                runningLegs++;
+                task = hedgeTask;
+            }
+            if (task != null) {
+                task.cancel();
+            }
+            return true;
+        }
+
+        private void onLegSuccess() {
+            IRScheduler.Task task;
+            synchronized (this) {
+                if (isDone) {
+                    return;
+                }
+                isDone = true;
+                task = hedgeTask;
+            }
+            if (task != null) {
+                task.cancel();
+            }
+            if (callback != null) {
+                callback.onSuccess();
+            }
+        }
+
+        private void onLegFailure(IRAPIError error, boolean isTimeout) {
+            synchronized (this) {
+                runningLegs--;
+                if (isDone || runningLegs > 0) {
+                    return;
+                }
+                isDone = true;
+            }
+            if (callback != null) {
+                if (isTimeout) {
+                    callback.onTimeout();
+                } else {
+                    callback.onError(error);
+                }
+            }
+        }
+    }
+
+    /**
+     * Wi-Fiに接続済みかどうかを返します。
+     * Return whether Android is connected to Wi-Fi.
      *
      * @return Wi-Fiに接続済みの場合はtrue。 True if Android is connected to Wi-Fi.
      */
@@ -1511,16 +2356,6 @@ public class IRKit {
 
     // Inner classes
 
-    private static class SendSignalItem {
-        public IRSignal signal;
-        public IRAPIResult callback;
-
-        public SendSignalItem(IRSignal signal, IRAPIResult callback) {
-            this.signal = signal;
-            this.callback = callback;
-        }
-    }
-
     private static class NetworkStateChangeReceiver extends BroadcastReceiver {
         public static final String TAG = NetworkStateChangeReceiver.class.getName();
 
@@ -1535,12 +2370,21 @@ public class IRKit {
             ConnectivityManager conMan = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
             NetworkInfo netInfo = conMan.getActiveNetworkInfo();
             IRKit irkit = IRKit.sharedInstance();
+            String networkKey = irkit.getCurrentNetworkKey(netInfo);
+            if (networkKey == null || !networkKey.equals(irkit.lastNetworkKey)) {
+                // Route health measured on another network tells nothing about this one
+                irkit.routeHealth.clear();
+            }
+            irkit.lastNetworkKey = networkKey;
             if (netInfo != null && netInfo.getType() == ConnectivityManager.TYPE_WIFI) {
                 // Wi-Fi connection is available
                 irkit.startServiceDiscovery();
             } else {
                 // No Wi-Fi connection
                 irkit.stopServiceDiscovery();
+                // Sockets bound to the lost network are of no use
+                irkit.discoveryEngine.close();
+                irkit.subnetScanner.cancel();
             }
         }
     }
@@ -0,0 +1,154 @@
+package com.getirkit.irkit;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.net.nsd.NsdManager;
+import android.net.nsd.NsdServiceInfo;
+import android.os.Build;
+import android.util.Log;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.ArrayDeque;
+
+/**
+ * <p class="ja">
+ * AndroidのNsdManagerを使うIRDiscoveryBackendです。Android 4.1 (API 16) 以降で使えます。
+ * ソケットはシステムのmDNSデーモンが持つため、アプリはマルチキャストロックを取得しません。
+ * NsdManagerは同時に1個しか解決できないため、見つかったサービスは順番に解決します。
+ * </p>
+ *
+ * <p class="en">
+ * IRDiscoveryBackend using Android's NsdManager. Available on Android 4.1 (API 16) or later.
+ * Sockets are owned by the system mDNS daemon, so the app does not acquire a multicast lock.
+ * NsdManager resolves only one service at a time, so found services are resolved in turn.
+ * </p>
+ *
+ * @since 1.4.0
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+public class IRNsdDiscoveryBackend implements IRDiscoveryBackend {
+    public static final String TAG = IRNsdDiscoveryBackend.class.getSimpleName();
+
+    /**
+     * NsdManagerに渡すサービスタイプ。NsdManagerは".local."を付けない形を使います。
+     * Service type passed to NsdManager, which uses the form without ".local.".
+     */
+    private static final String NSD_SERVICE_TYPE = "_irkit._tcp.";
+
+    private NsdManager nsdManager;
+    private Listener listener;
+    private NsdManager.DiscoveryListener discoveryListener;
+    private final ArrayDeque<NsdServiceInfo> resolveQueue = new ArrayDeque<>();
+    private boolean isResolving;
+
+    @Override
+    public void open(Context context, InetAddress localAddress, Listener listener) {
+        this.listener = listener;
+        nsdManager = (NsdManager) context.getApplicationContext().getSystemService(Context.NSD_SERVICE);
+    }
+
+    @Override
+    public void resume() {
+        if (nsdManager == null || discoveryListener != null) {
+            return;
+        }
+        discoveryListener = new NsdManager.DiscoveryListener() {
+            @Override
+            public void onStartDiscoveryFailed(String serviceType, int errorCode) {
+                Log.e(TAG, "onStartDiscoveryFailed: errorCode=" + errorCode);
+            }
+
+            @Override
+            public void onStopDiscoveryFailed(String serviceType, int errorCode) {
+                Log.e(TAG, "onStopDiscoveryFailed: errorCode=" + errorCode);
+            }
+
+            @Override
+            public void onDiscoveryStarted(String serviceType) {
+            }
+
+            @Override
+            public void onDiscoveryStopped(String serviceType) {
+            }
+
+            @Override
+            public void onServiceFound(NsdServiceInfo serviceInfo) {
+                synchronized (resolveQueue) {
+                    resolveQueue.add(serviceInfo);
+                }
+                resolveNext();
+            }
+
+            @Override
+            public void onServiceLost(NsdServiceInfo serviceInfo) {
+                Listener currentListener = listener;
+                if (currentListener != null) {
+                    currentListener.onServiceLost(serviceInfo.getServiceName());
+                }
+            }
+        };
+        nsdManager.discoverServices(NSD_SERVICE_TYPE, NsdManager.PROTOCOL_DNS_SD, discoveryListener);
+    }
+
+    @Override
+    public void pause() {
+        if (nsdManager == null || discoveryListener == null) {
+            return;
+        }
+        nsdManager.stopServiceDiscovery(discoveryListener);
+        discoveryListener = null;
+        synchronized (resolveQueue) {
+            resolveQueue.clear();
+        }
+    }
+
+    @Override
+    public void close() {
+        pause();
+        nsdManager = null;
+        listener = null;
+    }
+
+    private void resolveNext() {
+        NsdServiceInfo serviceInfo;
+        NsdManager manager;
+        synchronized (resolveQueue) {
+            manager = nsdManager;
+            if (isResolving || manager == null) {
+                return;
+            }
+            serviceInfo = resolveQueue.poll();
+            if (serviceInfo == null) {
+                return;
+            }
+            isResolving = true;
+        }
+        manager.resolveService(serviceInfo, new NsdManager.ResolveListener() {
+            @Override
+            public void onResolveFailed(NsdServiceInfo serviceInfo, int errorCode) {
+                Log.e(TAG, "onResolveFailed: name=" + serviceInfo.getServiceName() + " errorCode=" + errorCode);
+                onResolveDone();
+            }
+
+            @Override
+            public void onServiceResolved(NsdServiceInfo serviceInfo) {
+                InetAddress host = serviceInfo.getHost();
+                Listener currentListener = listener;
+                if (host instanceof Inet4Address && currentListener != null) {
+                    currentListener.onServiceResolved(serviceInfo.getServiceName(), (Inet4Address) host, serviceInfo.getPort());
+                } else if (!(host instanceof Inet4Address)) {
+                    Log.e(TAG, "serviceResolved: no IPv4 address");
+                }
+                onResolveDone();
+            }
+        });
+    }
+
+    private void onResolveDone() {
+        synchronized (resolveQueue) {
+            isResolving = false;
+        }
+        resolveNext();
+    }
+}
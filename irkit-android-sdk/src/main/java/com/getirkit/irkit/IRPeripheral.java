@@ -2,23 +2,31 @@ package com.getirkit.irkit;
 
 import android.os.AsyncTask;
 import android.os.Handler;
+import android.os.Looper;
 import android.os.Parcel;
 import android.os.Parcelable;
 import android.util.Log;
 
 import com.getirkit.irkit.net.IRDeviceAPIService;
+import com.getirkit.irkit.net.IRExecutorScheduler;
 import com.getirkit.irkit.net.IRHTTPClient;
 import com.getirkit.irkit.net.IRInternetAPIService;
+import com.getirkit.irkit.net.IRRequestHandle;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.Serializable;
 import java.net.InetAddress;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.Executor;
 
 import retrofit.Callback;
 import retrofit.RetrofitError;
@@ -38,6 +46,12 @@ public class IRPeripheral implements Serializable, Parcelable {
     public transient static final String TAG = "IRPeripheral";
     public transient static final String IRKIT_MODEL_NAME = "IRKit";
 
+    /**
+     * fetchDeviceId()とfetchModelInfo()のリトライ間隔（ミリ秒）。
+     * Delay in milliseconds before fetchDeviceId() and fetchModelInfo() retry.
+     */
+    private transient static final long RETRY_DELAY_MS = 1000;
+
     /**
      * IRKitデバイスに固有のホスト名。ホスト名はIRKitをリセットしても変わりません。
      * Hostname which uniquely identifies an IRKit device. Hostname will remain unchanged over time.
@@ -74,10 +88,29 @@ public class IRPeripheral implements Serializable, Parcelable {
      */
     private String firmwareVersion;
 
+    /**
+     * modelNameとfirmwareVersionを最後にServerヘッダから取得した時刻（エポックミリ秒）。未取得の場合は0。
+     * Time in epoch milliseconds when modelName and firmwareVersion were last obtained from
+     * Server header, or 0 if never.
+     */
+    private long modelInfoUpdatedAt;
+
     // transient == prevent the field from serializing
     private transient InetAddress host;
     private transient int port;
-    private transient boolean isFetchingDeviceId = false;
+    private transient volatile boolean isFetchingDeviceId = false;
+
+    /**
+     * 実行中のfetchDeviceId()のハンドル。
+     * Handle of fetchDeviceId() in progress.
+     */
+    private transient IRRequestHandle fetchDeviceIdHandle;
+
+    /**
+     * このIRPeripheralをインデックスに登録しているIRPeripherals。hostnameまたはdeviceIdが変わると通知されます。
+     * IRPeripherals whose index holds this peripheral. Notified when hostname or deviceId changes.
+     */
+    private transient IRIndexOwners indexOwners;
 
     /**
      * IRKitをmDNSで発見し、自動設定を現在待機中の場合のみtrue。
@@ -90,6 +123,19 @@ public class IRPeripheral implements Serializable, Parcelable {
         return "IRPeripheral[hostname=" + hostname + ";deviceId=" + deviceId + ";customizedName=" + customizedName + ";modelName=" + modelName + ";firmwareVersion=" + firmwareVersion + ";host=" + host + ";port=" + port + "]";
     }
 
+    /**
+     * <p class="ja">
+     * fetchDeviceId()とfetchModelInfo()の結果を受け取るインタフェースです。
+     * すべてのメソッドはsetCallbackExecutor()でセットしたExecutorで呼ばれます。
+     * 既定ではメインスレッドで呼ばれるため、ビューを直接操作できます。
+     * </p>
+     *
+     * <p class="en">
+     * Interface to receive results of fetchDeviceId() and fetchModelInfo().
+     * Every method is called on the Executor set by setCallbackExecutor(). By default
+     * it is called on the main thread, so views can be touched directly.
+     * </p>
+     */
     public interface IRPeripheralListener {
         void onErrorFetchingDeviceId(String message);
         void onDeviceIdStatusChange();
@@ -101,6 +147,127 @@ public class IRPeripheral implements Serializable, Parcelable {
     // listener won't be packed in a Parcelable since it's transient
     private transient IRPeripheralListener listener;
 
+    /**
+     * IRPeripheralListenerを呼ぶExecutor。nullの場合はメインスレッドで呼びます。
+     * Executor which calls IRPeripheralListener. If null, it is called on the main thread.
+     */
+    private transient static volatile Executor callbackExecutor;
+
+    /**
+     * メインスレッドで実行するExecutorです。メインスレッドから呼ばれた場合はその場で実行します。
+     * Executor which runs on the main thread. Runs in place if called from the main thread.
+     */
+    private static class MainThreadExecutor implements Executor {
+        private static final MainThreadExecutor INSTANCE = new MainThreadExecutor();
+        private final Handler handler = new Handler(Looper.getMainLooper());
+
+        @Override
+        public void execute(Runnable runnable) {
+            if (Looper.myLooper() == Looper.getMainLooper()) {
+                runnable.run();
+            } else {
+                handler.post(runnable);
+            }
+        }
+    }
+
+    /**
+     * <p class="ja">
+     * IRPeripheralListenerのコールバックを呼ぶExecutorをセットします。リトライの待ち時間や
+     * 通信はSDKのスレッドで行われ、コールバックだけがこのExecutorに渡されます。
+     * nullをセットすると既定のメインスレッドに戻ります。
+     * </p>
+     *
+     * <p class="en">
+     * Set the Executor which calls back IRPeripheralListener. Delays before retries and
+     * network traffic run on SDK threads, and only the callbacks are handed to this Executor.
+     * Set null to restore the default, which is the main thread.
+     * </p>
+     *
+     * @param executor コールバックを呼ぶExecutor。 Executor which runs the callbacks.
+     * @since 1.4.0
+     */
+    public static void setCallbackExecutor(Executor executor) {
+        callbackExecutor = executor;
+    }
+
+    /**
+     * IRPeripheralListenerのコールバックを呼ぶExecutorを返します。
+     * Return the Executor which calls back IRPeripheralListener.
+     *
+     * @return Executor
+     * @since 1.4.0
+     */
+    public static Executor getCallbackExecutor() {
+        Executor executor = callbackExecutor;
+        return executor != null ? executor : MainThreadExecutor.INSTANCE;
+    }
+
+    private void notifyErrorFetchingDeviceId(final String message) {
+        final IRPeripheralListener currentListener = listener;
+        if (currentListener == null) {
+            return;
+        }
+        getCallbackExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                currentListener.onErrorFetchingDeviceId(message);
+            }
+        });
+    }
+
+    private void notifyDeviceIdStatusChange() {
+        final IRPeripheralListener currentListener = listener;
+        if (currentListener == null) {
+            return;
+        }
+        getCallbackExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                currentListener.onDeviceIdStatusChange();
+            }
+        });
+    }
+
+    private void notifyFetchDeviceIdSuccess() {
+        final IRPeripheralListener currentListener = listener;
+        if (currentListener == null) {
+            return;
+        }
+        getCallbackExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                currentListener.onFetchDeviceIdSuccess();
+            }
+        });
+    }
+
+    private void notifyFetchModelInfoSuccess() {
+        final IRPeripheralListener currentListener = listener;
+        if (currentListener == null) {
+            return;
+        }
+        getCallbackExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                currentListener.onFetchModelInfoSuccess();
+            }
+        });
+    }
+
+    private void notifyErrorFetchingModelInfo(final String message) {
+        final IRPeripheralListener currentListener = listener;
+        if (currentListener == null) {
+            return;
+        }
+        getCallbackExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                currentListener.onErrorFetchingModelInfo(message);
+            }
+        });
+    }
+
     public IRPeripheralListener getListener() {
         return listener;
     }
@@ -119,6 +286,7 @@ public class IRPeripheral implements Serializable, Parcelable {
 
     public void setHostname(String hostname) {
         this.hostname = hostname;
+        notifyKeyChanged();
     }
 
     public String getCustomizedName() {
@@ -147,6 +315,7 @@ public class IRPeripheral implements Serializable, Parcelable {
 
     public void setDeviceId(String deviceId) {
         this.deviceId = deviceId;
+        notifyKeyChanged();
     }
 
     public boolean hasModelInfo() {
@@ -219,12 +388,21 @@ public class IRPeripheral implements Serializable, Parcelable {
      * modelName and firmwareVersion may be updated.
      *
      * @param server Serverヘッダの値。 Server header value.
-     * @return modelNameまたはfirmwareVersionの値が更新された場合はtrue。
-     *         True if modelName or firmwareVersion has modified.
+     * @return modelNameまたはfirmwareVersionの値が更新されたか、保存すべき取得時刻が更新された場合はtrue。
+     *         True if modelName or firmwareVersion has modified, or the time they were obtained
+     *         needs to be saved.
      */
     public boolean storeServerHeaderValue(String server) {
         Map<String, String> map = parseServerHeaderValue(server);
         boolean isModified = false;
+        if (!map.isEmpty()) {
+            long now = System.currentTimeMillis();
+            // Persist the refresh at most about once per TTL; keep it in memory otherwise
+            if (now - modelInfoUpdatedAt >= IRKit.sharedInstance().getModelInfoTTLMs() / 2) {
+                isModified = true;
+            }
+            modelInfoUpdatedAt = now;
+        }
         String fetchedModelName = map.get("modelName");
         if (fetchedModelName != null) {
             if (modelName == null || !modelName.equals(fetchedModelName)) {
@@ -281,6 +459,46 @@ public class IRPeripheral implements Serializable, Parcelable {
         return false;
     }
 
+    /**
+     * Device HTTP APIのレスポンスのServerヘッダがIRKitを示しているかどうかを返します。
+     * Return whether Server header of a Device HTTP API response denotes IRKit.
+     *
+     * @param response Response object
+     * @return IRKitの場合はtrue。 True if it is IRKit.
+     */
+    static boolean isIRKitResponse(Response response) {
+        for (Header header : response.getHeaders()) {
+            String name = header.getName();
+            if (name != null && name.equalsIgnoreCase("server") && header.getValue() != null) {
+                String modelName = parseServerHeaderValue(header.getValue()).get("modelName");
+                if (IRKIT_MODEL_NAME.equals(modelName)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * <p class="ja">
+     * modelNameとfirmwareVersionが有効期間（IRKit#setModelInfoTTLMs()）内に取得されたかどうかを返します。
+     * Device HTTP APIのレスポンスのServerヘッダからも更新されるため、信号を送信していれば通常は有効です。
+     * </p>
+     *
+     * <p class="en">
+     * Return whether modelName and firmwareVersion were obtained within the TTL
+     * (IRKit#setModelInfoTTLMs()). They are also refreshed from Server header of Device HTTP API
+     * responses, so they are usually fresh while signals are being sent.
+     * </p>
+     *
+     * @return 有効期間内であればtrue。 True if within the TTL.
+     * @since 1.4.0
+     */
+    public boolean isModelInfoFresh() {
+        return modelName != null &&
+                System.currentTimeMillis() - modelInfoUpdatedAt < IRKit.sharedInstance().getModelInfoTTLMs();
+    }
+
     /**
      * modelNameとfirmwareVersionを取得します。
      * Fetch modelName and firmwareVersion.
@@ -298,20 +516,15 @@ public class IRPeripheral implements Serializable, Parcelable {
     public void fetchModelInfo(final int retryCount) {
         if (!this.isLocalAddressResolved()) {
             Log.e(TAG, "fetchModelInfo: local address isn't resolved");
-            if (listener != null) {
-                listener.onErrorFetchingModelInfo("network error");
-            }
+            notifyErrorFetchingModelInfo("network error");
             return;
         }
         if (retryCount >= 3) {
             Log.e(TAG, "fetchModelInfo: exceeded max retry count");
-            if (listener != null) {
-                listener.onErrorFetchingModelInfo("error");
-            }
+            notifyErrorFetchingModelInfo("error");
             return;
         }
         IRHTTPClient httpClient = IRKit.sharedInstance().getHTTPClient();
-        httpClient.setDeviceAPIEndpoint("http://" + this.host.getHostAddress() + ":" + this.port);
         httpClient.getThrottledDeviceAPIService(this).getHome(new Callback<IRDeviceAPIService.GetHomeResponse>() {
             @Override
             public void success(IRDeviceAPIService.GetHomeResponse getHomeResponse, Response response) {
@@ -320,30 +533,25 @@ public class IRPeripheral implements Serializable, Parcelable {
                 if (storeResponseHeaders(response)) {
                     IRKit.sharedInstance().peripherals.save();
                 }
-                if (listener != null) {
-                    listener.onFetchModelInfoSuccess();
-                }
+                notifyFetchModelInfoSuccess();
             }
 
             @Override
             public void failure(RetrofitError error) {
                 if (error == null || error.getResponse() == null) {
                     Log.e(TAG, "fetchModelInfo failure: error is null; retrying");
-                    // We can use a Handler because Retrofit callback is executed on the UI thread.
-                    new Handler().postDelayed(new Runnable() {
+                    IRExecutorScheduler.getDefault().schedule(new Runnable() {
                         @Override
                         public void run() {
                             fetchModelInfo(retryCount + 1);
                         }
-                    }, 1000);
+                    }, RETRY_DELAY_MS);
                 } else {
                     // fetchModelInfo success
                     if (storeResponseHeaders(error.getResponse())) {
                         IRKit.sharedInstance().peripherals.save();
                     }
-                    if (listener != null) {
-                        listener.onFetchModelInfoSuccess();
-                    }
+                    notifyFetchModelInfoSuccess();
                 }
             }
         });
@@ -353,10 +561,33 @@ public class IRPeripheral implements Serializable, Parcelable {
      * POST /keys を呼んでdeviceidを取得します。
      * Fetch deviceid by calling POST /keys.
      *
+     * @return 取得を取り消すためのハンドル。既に取得中の場合はそのハンドル。
+     *         Handle to cancel fetching, or the handle of the fetch already in progress.
      * @see <a href="http://getirkit.com/#toc_3" target="_top">POST /keys</a>
      */
-    public void fetchDeviceId() {
-        fetchDeviceId(0);
+    public IRRequestHandle fetchDeviceId() {
+        final IRRequestHandle handle;
+        synchronized (this) {
+            if (isFetchingDeviceId && fetchDeviceIdHandle != null) {
+                return fetchDeviceIdHandle;
+            }
+            handle = fetchDeviceIdHandle = new IRRequestHandle();
+        }
+        handle.addCancelAction(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (IRPeripheral.this) {
+                    if (fetchDeviceIdHandle != handle) {
+                        return;
+                    }
+                    fetchDeviceIdHandle = null;
+                }
+                // Requests removed from the queue never call back
+                isFetchingDeviceId = false;
+            }
+        });
+        fetchDeviceId(0, handle);
+        return handle;
     }
 
     /**
@@ -364,50 +595,58 @@ public class IRPeripheral implements Serializable, Parcelable {
      * Fetch deviceid by calling POST /keys.
      *
      * @param retryCount 現在のリトライ数。 Current retry count.
+     * @param handle fetchDeviceId()のハンドル。 Handle of fetchDeviceId().
      * @see <a href="http://getirkit.com/#toc_3" target="_top">POST /keys</a>
      */
-    private void fetchDeviceId(final int retryCount) {
+    private void fetchDeviceId(final int retryCount, final IRRequestHandle handle) {
+        if (handle.isCancelled()) {
+            return;
+        }
         if (!isLocalAddressResolved()) {
             Log.e(TAG, "fetchDeviceId: local address isn't resolved");
-            if (listener != null) {
-                isFetchingDeviceId = false;
-                listener.onErrorFetchingDeviceId("network error");
-            }
+            isFetchingDeviceId = false;
+            notifyErrorFetchingDeviceId("network error");
             return;
         }
         if (retryCount >= 3) {
             Log.e(TAG, "fetchDeviceId exceeded max retry count");
-            if (listener != null) {
-                isFetchingDeviceId = false;
-                listener.onErrorFetchingDeviceId("network error");
-            }
+            isFetchingDeviceId = false;
+            notifyErrorFetchingDeviceId("network error");
             return;
         }
         if (isFetchingDeviceId) {  // already fetching device id
             return;
         }
         isFetchingDeviceId = true;
-        if (listener != null) {
-            listener.onDeviceIdStatusChange();
-        }
+        notifyDeviceIdStatusChange();
+        handle.run(new Runnable() {
+            @Override
+            public void run() {
+                postKeys(retryCount, handle);
+            }
+        });
+    }
+
+    private void postKeys(final int retryCount, final IRRequestHandle handle) {
         IRHTTPClient httpClient = IRHTTPClient.sharedInstance();
-        httpClient.setDeviceAPIEndpoint("http://" + this.host.getHostAddress() + ":" + this.port);
         TypedInput emptyBody = new TypedString("");
         httpClient.getThrottledDeviceAPIService(this).postKeys(emptyBody, new Callback<IRDeviceAPIService.PostKeysResponse>() {
             @Override
             public void success(IRDeviceAPIService.PostKeysResponse postKeysResponse, Response response) {
+                if (handle.isCancelled()) {
+                    return;
+                }
                 if (postKeysResponse == null) {
                     // Retry
                     Log.e(TAG, "postKeysResponse is null; retrying");
                     isFetchingDeviceId = false;
 
-                    // We can use a Handler because Retrofit callback is executed on the UI thread.
-                    new Handler().postDelayed(new Runnable() {
+                    IRExecutorScheduler.getDefault().schedule(new Runnable() {
                         @Override
                         public void run() {
-                            fetchDeviceId(retryCount + 1);
+                            fetchDeviceId(retryCount + 1, handle);
                         }
-                    }, 1000);
+                    }, RETRY_DELAY_MS);
                     return;
                 }
 
@@ -415,44 +654,59 @@ public class IRPeripheral implements Serializable, Parcelable {
                     IRKit.sharedInstance().peripherals.save();
                 }
 
-                HashMap<String, String> params = new HashMap<>();
+                final HashMap<String, String> params = new HashMap<>();
                 params.put("clienttoken", postKeysResponse.clienttoken);
                 params.put("clientkey", IRHTTPClient.sharedInstance().getClientKey());
-                IRInternetAPIService internetAPIService = IRHTTPClient.sharedInstance().getInternetAPIService();
-                internetAPIService.postKeys(params, new Callback<IRInternetAPIService.PostKeysResponse>() {
+                handle.run(new Runnable() {
                     @Override
-                    public void success(IRInternetAPIService.PostKeysResponse postKeysResponse, Response response) {
-                        // Assigned a device id
-                        IRPeripheral.this.setDeviceId(postKeysResponse.deviceid);
-                        IRKit.sharedInstance().peripherals.save();
-                        if (listener != null) {
-                            listener.onFetchDeviceIdSuccess();
-                        }
-                        isFetchingDeviceId = false;
-                    }
-
-                    @Override
-                    public void failure(RetrofitError error) {
-                        Log.e(TAG, "internet postKeys failure: " + error.getMessage());
-                        isFetchingDeviceId = false;
+                    public void run() {
+                        registerClientToken(params, handle);
                     }
                 });
             }
 
             @Override
             public void failure(RetrofitError error) {
+                if (handle.isCancelled()) {
+                    return;
+                }
                 // Retry
                 Log.w(TAG, "local postkeys failure: message=" + error.getMessage() +
                         " kind=" + error.getKind() + "; retrying");
                 isFetchingDeviceId = false;
 
-                // We can use a Handler because Retrofit callback is executed on the UI thread.
-                new Handler().postDelayed(new Runnable() {
+                IRExecutorScheduler.getDefault().schedule(new Runnable() {
                     @Override
                     public void run() {
-                        fetchDeviceId(retryCount + 1);
+                        fetchDeviceId(retryCount + 1, handle);
                     }
-                }, 1000);
+                }, RETRY_DELAY_MS);
+            }
+        });
+    }
+
+    private void registerClientToken(HashMap<String, String> params, final IRRequestHandle handle) {
+        IRInternetAPIService internetAPIService = IRHTTPClient.sharedInstance().getInternetAPIService();
+        internetAPIService.postKeys(params, new Callback<IRInternetAPIService.PostKeysResponse>() {
+            @Override
+            public void success(IRInternetAPIService.PostKeysResponse postKeysResponse, Response response) {
+                if (handle.isCancelled()) {
+                    return;
+                }
+                // Assigned a device id
+                IRPeripheral.this.setDeviceId(postKeysResponse.deviceid);
+                IRKit.sharedInstance().peripherals.save();
+                isFetchingDeviceId = false;
+                notifyFetchDeviceIdSuccess();
+            }
+
+            @Override
+            public void failure(RetrofitError error) {
+                if (handle.isCancelled()) {
+                    return;
+                }
+                Log.e(TAG, "internet postKeys failure: " + error.getMessage());
+                isFetchingDeviceId = false;
             }
         });
     }
@@ -557,6 +811,7 @@ public class IRPeripheral implements Serializable, Parcelable {
     public void lostLocalAddress() {
         this.host = null;
         this.port = 0;
+        IRKit.sharedInstance().getAddressCache().remove(this);
     }
 
     public JSONObject toJSONObject() {
@@ -575,6 +830,76 @@ public class IRPeripheral implements Serializable, Parcelable {
         return obj;
     }
 
+    /**
+     * このIRPeripheralをインデックスに登録したIRPeripheralsを追加します。
+     * Add IRPeripherals whose index holds this peripheral.
+     *
+     * @param invalidator IRPeripheralsのインデックスを無効にするInvalidator。 Invalidator of the index of IRPeripherals.
+     */
+    void addIndexOwner(IRIndexOwners.Invalidator invalidator) {
+        IRIndexOwners owners;
+        synchronized (this) {
+            if (indexOwners == null) {
+                indexOwners = new IRIndexOwners();
+            }
+            owners = indexOwners;
+        }
+        owners.add(invalidator);
+    }
+
+    private void notifyKeyChanged() {
+        IRIndexOwners owners;
+        synchronized (this) {
+            owners = indexOwners;
+        }
+        if (owners != null) {
+            owners.keyChanged();
+        }
+    }
+
+    /**
+     * 保存用のバイナリレコードに変換します。
+     * Encode this peripheral into a binary record for persistence.
+     *
+     * @return バイナリレコード。 Binary record.
+     * @throws IOException エンコードに失敗した場合。 If encoding failed.
+     */
+    byte[] toRecord() throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(baos);
+        IRRecordFile.writeString(out, hostname);
+        IRRecordFile.writeString(out, customizedName);
+        out.writeLong(foundDate != null ? foundDate.getTime() : -1);
+        IRRecordFile.writeString(out, deviceId);
+        IRRecordFile.writeString(out, modelName);
+        IRRecordFile.writeString(out, firmwareVersion);
+        out.writeLong(modelInfoUpdatedAt);
+        out.close();
+        return baos.toByteArray();
+    }
+
+    /**
+     * toRecord()で作成されたバイナリレコードからIRPeripheralを作成します。
+     * Create an IRPeripheral from a binary record created by toRecord().
+     *
+     * @param record バイナリレコード。 Binary record.
+     * @return IRPeripheral
+     * @throws IOException レコードが壊れている場合。 If the record is corrupted.
+     */
+    static IRPeripheral fromRecord(byte[] record) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        IRPeripheral peripheral = new IRPeripheral();
+        peripheral.hostname = IRRecordFile.readString(in);
+        peripheral.customizedName = IRRecordFile.readString(in);
+        long foundTime = in.readLong();
+        peripheral.foundDate = foundTime != -1 ? new Date(foundTime) : null;
+        peripheral.deviceId = IRRecordFile.readString(in);
+        peripheral.modelName = IRRecordFile.readString(in);
+        peripheral.firmwareVersion = IRRecordFile.readString(in);
+        peripheral.modelInfoUpdatedAt = in.readLong();
+        return peripheral;
+    }
+
     @Override
     public int describeContents() {
         return 0;
@@ -591,6 +916,7 @@ public class IRPeripheral implements Serializable, Parcelable {
         out.writeSerializable(host);
         out.writeInt(port);
         out.writeByte((byte) (isFetchingDeviceId ? 1 : 0));
+        out.writeLong(modelInfoUpdatedAt);
     }
 
     public static final Creator<IRPeripheral> CREATOR = new Creator<IRPeripheral>() {
@@ -615,5 +941,6 @@ public class IRPeripheral implements Serializable, Parcelable {
         host = (InetAddress) in.readSerializable();
         port = in.readInt();
         isFetchingDeviceId = in.readByte() != 0;
+        modelInfoUpdatedAt = in.readLong();
     }
 }
@@ -6,11 +6,12 @@ import android.util.Log;
 import org.json.JSONArray;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 
 /**
  * IRPeripheralを格納するArrayListです。
@@ -23,6 +24,94 @@ public class IRPeripherals extends ArrayList<IRPeripheral> {
     public static final String TAG = "IRPeripherals";
     public static final String PREFS_KEY = "peripherals";
 
+    /**
+     * データを保存するファイル名です。
+     * Name of the file which holds the data.
+     */
+    public static final String FILENAME = "peripherals.dat";
+
+    // Indexes for lookups. They are rebuilt when the list or a key of a peripheral
+    // has changed in a way that add() can't keep track of.
+    private transient HashMap<String, IRPeripheral> peripheralsByDeviceId;
+    private transient HashMap<String, IRPeripheral> peripheralsByHostname;
+    private transient int indexedModCount;
+    private transient IRIndexOwners.Invalidator indexInvalidator;
+
+    @Override
+    public synchronized boolean add(IRPeripheral peripheral) {
+        boolean isIndexValid = isIndexValid();
+        super.add(peripheral);
+        if (isIndexValid) {
+            addToIndex(peripheral);
+            indexedModCount = modCount;
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized IRPeripheral set(int index, IRPeripheral peripheral) {
+        // ArrayList#set doesn't change modCount
+        peripheralsByDeviceId = null;
+        return super.set(index, peripheral);
+    }
+
+    private boolean isIndexValid() {
+        return peripheralsByDeviceId != null && indexedModCount == modCount;
+    }
+
+    /**
+     * IRPeripheralのhostnameまたはdeviceIdが変わった際にインデックスを無効にするInvalidatorを返します。
+     * Return the Invalidator which invalidates the indexes when hostname or deviceId of a peripheral changes.
+     */
+    private IRIndexOwners.Invalidator getIndexInvalidator() {
+        if (indexInvalidator == null) {
+            // Created lazily since transient fields are null after deserialization
+            indexInvalidator = new IRIndexOwners.Invalidator() {
+                @Override
+                void invalidate() {
+                    synchronized (IRPeripherals.this) {
+                        peripheralsByDeviceId = null;
+                    }
+                }
+            };
+        }
+        return indexInvalidator;
+    }
+
+    private void addToIndex(IRPeripheral peripheral) {
+        if (peripheral == null) {
+            return;
+        }
+        peripheral.addIndexOwner(getIndexInvalidator());
+        String deviceId = peripheral.getDeviceId();
+        if (deviceId != null && !peripheralsByDeviceId.containsKey(deviceId)) {
+            peripheralsByDeviceId.put(deviceId, peripheral);
+        }
+        String hostname = peripheral.getHostname();
+        if (hostname != null) {
+            hostname = hostname.toLowerCase();
+            if (!peripheralsByHostname.containsKey(hostname)) {
+                peripheralsByHostname.put(hostname, peripheral);
+            }
+        }
+    }
+
+    /**
+     * 必要な場合はインデックスを作り直します。
+     * Rebuild the indexes if needed.
+     */
+    private void ensureIndex() {
+        if (isIndexValid()) {
+            return;
+        }
+        peripheralsByDeviceId = new HashMap<>();
+        peripheralsByHostname = new HashMap<>();
+        for (IRPeripheral peripheral : this) {
+            addToIndex(peripheral);
+        }
+        indexedModCount = modCount;
+    }
+
     /**
      * hostnameからIRPeripheralインスタンスを作成して追加します。
      * Create new IRPeripheral instance from hostname then add it.
@@ -47,16 +136,12 @@ public class IRPeripherals extends ArrayList<IRPeripheral> {
      * @return 一致したIRPeripheralインスタンス。一致するものがなかった場合はnull。
      *         Matched IRPeripheral instance, or null if not matched.
      */
-    public IRPeripheral getPeripheralByDeviceId(String deviceId) {
-        for (IRPeripheral peripheral : this) {
-            if (peripheral != null) {
-                String _deviceId = peripheral.getDeviceId();
-                if (_deviceId != null && _deviceId.equals(deviceId)) {
-                    return peripheral;
-                }
-            }
+    public synchronized IRPeripheral getPeripheralByDeviceId(String deviceId) {
+        if (deviceId == null) {
+            return null;
         }
-        return null;
+        ensureIndex();
+        return peripheralsByDeviceId.get(deviceId);
     }
 
     /**
@@ -74,65 +159,103 @@ public class IRPeripherals extends ArrayList<IRPeripheral> {
      * @return 一致したIRPeripheralインスタンス。一致するものがなかった場合はnull。
      *         Matched IRPeripheral instance, or null if not matched.
      */
-    public IRPeripheral getPeripheral(String name) {
+    public synchronized IRPeripheral getPeripheral(String name) {
         if (name == null) {
             return null;
         }
-        name = name.toLowerCase();
-        for (IRPeripheral peripheral : this) {
-            if (peripheral.getHostname().toLowerCase().equals(name)) {
-                return peripheral;
-            }
-        }
-        return null;
+        ensureIndex();
+        return peripheralsByHostname.get(name.toLowerCase());
     }
 
     /**
-     * SharedPreferencesにデータを保存します。
-     * Save data to SharedPreferences.
+     * データをファイルに保存します。
+     * Save data to the file.
      */
     public void save() {
-        String serializedStr;
+        ArrayList<byte[]> records = new ArrayList<>(this.size());
         try {
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            ObjectOutputStream oos = new ObjectOutputStream(baos);
-            oos.writeObject(this);
-            oos.close();
-            serializedStr = Base64.encodeToString(baos.toByteArray(), Base64.DEFAULT);
+            for (IRPeripheral peripheral : this) {
+                records.add(peripheral.toRecord());
+            }
+            getRecordFile().write(records);
         } catch (IOException ex) {
             ex.printStackTrace();
             return;
         }
-        IRKit.sharedInstance().savePreference(PREFS_KEY, serializedStr);
+        IRKit.sharedInstance().requestBackup();
     }
 
     /**
-     * SharedPreferencesからこのインスタンスにデータを読み込みます。
-     * Load data from SharedPreferences into this instance.
+     * <p class="ja">
+     * ファイルからこのインスタンスにデータを読み込みます。ファイルが存在せず、
+     * 以前のバージョンでSharedPreferencesに保存したデータがある場合は、
+     * それを読み込んでファイルに移行します。IRAddressCacheに保存されたローカルアドレスを
+     * 復元するため、mDNSでIRKitが再び解決される前からローカルネットワークで送信できます。
+     * </p>
+     *
+     * <p class="en">
+     * Load data from the file into this instance. If the file does not exist
+     * and there is data saved to SharedPreferences by an older version,
+     * it is loaded and migrated to the file.
+     * Local addresses saved in IRAddressCache are restored, so that signals can
+     * be sent on the local network before mDNS resolves the IRKits again.
+     * </p>
      */
     public void load() {
         this.clear();
 
-        String jsonStr = IRKit.sharedInstance().getPreference(PREFS_KEY);
-        if (jsonStr != null) {
+        IRRecordFile recordFile = getRecordFile();
+        if (recordFile.exists()) {
             try {
-                byte[] data = Base64.decode(jsonStr, Base64.DEFAULT);
-                ObjectInputStream ois = new ObjectInputStream(
-                        new ByteArrayInputStream(data)
-                );
-                IRPeripherals peripherals = (IRPeripherals)ois.readObject();
-                for (Object obj : peripherals) {
-                    IRPeripheral peripheral = (IRPeripheral)obj;
-                    this.add(peripheral);
+                List<byte[]> records = recordFile.read();
+                for (byte[] record : records) {
+                    this.add(IRPeripheral.fromRecord(record));
                 }
-                ois.close();
-            } catch (Exception ex) {
+            } catch (IOException ex) {
                 Log.e(TAG, "Failed to load peripherals");
                 ex.printStackTrace();
             }
+        } else if (loadLegacyPreference()) {
+            this.save();
+            IRKit.sharedInstance().removePreference(PREFS_KEY);
+        }
+        IRKit.sharedInstance().getAddressCache().restore(this);
+    }
+
+    /**
+     * 以前のバージョンでSharedPreferencesに保存されたデータを読み込みます。
+     * Load data saved to SharedPreferences by an older version.
+     *
+     * @return データを読み込めた場合はtrue。 True if data has been loaded.
+     */
+    private boolean loadLegacyPreference() {
+        String jsonStr = IRKit.sharedInstance().getPreference(PREFS_KEY);
+        if (jsonStr == null) {
+            return false;
+        }
+        try {
+            byte[] data = Base64.decode(jsonStr, Base64.DEFAULT);
+            ObjectInputStream ois = new ObjectInputStream(
+                    new ByteArrayInputStream(data)
+            );
+            IRPeripherals peripherals = (IRPeripherals)ois.readObject();
+            for (Object obj : peripherals) {
+                IRPeripheral peripheral = (IRPeripheral)obj;
+                this.add(peripheral);
+            }
+            ois.close();
+            return true;
+        } catch (Exception ex) {
+            Log.e(TAG, "Failed to load peripherals");
+            ex.printStackTrace();
+            return false;
         }
     }
 
+    private IRRecordFile getRecordFile() {
+        return new IRRecordFile(new File(IRKit.sharedInstance().getContext().getFilesDir(), FILENAME));
+    }
+
     /**
      * JSONArrayに変換したものを返します。
      * Return JSONArray representation.
@@ -0,0 +1,183 @@
+package com.getirkit.irkit;
+
+import com.getirkit.irkit.net.IRExecutorScheduler;
+import com.getirkit.irkit.net.IRScheduler;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.WeakHashMap;
+
+/**
+ * <p class="ja">
+ * mDNSで解決されたIRKitへの問い合わせ（fetchDeviceId()とfetchModelInfo()）をまとめて実行するスケジューラです。
+ * 待ち時間はSDK共有のIRSchedulerで計るためスレッドを作りません。同じIRPeripheralへの問い合わせは
+ * 1個にまとめられ、1回に開始する問い合わせの数と待機できる問い合わせの数には上限があります。
+ * 多数のIRKitがあるネットワークでmDNSの告知が続けて届いても、問い合わせは少しずつ開始されます。
+ * </p>
+ *
+ * <p class="en">
+ * Scheduler which runs follow-up probes (fetchDeviceId() and fetchModelInfo()) to IRKits
+ * resolved over mDNS in batches. Delays are measured on the IRScheduler shared across the SDK,
+ * so no thread is created. Probes for the same IRPeripheral are merged into one, and both the
+ * number of probes started at a time and the number of pending probes are bounded. Even when a
+ * burst of mDNS announcements arrives on a network with many IRKits, probes start a few at a time.
+ * </p>
+ */
+class IRProbeScheduler {
+    public static final String TAG = IRProbeScheduler.class.getSimpleName();
+
+    /**
+     * 問い合わせの種類です。DEVICE_IDはMODEL_INFOより優先されます。
+     * Kind of probe. DEVICE_ID takes precedence over MODEL_INFO.
+     */
+    enum Probe {
+        DEVICE_ID,
+        MODEL_INFO,
+    }
+
+    /**
+     * 1回に開始する問い合わせの最大数。 Maximum number of probes started at a time.
+     */
+    static final int MAX_PROBES_PER_BATCH = 4;
+
+    /**
+     * 続けて問い合わせを開始する間隔（ミリ秒）。 Interval in milliseconds between batches.
+     */
+    static final long BATCH_INTERVAL_MS = 100;
+
+    /**
+     * 待機できる問い合わせの最大数。超えた分は捨てられます。
+     * Maximum number of pending probes. Probes beyond this are dropped.
+     */
+    static final int MAX_PENDING_PROBES = 64;
+
+    /**
+     * 同じIRPeripheralにMODEL_INFOを再び開始するまでの最短間隔（ミリ秒）。
+     * mDNSの告知が続けて届いた場合に同じ問い合わせを繰り返さないためのものです。
+     * Minimum interval in milliseconds before MODEL_INFO is started again for the same IRPeripheral.
+     * Keeps a burst of mDNS announcements from repeating the same probe.
+     */
+    static final long MODEL_INFO_REPROBE_INTERVAL_MS = 10000;
+
+    private static class PendingProbe {
+        private IRPeripheral peripheral;
+        private Probe probe;
+        private long dueAt;
+    }
+
+    /**
+     * <p class="ja">
+     * 追加された順の待機中の問い合わせ。IRPeripheralはequals()をオーバーライドしていないため、
+     * キーは同一性で比較されます。
+     * </p>
+     *
+     * <p class="en">
+     * Pending probes in the order they were added. IRPeripheral does not override equals(),
+     * so keys are compared by identity.
+     * </p>
+     */
+    private final LinkedHashMap<IRPeripheral, PendingProbe> pendingProbes = new LinkedHashMap<>();
+    private final WeakHashMap<IRPeripheral, Long> lastModelInfoProbeAt = new WeakHashMap<>();
+    private IRScheduler.Task drainTask;
+    private long drainAt;
+
+    /**
+     * <p class="ja">
+     * peripheralへの問い合わせをdelayMsミリ秒後に予定します。同じperipheralへの問い合わせが
+     * 既に待機中であれば、それにまとめられます。
+     * </p>
+     *
+     * <p class="en">
+     * Schedule a probe to peripheral after delayMs milliseconds. If a probe to the same
+     * peripheral is already pending, they are merged.
+     * </p>
+     *
+     * @param peripheral 問い合わせ先。 Peripheral to be probed.
+     * @param probe 問い合わせの種類。 Kind of probe.
+     * @param delayMs 待ち時間（ミリ秒）。 Delay in milliseconds.
+     */
+    void schedule(IRPeripheral peripheral, Probe probe, long delayMs) {
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            PendingProbe pending = pendingProbes.get(peripheral);
+            if (pending != null) {
+                if (probe == Probe.DEVICE_ID) {
+                    pending.probe = Probe.DEVICE_ID;
+                }
+                return;
+            }
+            if (probe == Probe.MODEL_INFO) {
+                Long lastProbeAt = lastModelInfoProbeAt.get(peripheral);
+                if (lastProbeAt != null && now - lastProbeAt < MODEL_INFO_REPROBE_INTERVAL_MS) {
+                    return;
+                }
+            }
+            if (pendingProbes.size() >= MAX_PENDING_PROBES) {
+                // Another announcement will bring the peripheral back
+                return;
+            }
+            pending = new PendingProbe();
+            pending.peripheral = peripheral;
+            pending.probe = probe;
+            pending.dueAt = now + delayMs;
+            pendingProbes.put(peripheral, pending);
+            scheduleDrain(pending.dueAt);
+            peripheral.setIsWaitingForConfiguration(true);
+        }
+    }
+
+    /**
+     * 必要であればdueAtに待機中の問い合わせを開始するタスクを予定します。ロックした状態で呼んでください。
+     * Schedule a task to start pending probes at dueAt if needed. Must be called with this locked.
+     */
+    private void scheduleDrain(long dueAt) {
+        if (drainTask != null && drainAt <= dueAt) {
+            return;
+        }
+        if (drainTask != null) {
+            drainTask.cancel();
+        }
+        drainAt = dueAt;
+        drainTask = IRExecutorScheduler.getDefault().schedule(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, dueAt - System.currentTimeMillis());
+    }
+
+    private void drain() {
+        long now = System.currentTimeMillis();
+        ArrayList<PendingProbe> dueProbes = new ArrayList<>(MAX_PROBES_PER_BATCH);
+        synchronized (this) {
+            drainTask = null;
+            long nextDueAt = Long.MAX_VALUE;
+            Iterator<PendingProbe> iter = pendingProbes.values().iterator();
+            while (iter.hasNext()) {
+                PendingProbe pending = iter.next();
+                if (pending.dueAt <= now && dueProbes.size() < MAX_PROBES_PER_BATCH) {
+                    iter.remove();
+                    dueProbes.add(pending);
+                    if (pending.probe == Probe.MODEL_INFO) {
+                        lastModelInfoProbeAt.put(pending.peripheral, now);
+                    }
+                } else {
+                    nextDueAt = Math.min(nextDueAt, pending.dueAt);
+                }
+            }
+            if (nextDueAt != Long.MAX_VALUE) {
+                scheduleDrain(Math.max(nextDueAt, now + BATCH_INTERVAL_MS));
+            }
+        }
+        for (PendingProbe dueProbe : dueProbes) {
+            IRPeripheral peripheral = dueProbe.peripheral;
+            peripheral.setIsWaitingForConfiguration(false);
+            if (dueProbe.probe == Probe.DEVICE_ID) {
+                peripheral.fetchDeviceId();
+            } else {
+                peripheral.fetchModelInfo();
+            }
+        }
+    }
+}
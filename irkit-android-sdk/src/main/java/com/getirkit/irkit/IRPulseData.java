@@ -0,0 +1,134 @@
+package com.getirkit.irkit;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * <p class="ja">
+ * 赤外線信号のdata（on/off時間の配列）を圧縮して表現するためのクラスです。
+ * 赤外線信号は少数の長さが繰り返し現れることがほとんどなので、異なる値の辞書と
+ * 辞書のインデックスを必要最小限のビット数で詰めた列として保存します。
+ * </p>
+ *
+ * <p class="en">
+ * Compact representation of IR signal data (array of on/off time periods).
+ * Since IR signals mostly repeat a handful of lengths, the data is stored as
+ * a dictionary of distinct values plus a stream of dictionary indexes packed
+ * into the minimum number of bits.
+ * </p>
+ *
+ * <pre>
+ * packed := dictionarySize(varint) value(varint)* length(varint) bitsPerIndex(byte) packedIndexes
+ * </pre>
+ */
+final class IRPulseData {
+    private IRPulseData() {
+    }
+
+    /**
+     * dataを圧縮します。
+     * Compress data.
+     *
+     * @param data 赤外線信号データ。 IR signal data.
+     * @return 圧縮されたデータ。dataがnullの場合はnull。 Compressed data, or null if data is null.
+     */
+    static byte[] pack(int[] data) {
+        if (data == null) {
+            return null;
+        }
+        HashMap<Integer, Integer> indexByValue = new HashMap<>();
+        int[] dictionary = new int[data.length];
+        int[] indexes = new int[data.length];
+        for (int i = 0; i < data.length; i++) {
+            Integer index = indexByValue.get(data[i]);
+            if (index == null) {
+                index = indexByValue.size();
+                indexByValue.put(data[i], index);
+                dictionary[index] = data[i];
+            }
+            indexes[i] = index;
+        }
+        int dictionarySize = indexByValue.size();
+        int bitsPerIndex = dictionarySize <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(dictionarySize - 1);
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(16 + dictionarySize * 2 + (data.length * bitsPerIndex + 7) / 8);
+        DataOutputStream out = new DataOutputStream(baos);
+        try {
+            IRRecordFile.writeVarInt(out, dictionarySize);
+            for (int i = 0; i < dictionarySize; i++) {
+                IRRecordFile.writeVarInt(out, dictionary[i]);
+            }
+            IRRecordFile.writeVarInt(out, data.length);
+            out.writeByte(bitsPerIndex);
+            if (bitsPerIndex > 0) {
+                long buffer = 0;
+                int bufferedBits = 0;
+                for (int index : indexes) {
+                    buffer |= (long) index << bufferedBits;
+                    bufferedBits += bitsPerIndex;
+                    while (bufferedBits >= 8) {
+                        out.writeByte((int) (buffer & 0xff));
+                        buffer >>>= 8;
+                        bufferedBits -= 8;
+                    }
+                }
+                if (bufferedBits > 0) {
+                    out.writeByte((int) (buffer & 0xff));
+                }
+            }
+            out.close();
+        } catch (IOException e) {
+            // ByteArrayOutputStream never throws IOException
+            throw new IllegalStateException(e);
+        }
+        return baos.toByteArray();
+    }
+
+    /**
+     * pack()で圧縮されたデータを展開します。
+     * Decompress data compressed by pack().
+     *
+     * @param packed 圧縮されたデータ。 Compressed data.
+     * @return 赤外線信号データ。packedがnullの場合はnull。 IR signal data, or null if packed is null.
+     */
+    static int[] unpack(byte[] packed) {
+        if (packed == null) {
+            return null;
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(packed));
+        try {
+            int[] dictionary = new int[IRRecordFile.readVarInt(in)];
+            for (int i = 0; i < dictionary.length; i++) {
+                dictionary[i] = IRRecordFile.readVarInt(in);
+            }
+            int[] data = new int[IRRecordFile.readVarInt(in)];
+            int bitsPerIndex = in.readUnsignedByte();
+            if (bitsPerIndex == 0) {
+                if (data.length > 0) {
+                    Arrays.fill(data, dictionary[0]);
+                }
+                return data;
+            }
+            long mask = (1L << bitsPerIndex) - 1;
+            long buffer = 0;
+            int bufferedBits = 0;
+            for (int i = 0; i < data.length; i++) {
+                while (bufferedBits < bitsPerIndex) {
+                    buffer |= (long) in.readUnsignedByte() << bufferedBits;
+                    bufferedBits += 8;
+                }
+                data[i] = dictionary[(int) (buffer & mask)];
+                buffer >>>= bitsPerIndex;
+                bufferedBits -= bitsPerIndex;
+            }
+            return data;
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Malformed pulse data", e);
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package com.getirkit.irkit;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * <p class="ja">
+ * 長さ付きのバイナリレコードを並べたファイルを読み書きするクラスです。
+ * IRSignalsとIRPeripheralsの保存に使われます。
+ * </p>
+ *
+ * <p class="en">
+ * Reads and writes a file of length-prefixed binary records.
+ * Used for persisting IRSignals and IRPeripherals.
+ * </p>
+ *
+ * <pre>
+ * file   := magic(int) version(int) count(varint) record*
+ * record := length(varint) bytes
+ * </pre>
+ */
+class IRRecordFile {
+    public static final String TAG = IRRecordFile.class.getSimpleName();
+
+    /**
+     * "IRKS"
+     */
+    static final int MAGIC = 0x49524b53;
+
+    /**
+     * ファイルフォーマットのバージョン。 Version of the file format.
+     */
+    static final int VERSION = 1;
+
+    private final File file;
+    private long checksum;
+
+    IRRecordFile(File file) {
+        this.file = file;
+    }
+
+    /**
+     * ファイルが存在するかどうかを返します。
+     * Return whether the file exists.
+     *
+     * @return ファイルが存在すればtrue。 True if the file exists.
+     */
+    boolean exists() {
+        return file.exists();
+    }
+
+    /**
+     * ファイルのバイト数を返します。ファイルが存在しない場合は0です。
+     * Return the size of the file in bytes, or 0 if the file does not exist.
+     *
+     * @return バイト数。 Size in bytes.
+     */
+    long length() {
+        return file.length();
+    }
+
+    /**
+     * <p class="ja">
+     * 最後のread()またはwrite()で読み書きしたファイル全体のCRC32を返します。
+     * ジャーナルが元にしたスナップショットを識別するために使われます。
+     * </p>
+     *
+     * <p class="en">
+     * Return CRC32 of the whole file as of the last read() or write().
+     * Used to identify the snapshot a journal was started on.
+     * </p>
+     *
+     * @return CRC32。まだ読み書きしていない場合は0。 CRC32, or 0 if neither has been called.
+     */
+    long getChecksum() {
+        return checksum;
+    }
+
+    /**
+     * すべてのレコードを読み込みます。
+     * Read all records.
+     *
+     * @return レコードのリスト。 List of records.
+     * @throws IOException ファイルが壊れているか読み込みに失敗した場合。
+     *                     If the file is corrupted or cannot be read.
+     */
+    List<byte[]> read() throws IOException {
+        CheckedInputStream cis = new CheckedInputStream(new FileInputStream(file), new CRC32());
+        DataInputStream in = new DataInputStream(new BufferedInputStream(cis));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Invalid magic: " + file);
+            }
+            int fileVersion = in.readInt();
+            if (fileVersion != VERSION) {
+                throw new IOException("Unsupported version " + fileVersion + ": " + file);
+            }
+            int count = readVarInt(in);
+            ArrayList<byte[]> records = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                byte[] record = new byte[readVarInt(in)];
+                in.readFully(record);
+                records.add(record);
+            }
+            if (in.read() != -1) {
+                throw new IOException("Trailing bytes: " + file);
+            }
+            checksum = cis.getChecksum().getValue();
+            return records;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * すべてのレコードを書き込みます。一時ファイルに書いてから置き換えるため、
+     * 途中で失敗しても既存のファイルは壊れません。
+     * Write all records. Records are written to a temporary file which then
+     * replaces the existing file, so a failure never corrupts the existing file.
+     *
+     * @param records レコードのリスト。 List of records.
+     * @throws IOException 書き込みに失敗した場合。 If writing failed.
+     */
+    void write(List<byte[]> records) throws IOException {
+        File tmpFile = new File(file.getPath() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmpFile);
+        CheckedOutputStream cos = new CheckedOutputStream(fos, new CRC32());
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(cos));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeVarInt(out, records.size());
+            for (byte[] record : records) {
+                writeVarInt(out, record.length);
+                out.write(record);
+            }
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tmpFile.renameTo(file)) {
+            throw new IOException("Failed to rename " + tmpFile + " to " + file);
+        }
+        checksum = cos.getChecksum().getValue();
+    }
+
+    // Helpers for encoding records
+
+    /**
+     * 符号なし整数を可変長（7ビットずつ）で書き込みます。
+     * Write an unsigned integer in variable-length (7 bits per byte) form.
+     */
+    static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    /**
+     * writeVarInt()で書き込まれた整数を読み込みます。
+     * Read an integer written by writeVarInt().
+     */
+    static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    /**
+     * nullかもしれない文字列を書き込みます。
+     * Write a nullable string.
+     */
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    /**
+     * writeString()で書き込まれた文字列を読み込みます。
+     * Read a string written by writeString().
+     */
+    static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
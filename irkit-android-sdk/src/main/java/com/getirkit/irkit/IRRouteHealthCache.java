@@ -0,0 +1,319 @@
+package com.getirkit.irkit;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * <p class="ja">
+ * IRKitデバイスごとに、ローカルネットワーク（Device HTTP API）とインターネット
+ * （Internet HTTP API）の各経路の最近の成否と応答時間を記録し、送信時に最初に
+ * 試す経路を選びます。ローカル経路が失敗した直後はインターネット経路を先に使い、
+ * PROBE_INTERVAL_MSごとに1回だけローカル経路にGET /を送って回復を確認します。
+ * ユーザの信号を確認に使うことはありません。ローカル経路が健全であれば常にローカル経路を選びます。
+ * ローカル経路は赤外線を送信してから応答し、インターネット経路はサーバが信号を受け付けた時点で
+ * 応答するため、応答時間では比べません。
+ * ネットワークが切り替わると記録はすべて消去されます。
+ * </p>
+ *
+ * <p class="en">
+ * Records recent success and response time of the local network (Device HTTP API)
+ * and Internet (Internet HTTP API) routes per IRKit device, and picks the route to
+ * try first when sending. Right after the local route fails, the Internet route is
+ * used first and the local route is probed with GET / once every PROBE_INTERVAL_MS to
+ * detect recovery; the user's signals are never used as probes. The local route is always
+ * chosen while it is healthy. Response times are not compared, since the local route answers
+ * after emitting the IR signal whereas the Internet route answers once the server has queued it.
+ * All records are discarded when the network changes.
+ * </p>
+ *
+ * @since 1.4.0
+ */
+public class IRRouteHealthCache {
+    public static final String TAG = IRRouteHealthCache.class.getSimpleName();
+
+    /**
+     * 失敗した経路をこの時間（ミリ秒）だけ不健全とみなします。
+     * A failed route is regarded as unhealthy for this many milliseconds.
+     */
+    public static final long UNHEALTHY_TTL_MS = 5 * 60 * 1000;
+
+    /**
+     * 選ばれなかったローカル経路をGET /で確認する間隔（ミリ秒）。
+     * Interval in milliseconds at which the local route not chosen is probed with GET /.
+     */
+    public static final long PROBE_INTERVAL_MS = 30 * 1000;
+
+    /**
+     * 応答時間の指数移動平均の重み。
+     * Weight of the exponential moving average of response times.
+     */
+    private static final double SMOOTHING = 0.25;
+
+    /**
+     * パーセンタイルの計算のために経路ごとに保持する応答時間の数。
+     * Number of response times kept per route for computing percentiles.
+     */
+    private static final int LATENCY_SAMPLE_COUNT = 32;
+
+    /**
+     * 送信経路。
+     * Route for sending.
+     */
+    public enum Route {
+        /**
+         * Device HTTP API
+         */
+        LOCAL,
+
+        /**
+         * Internet HTTP API
+         */
+        INTERNET,
+    }
+
+    /**
+     * 1個の経路の統計です。
+     * Statistics of a route.
+     */
+    public static class RouteStats {
+        public long successCount;
+        public long failureCount;
+
+        /**
+         * 連続した失敗の数。成功すると0に戻ります。
+         * Number of consecutive failures. Reset to 0 on success.
+         */
+        public int consecutiveFailures;
+
+        /**
+         * 成功した送信の応答時間の指数移動平均（ミリ秒）。成功していない場合は-1。
+         * Moving average of response times of successful sends in milliseconds, or -1 if none.
+         */
+        public long averageLatencyMs = -1;
+
+        public long lastSuccessAt;
+        public long lastFailureAt;
+
+        /**
+         * 直近の成功した送信の応答時間（リングバッファ）。
+         * Response times of recent successful sends (ring buffer).
+         */
+        private long[] latencySamples;
+        private int latencySampleCount;
+        private int nextLatencySample;
+
+        private void addLatencySample(long latencyMs) {
+            if (latencySamples == null) {
+                latencySamples = new long[LATENCY_SAMPLE_COUNT];
+            }
+            latencySamples[nextLatencySample] = latencyMs;
+            nextLatencySample = (nextLatencySample + 1) % latencySamples.length;
+            if (latencySampleCount < latencySamples.length) {
+                latencySampleCount++;
+            }
+        }
+
+        private long latencyPercentile(double percentile) {
+            if (latencySampleCount == 0) {
+                return -1;
+            }
+            long[] sorted = Arrays.copyOf(latencySamples, latencySampleCount);
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(percentile * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+        }
+
+        private RouteStats copy() {
+            RouteStats stats = new RouteStats();
+            stats.successCount = successCount;
+            stats.failureCount = failureCount;
+            stats.consecutiveFailures = consecutiveFailures;
+            stats.averageLatencyMs = averageLatencyMs;
+            stats.lastSuccessAt = lastSuccessAt;
+            stats.lastFailureAt = lastFailureAt;
+            return stats;
+        }
+
+        private boolean isHealthy(long now) {
+            return consecutiveFailures == 0 || now - lastFailureAt >= UNHEALTHY_TTL_MS;
+        }
+
+        @Override
+        public String toString() {
+            return "RouteStats[successCount=" + successCount + ";failureCount=" + failureCount +
+                    ";consecutiveFailures=" + consecutiveFailures + ";averageLatencyMs=" + averageLatencyMs + "]";
+        }
+    }
+
+    private static class DeviceHealth {
+        private final RouteStats local = new RouteStats();
+        private final RouteStats internet = new RouteStats();
+        private long lastProbeAt;
+    }
+
+    private final HashMap<String, DeviceHealth> healthByDeviceId = new HashMap<>();
+
+    /**
+     * deviceIdに最初に試す経路を返します。
+     * Return the route to try first for deviceId.
+     *
+     * @param deviceId deviceid
+     * @param isLocalAvailable ローカルネットワーク内でIRKitが見つかっている場合はtrue。
+     *                         True if the IRKit is found on the local network.
+     * @return 最初に試す経路。 Route to try first.
+     */
+    public synchronized Route chooseRoute(String deviceId, boolean isLocalAvailable) {
+        if (!isLocalAvailable) {
+            return Route.INTERNET;
+        }
+        DeviceHealth health = healthByDeviceId.get(deviceId);
+        if (health == null) {
+            return Route.LOCAL;
+        }
+        long now = System.currentTimeMillis();
+        if (!health.local.isHealthy(now) && health.internet.isHealthy(now)) {
+            return Route.INTERNET;
+        }
+        return Route.LOCAL;
+    }
+
+    /**
+     * <p class="ja">
+     * chooseRoute()がインターネット経路を選んだ際に、ローカル経路を確認する時期かどうかを返します。
+     * trueを返した場合、次の確認はPROBE_INTERVAL_MS後になります。確認の結果はrecordProbeResult()で記録します。
+     * </p>
+     *
+     * <p class="en">
+     * Return whether it is time to probe the local route after chooseRoute() chose the Internet
+     * route. If true is returned, the next probe is due PROBE_INTERVAL_MS later. Record the
+     * outcome with recordProbeResult().
+     * </p>
+     *
+     * @param deviceId deviceid
+     * @return 確認する場合はtrue。 True if the local route should be probed.
+     */
+    public synchronized boolean claimLocalProbe(String deviceId) {
+        DeviceHealth health = healthByDeviceId.get(deviceId);
+        if (health == null) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        if (now - health.lastProbeAt < PROBE_INTERVAL_MS) {
+            return false;
+        }
+        health.lastProbeAt = now;
+        return true;
+    }
+
+    /**
+     * <p class="ja">
+     * 経路の確認の結果を記録します。確認のリクエストは信号の送信と応答時間が異なるため、
+     * 成否だけを記録して応答時間の統計には含めません。
+     * </p>
+     *
+     * <p class="en">
+     * Record the outcome of a probe of a route. A probe request takes a different time than
+     * sending a signal, so only success or failure is recorded and response time statistics
+     * are left untouched.
+     * </p>
+     *
+     * @param deviceId deviceid
+     * @param route 確認した経路。 Route probed.
+     * @param isSuccess 成功した場合はtrue。 True if succeeded.
+     */
+    public synchronized void recordProbeResult(String deviceId, Route route, boolean isSuccess) {
+        DeviceHealth health = healthByDeviceId.get(deviceId);
+        if (health == null) {
+            return;
+        }
+        RouteStats stats = route == Route.LOCAL ? health.local : health.internet;
+        long now = System.currentTimeMillis();
+        if (isSuccess) {
+            stats.consecutiveFailures = 0;
+            stats.lastSuccessAt = now;
+        } else {
+            stats.consecutiveFailures++;
+            stats.lastFailureAt = now;
+        }
+    }
+
+    /**
+     * 送信結果を記録します。
+     * Record the result of a send.
+     *
+     * @param deviceId deviceid
+     * @param route 使用した経路。 Route used.
+     * @param isSuccess 成功した場合はtrue。 True if succeeded.
+     * @param latencyMs 送信開始から結果までの時間（ミリ秒）。 Milliseconds from start to result.
+     */
+    public synchronized void recordResult(String deviceId, Route route, boolean isSuccess, long latencyMs) {
+        if (deviceId == null) {
+            return;
+        }
+        DeviceHealth health = healthByDeviceId.get(deviceId);
+        if (health == null) {
+            health = new DeviceHealth();
+            healthByDeviceId.put(deviceId, health);
+        }
+        RouteStats stats = route == Route.LOCAL ? health.local : health.internet;
+        long now = System.currentTimeMillis();
+        if (isSuccess) {
+            stats.successCount++;
+            stats.consecutiveFailures = 0;
+            stats.lastSuccessAt = now;
+            stats.addLatencySample(latencyMs);
+            if (stats.averageLatencyMs < 0) {
+                stats.averageLatencyMs = latencyMs;
+            } else {
+                stats.averageLatencyMs += (long) (SMOOTHING * (latencyMs - stats.averageLatencyMs));
+            }
+        } else {
+            stats.failureCount++;
+            stats.consecutiveFailures++;
+            stats.lastFailureAt = now;
+        }
+    }
+
+    /**
+     * deviceIdの経路の統計のコピーを返します。
+     * Return a copy of the statistics of a route for deviceId.
+     *
+     * @param deviceId deviceid
+     * @param route 経路。 Route.
+     * @return 統計。記録がない場合はnull。 Statistics, or null if nothing has been recorded.
+     */
+    public synchronized RouteStats getStats(String deviceId, Route route) {
+        DeviceHealth health = healthByDeviceId.get(deviceId);
+        if (health == null) {
+            return null;
+        }
+        return (route == Route.LOCAL ? health.local : health.internet).copy();
+    }
+
+    /**
+     * deviceIdの経路の直近の成功した送信の応答時間のパーセンタイルを返します。
+     * Return a percentile of response times of recent successful sends over a route for deviceId.
+     *
+     * @param deviceId deviceid
+     * @param route 経路。 Route.
+     * @param percentile 0から1までのパーセンタイル。例えば0.9は90パーセンタイル。
+     *                   Percentile between 0 and 1, e.g. 0.9 for the 90th percentile.
+     * @return 応答時間（ミリ秒）。成功した送信がない場合は-1。
+     *         Response time in milliseconds, or -1 if there is no successful send.
+     */
+    public synchronized long getLatencyPercentileMs(String deviceId, Route route, double percentile) {
+        DeviceHealth health = healthByDeviceId.get(deviceId);
+        if (health == null) {
+            return -1;
+        }
+        return (route == Route.LOCAL ? health.local : health.internet).latencyPercentile(percentile);
+    }
+
+    /**
+     * すべての記録を消去します。IRKitはネットワークが切り替わった際に呼びます。
+     * Discard all records. IRKit calls this when the network has changed.
+     */
+    public synchronized void clear() {
+        healthByDeviceId.clear();
+    }
+}
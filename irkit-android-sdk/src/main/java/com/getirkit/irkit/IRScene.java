@@ -0,0 +1,228 @@
+package com.getirkit.irkit;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * <p class="ja">
+ * 複数の赤外線信号を時間差で送信するシーン（マクロ）です。各ステップは送信する信号、
+ * 直前のステップからの待ち時間、送信先のIRKitデバイスを持ちます。
+ * IRKit#runScene(IRScene, com.getirkit.irkit.net.IRBatchResult)で実行します。
+ * </p>
+ *
+ * <p class="en">
+ * Scene (macro) which sends several IR signals with timed steps. Each step has a signal
+ * to be sent, a delay after the previous step and a target IRKit device.
+ * Run it with IRKit#runScene(IRScene, com.getirkit.irkit.net.IRBatchResult).
+ * </p>
+ *
+ * @since 1.4.0
+ */
+public class IRScene {
+    public static final String TAG = IRScene.class.getSimpleName();
+
+    /**
+     * シーンの1ステップです。
+     * A step of a scene.
+     */
+    public static class Step {
+        private String signalId;
+        private long delayMs;
+        private String deviceId;
+
+        /**
+         * コンストラクタ。
+         * Constructor.
+         *
+         * @param signalId 送信するIRSignalのid。 Id of IRSignal to be sent.
+         * @param delayMs 直前のステップの開始からの待ち時間（ミリ秒）。最初のステップではシーン開始からの待ち時間。
+         *                Delay in milliseconds after the start of the previous step, or after the start
+         *                of the scene for the first step.
+         * @param deviceId 送信先のIRKitのdeviceid。nullの場合は信号のdeviceidに送信します。
+         *                 Deviceid of target IRKit. If null, the deviceid of the signal is used.
+         */
+        public Step(String signalId, long delayMs, String deviceId) {
+            this.signalId = signalId;
+            this.delayMs = delayMs;
+            this.deviceId = deviceId;
+        }
+
+        public String getSignalId() {
+            return signalId;
+        }
+
+        public void setSignalId(String signalId) {
+            this.signalId = signalId;
+        }
+
+        public long getDelayMs() {
+            return delayMs;
+        }
+
+        public void setDelayMs(long delayMs) {
+            this.delayMs = delayMs;
+        }
+
+        public String getDeviceId() {
+            return deviceId;
+        }
+
+        public void setDeviceId(String deviceId) {
+            this.deviceId = deviceId;
+        }
+
+        @Override
+        public String toString() {
+            return "Step[signalId=" + signalId + ";delayMs=" + delayMs + ";deviceId=" + deviceId + "]";
+        }
+    }
+
+    private String id;
+    private String name;
+    private final ArrayList<Step> steps = new ArrayList<>();
+
+    /**
+     * シーンのidを返します。
+     * Return the id of this scene.
+     *
+     * @return id
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * シーンのidをセットします。
+     * Set the id of this scene.
+     *
+     * @param id id
+     */
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    /**
+     * シーンの名前を返します。
+     * Return the name of this scene.
+     *
+     * @return 名前。 Name.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * シーンの名前をセットします。
+     * Set the name of this scene.
+     *
+     * @param name 名前。 Name.
+     */
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    /**
+     * ステップの変更できないリストを返します。
+     * Return an unmodifiable list of steps.
+     *
+     * @return ステップのリスト。 List of steps.
+     */
+    public List<Step> getSteps() {
+        return Collections.unmodifiableList(steps);
+    }
+
+    /**
+     * 最後にステップを追加します。
+     * Append a step.
+     *
+     * @param step 追加するステップ。 Step to be appended.
+     */
+    public void addStep(Step step) {
+        steps.add(step);
+    }
+
+    /**
+     * 最後にsignalを送信するステップを追加します。送信先はsignalのdeviceidです。
+     * Append a step which sends signal. The target is the deviceid of signal.
+     *
+     * @param signal 送信する信号。 Signal to be sent.
+     * @param delayMs 直前のステップの開始からの待ち時間（ミリ秒）。 Delay in milliseconds after the start of the previous step.
+     */
+    public void addStep(IRSignal signal, long delayMs) {
+        steps.add(new Step(signal.getId(), delayMs, null));
+    }
+
+    /**
+     * index番目のステップを削除します。
+     * Remove the step at index.
+     *
+     * @param index 削除するステップの位置。 Position of the step to be removed.
+     */
+    public void removeStep(int index) {
+        steps.remove(index);
+    }
+
+    /**
+     * すべてのステップを削除します。
+     * Remove all steps.
+     */
+    public void clearSteps() {
+        steps.clear();
+    }
+
+    /**
+     * 保存用のバイナリレコードに変換します。
+     * Encode this scene into a binary record for persistence.
+     *
+     * @return バイナリレコード。 Binary record.
+     * @throws IOException エンコードに失敗した場合。 If encoding failed.
+     */
+    byte[] toRecord() throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(32 + steps.size() * 48);
+        DataOutputStream out = new DataOutputStream(baos);
+        IRRecordFile.writeString(out, id);
+        IRRecordFile.writeString(out, name);
+        IRRecordFile.writeVarInt(out, steps.size());
+        for (Step step : steps) {
+            IRRecordFile.writeString(out, step.signalId);
+            out.writeLong(step.delayMs);
+            IRRecordFile.writeString(out, step.deviceId);
+        }
+        out.close();
+        return baos.toByteArray();
+    }
+
+    /**
+     * toRecord()で作成されたバイナリレコードからIRSceneを作成します。
+     * Create an IRScene from a binary record created by toRecord().
+     *
+     * @param record バイナリレコード。 Binary record.
+     * @return IRScene
+     * @throws IOException レコードが壊れている場合。 If the record is corrupted.
+     */
+    static IRScene fromRecord(byte[] record) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        IRScene scene = new IRScene();
+        scene.id = IRRecordFile.readString(in);
+        scene.name = IRRecordFile.readString(in);
+        int count = IRRecordFile.readVarInt(in);
+        for (int i = 0; i < count; i++) {
+            String signalId = IRRecordFile.readString(in);
+            long delayMs = in.readLong();
+            String deviceId = IRRecordFile.readString(in);
+            scene.steps.add(new Step(signalId, delayMs, deviceId));
+        }
+        return scene;
+    }
+
+    @Override
+    public String toString() {
+        return "IRScene[id=" + id + ";name=" + name + ";steps=" + steps + "]";
+    }
+}
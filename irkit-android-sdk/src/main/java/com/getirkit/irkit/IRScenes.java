@@ -0,0 +1,98 @@
+package com.getirkit.irkit;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.UUID;
+
+/**
+ * IRSceneを格納するArrayListです。信号ライブラリと同じディレクトリに保存されます。
+ * ArrayList that holds IRScene. Saved to the same directory as the signal library.
+ *
+ * @since 1.4.0
+ */
+public class IRScenes extends ArrayList<IRScene> {
+    private static final long serialVersionUID = 1L;
+
+    public static final String TAG = "IRScenes";
+
+    /**
+     * データを保存するファイル名です。
+     * Name of the file which holds the data.
+     */
+    public static final String FILENAME = "scenes.dat";
+
+    /**
+     * idが一致するIRSceneを返します。
+     * Return IRScene that matches id.
+     *
+     * @param id id
+     * @return 一致したIRScene。一致するものがなかった場合はnull。
+     *         Matched IRScene, or null if not matched.
+     */
+    public IRScene getScene(String id) {
+        if (id == null) {
+            return null;
+        }
+        for (IRScene scene : this) {
+            if (id.equals(scene.getId())) {
+                return scene;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 新しいシーンに割り当てるidを返します。
+     * Return an id for a new scene.
+     *
+     * @return id
+     */
+    public String getNewId() {
+        return UUID.randomUUID().toString().replace("-", "");
+    }
+
+    /**
+     * データをファイルに保存します。
+     * Save data to the file.
+     */
+    public void save() {
+        ArrayList<byte[]> records = new ArrayList<>(this.size());
+        try {
+            for (IRScene scene : this) {
+                records.add(scene.toRecord());
+            }
+            getRecordFile().write(records);
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            return;
+        }
+        IRKit.sharedInstance().requestBackup();
+    }
+
+    /**
+     * ファイルからこのインスタンスにデータを読み込みます。
+     * Load data from the file into this instance.
+     */
+    public void load() {
+        this.clear();
+
+        IRRecordFile recordFile = getRecordFile();
+        if (recordFile.exists()) {
+            try {
+                for (byte[] record : recordFile.read()) {
+                    this.add(IRScene.fromRecord(record));
+                }
+            } catch (IOException ex) {
+                Log.e(TAG, "Failed to load scenes");
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    private IRRecordFile getRecordFile() {
+        return new IRRecordFile(new File(IRKit.sharedInstance().getContext().getFilesDir(), FILENAME));
+    }
+}
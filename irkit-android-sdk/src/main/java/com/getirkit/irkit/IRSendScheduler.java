@@ -0,0 +1,555 @@
+package com.getirkit.irkit;
+
+import com.getirkit.irkit.net.IRAPIError;
+import com.getirkit.irkit.net.IRAPIResult;
+import com.getirkit.irkit.net.IRRequestHandle;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p class="ja">
+ * 赤外線信号の送信をIRKitデバイスごとにスケジューリングするクラスです。
+ * 同じIRKitへの信号はパニックを防ぐため1個ずつ順に送信されますが、
+ * 異なるIRKitへの信号は互いに待つことなく並行して送信されます。
+ * </p>
+ *
+ * <p class="en">
+ * Schedules IR signal transmissions per IRKit device. Signals for the same
+ * IRKit are sent one by one to prevent the device from panicking, while
+ * signals for different IRKits proceed in parallel.
+ * </p>
+ *
+ * @since 1.4.0
+ */
+public class IRSendScheduler {
+    public static final String TAG = IRSendScheduler.class.getSimpleName();
+
+    /**
+     * deviceidがnullの信号を格納するパイプラインのキーです。
+     * Pipeline key for signals which have no deviceid.
+     */
+    private static final String NO_DEVICE_ID = "";
+
+    /**
+     * 1個の信号を実際に送信するインタフェースです。
+     * Interface which actually sends a signal.
+     */
+    interface Sender {
+        /**
+         * 信号を送信します。送信が終わったらresultのいずれかのメソッドを必ず1回呼んでください。
+         * Send a signal. Exactly one method of result must be called when done.
+         *
+         * @param signal 送信する信号。 Signal to be sent.
+         * @param result 結果を受け取るコールバック。 Callback for receiving the result.
+         */
+        void send(IRSignal signal, IRAPIResult result);
+    }
+
+    /**
+     * <p class="ja">
+     * パイプラインを占有して実行される処理です。複数の信号をまとめて送信する場合に使います。
+     * 終わったらdoneのいずれかのメソッドを必ず1回呼んでください。
+     * </p>
+     *
+     * <p class="en">
+     * Work which runs while occupying a pipeline. Used for sending several signals as a unit.
+     * Exactly one method of done must be called when finished.
+     * </p>
+     */
+    interface Job {
+        void run(IRAPIResult done);
+    }
+
+    /**
+     * IRKitデバイスごとの送信統計です。
+     * Send statistics for an IRKit device.
+     */
+    public static class Stats {
+        /**
+         * 送信待ちと送信中の信号の数。
+         * Number of signals waiting or being sent.
+         */
+        public int queueDepth;
+
+        /**
+         * これまでに観測したqueueDepthの最大値。
+         * Maximum queueDepth observed so far.
+         */
+        public int maxQueueDepth;
+
+        /**
+         * 成功した送信の数。
+         * Number of successful sends.
+         */
+        public long successCount;
+
+        /**
+         * エラーまたはタイムアウトになった送信の数。
+         * Number of sends which ended with an error or a timeout.
+         */
+        public long failureCount;
+
+        /**
+         * 最後に完了した送信の、キュー追加から完了までの時間（ミリ秒）。
+         * Milliseconds from enqueue to completion of the last finished send.
+         */
+        public long lastLatencyMs;
+
+        /**
+         * キュー追加から完了までの平均時間（ミリ秒）。
+         * Average milliseconds from enqueue to completion.
+         */
+        public long averageLatencyMs;
+
+        /**
+         * 最後に完了した送信の、送信開始から完了までの時間（ミリ秒）。
+         * Milliseconds from start of transmission to completion of the last finished send.
+         */
+        public long lastSendDurationMs;
+
+        /**
+         * まとめ送信により別の送信にまとめられた信号の数。
+         * Number of signals merged into another send by coalescing.
+         */
+        public long coalescedCount;
+
+        private long totalLatencyMs;
+
+        private Stats copy() {
+            Stats stats = new Stats();
+            stats.queueDepth = queueDepth;
+            stats.maxQueueDepth = maxQueueDepth;
+            stats.successCount = successCount;
+            stats.failureCount = failureCount;
+            stats.lastLatencyMs = lastLatencyMs;
+            stats.averageLatencyMs = averageLatencyMs;
+            stats.lastSendDurationMs = lastSendDurationMs;
+            stats.coalescedCount = coalescedCount;
+            stats.totalLatencyMs = totalLatencyMs;
+            return stats;
+        }
+
+        @Override
+        public String toString() {
+            return "Stats[queueDepth=" + queueDepth + ";maxQueueDepth=" + maxQueueDepth +
+                    ";successCount=" + successCount + ";failureCount=" + failureCount +
+                    ";lastLatencyMs=" + lastLatencyMs + ";averageLatencyMs=" + averageLatencyMs +
+                    ";lastSendDurationMs=" + lastSendDurationMs + ";coalescedCount=" + coalescedCount + "]";
+        }
+    }
+
+    private static class SendSignalItem {
+        public IRSignal signal;
+        public Job job;
+        public ArrayList<IRAPIResult> callbacks = new ArrayList<>(1);
+        public long enqueuedAt;
+        public long startedAt;
+
+        /**
+         * 信号を続けて送信する回数。 Number of times the signal is sent in a row.
+         */
+        public int repeatCount = 1;
+
+        /**
+         * 取り消されていない追加元の数。 Number of enqueuers which have not cancelled.
+         */
+        public int requesterCount = 1;
+
+        /**
+         * この送信のHTTPリクエストを結び付けるハンドル。
+         * Handle to which HTTP requests of this send are tied.
+         */
+        public final IRRequestHandle handle = new IRRequestHandle();
+
+        /**
+         * onSendDone()が処理済みかどうか。 Whether onSendDone() has handled this item.
+         */
+        public boolean isDone;
+
+        public SendSignalItem(IRSignal signal, IRAPIResult callback) {
+            this.signal = signal;
+            if (callback != null) {
+                callbacks.add(callback);
+            }
+            this.enqueuedAt = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * 1台のIRKitデバイスに対する送信キューです。先頭の要素が送信中の信号です。
+     * Send queue for a single IRKit device. The head element is being sent.
+     */
+    private static class Pipeline {
+        private final ArrayDeque<SendSignalItem> queue = new ArrayDeque<>();
+        private final Stats stats = new Stats();
+    }
+
+    private final Sender sender;
+    private final HashMap<String, Pipeline> pipelines = new HashMap<>();
+    private boolean isCoalescingEnabled;
+
+    IRSendScheduler(Sender sender) {
+        this.sender = sender;
+    }
+
+    /**
+     * <p class="ja">
+     * まとめ送信を有効にするかどうかをセットします。既定では無効です。
+     * 有効な場合、送信待ちの信号と同じ信号がその直後に追加されると、冪等な信号
+     * （IRSignal#isIdempotent()）は既存の送信にまとめられ、繰り返し可能な信号
+     * （IRSignal#isRepeatable()）は既存の送信の繰り返し回数に加えられます。
+     * まとめられた信号のコールバックは、まとめ先の送信の結果で呼ばれます。
+     * </p>
+     *
+     * <p class="en">
+     * Set whether coalescing is enabled. Disabled by default. When enabled and a signal
+     * is enqueued right after the same signal still waiting to be sent, an idempotent
+     * signal (IRSignal#isIdempotent()) is merged into the waiting send, and a repeatable
+     * signal (IRSignal#isRepeatable()) adds one to the repeat count of the waiting send.
+     * Callbacks of merged signals are called with the result of the send they were merged into.
+     * </p>
+     *
+     * @param isEnabled 有効にする場合はtrue。 True to enable.
+     */
+    public void setCoalescingEnabled(boolean isEnabled) {
+        synchronized (pipelines) {
+            isCoalescingEnabled = isEnabled;
+        }
+    }
+
+    /**
+     * まとめ送信が有効かどうかを返します。
+     * Return whether coalescing is enabled.
+     *
+     * @return 有効な場合はtrue。 True if enabled.
+     */
+    public boolean isCoalescingEnabled() {
+        synchronized (pipelines) {
+            return isCoalescingEnabled;
+        }
+    }
+
+    /**
+     * <p class="ja">
+     * 信号を送信キューに追加します。対象のIRKitが送信中でなければすぐに送信します。
+     * IRRequestHandleの下で呼んだ場合、そのハンドルを取り消すと送信待ちの信号はキューから
+     * 取り除かれ、送信中であればHTTPリクエストが中断されます。
+     * </p>
+     *
+     * <p class="en">
+     * Add a signal to the send queue. If the target IRKit is idle, it will be sent immediately.
+     * When called under an IRRequestHandle, cancelling the handle removes the signal from
+     * the queue if it is waiting, or aborts its HTTP request if it is being sent.
+     * </p>
+     *
+     * @param signal 送信する信号。 Signal to be sent.
+     * @param callback 結果を受け取るコールバック。 Callback for receiving the result.
+     */
+    public void enqueue(IRSignal signal, IRAPIResult callback) {
+        enqueue(getKey(signal), signal, null, callback);
+    }
+
+    /**
+     * deviceIdのパイプラインにjobを追加します。jobは前後の信号と重ならずに実行されます。
+     * Add job to the pipeline of deviceId. job never overlaps with the signals before or after it.
+     *
+     * @param deviceId deviceid
+     * @param job 実行する処理。 Work to be run.
+     * @param callback 結果を受け取るコールバック。 Callback for receiving the result.
+     */
+    void enqueueJob(String deviceId, Job job, IRAPIResult callback) {
+        enqueue(deviceId != null ? deviceId : NO_DEVICE_ID, null, job, callback);
+    }
+
+    private void enqueue(final String key, IRSignal signal, Job job, final IRAPIResult callback) {
+        SendSignalItem item = new SendSignalItem(signal, callback);
+        item.job = job;
+        boolean doSendSignal = false;
+        synchronized (pipelines) {
+            Pipeline pipeline = pipelines.get(key);
+            if (pipeline == null) {
+                pipeline = new Pipeline();
+                pipelines.put(key, pipeline);
+            }
+            SendSignalItem mergedInto = null;
+            if (isCoalescingEnabled && signal != null) {
+                mergedInto = coalesce(pipeline, signal, callback);
+            }
+            if (mergedInto != null) {
+                item = mergedInto;
+            } else {
+                pipeline.queue.add(item);
+                int depth = pipeline.queue.size();
+                pipeline.stats.queueDepth = depth;
+                if (depth > pipeline.stats.maxQueueDepth) {
+                    pipeline.stats.maxQueueDepth = depth;
+                }
+                if (depth == 1) {
+                    // Do it now
+                    doSendSignal = true;
+                }
+            }
+        }
+        IRRequestHandle requester = IRRequestHandle.current();
+        if (requester != null) {
+            final SendSignalItem cancelledItem = item;
+            requester.addCancelAction(new Runnable() {
+                @Override
+                public void run() {
+                    cancel(key, cancelledItem, callback);
+                }
+            });
+        }
+        if (doSendSignal) {
+            send(key, item);
+        }
+    }
+
+    /**
+     * <p class="ja">
+     * itemの追加元の1つを取り消します。追加元がなくなった場合、送信待ちのitemはキューから取り除かれ、
+     * 送信中のitemはHTTPリクエストが中断されます。
+     * </p>
+     *
+     * <p class="en">
+     * Cancel one of the enqueuers of item. When no enqueuer is left, a waiting item is
+     * removed from the queue and the HTTP request of an item being sent is aborted.
+     * </p>
+     */
+    private void cancel(String key, SendSignalItem item, IRAPIResult callback) {
+        boolean doAbort = false;
+        synchronized (pipelines) {
+            Pipeline pipeline = pipelines.get(key);
+            if (pipeline == null || !pipeline.queue.contains(item)) {
+                // Already finished
+                return;
+            }
+            if (callback != null) {
+                item.callbacks.remove(callback);
+            }
+            item.requesterCount--;
+            if (item.signal != null && !item.signal.isIdempotent() &&
+                    item.signal.isRepeatable() && item.repeatCount > 1) {
+                item.repeatCount--;
+            }
+            if (item.requesterCount > 0) {
+                return;
+            }
+            if (pipeline.queue.peek() == item) {
+                doAbort = true;
+            } else {
+                pipeline.queue.remove(item);
+                pipeline.stats.queueDepth = pipeline.queue.size();
+            }
+        }
+        if (doAbort) {
+            // A request still queued in IRRequestThrottler never calls back once
+            // cancelled, so move on to the next signal without waiting for the result
+            item.handle.cancel();
+            onSendDone(key, item, false);
+        }
+    }
+
+    /**
+     * deviceIdに対する送信統計のコピーを返します。
+     * Return a copy of send statistics for deviceId.
+     *
+     * @param deviceId deviceid
+     * @return 送信統計。一度も送信していない場合はnull。
+     *         Send statistics, or null if nothing has been sent to the device.
+     */
+    public Stats getStats(String deviceId) {
+        synchronized (pipelines) {
+            Pipeline pipeline = pipelines.get(deviceId != null ? deviceId : NO_DEVICE_ID);
+            return pipeline != null ? pipeline.stats.copy() : null;
+        }
+    }
+
+    /**
+     * 全IRKitデバイスの送信統計のコピーをdeviceidをキーとして返します。
+     * Return copies of send statistics for all IRKit devices keyed by deviceid.
+     *
+     * @return deviceidをキーとするMap。 Map keyed by deviceid.
+     */
+    public Map<String, Stats> getAllStats() {
+        HashMap<String, Stats> allStats = new HashMap<>();
+        synchronized (pipelines) {
+            for (Map.Entry<String, Pipeline> entry : pipelines.entrySet()) {
+                allStats.put(entry.getKey(), entry.getValue().stats.copy());
+            }
+        }
+        return allStats;
+    }
+
+    /**
+     * 送信待ちの最後の信号にsignalをまとめます。pipelinesをロックした状態で呼んでください。
+     * Merge signal into the last waiting send. Must be called with pipelines locked.
+     *
+     * @return まとめ先の送信。まとめなかった場合はnull。 Send merged into, or null if not merged.
+     */
+    private static SendSignalItem coalesce(Pipeline pipeline, IRSignal signal, IRAPIResult callback) {
+        // The head is already being sent
+        if (pipeline.queue.size() < 2) {
+            return null;
+        }
+        SendSignalItem last = pipeline.queue.peekLast();
+        if (last.signal == null || !last.signal.hasSameContent(signal)) {
+            return null;
+        }
+        if (signal.isIdempotent()) {
+            // Sending it once more has no effect
+        } else if (signal.isRepeatable()) {
+            last.repeatCount++;
+        } else {
+            return null;
+        }
+        if (callback != null) {
+            last.callbacks.add(callback);
+        }
+        last.requesterCount++;
+        pipeline.stats.coalescedCount++;
+        return last;
+    }
+
+    private static String getKey(IRSignal signal) {
+        String deviceId = signal.getDeviceId();
+        return deviceId != null ? deviceId : NO_DEVICE_ID;
+    }
+
+    private void send(final String key, final SendSignalItem item) {
+        item.startedAt = System.currentTimeMillis();
+        if (item.job != null) {
+            runJob(key, item);
+        } else {
+            sendOnce(key, item, 1);
+        }
+    }
+
+    private void runJob(final String key, final SendSignalItem item) {
+        item.handle.run(new Runnable() {
+            @Override
+            public void run() {
+                runJobInHandle(key, item);
+            }
+        });
+    }
+
+    private void runJobInHandle(final String key, final SendSignalItem item) {
+        item.job.run(new IRAPIResult() {
+            @Override
+            public void onSuccess() {
+                for (IRAPIResult callback : onSendDone(key, item, true)) {
+                    callback.onSuccess();
+                }
+            }
+
+            @Override
+            public void onError(IRAPIError error) {
+                for (IRAPIResult callback : onSendDone(key, item, false)) {
+                    callback.onError(error);
+                }
+            }
+
+            @Override
+            public void onTimeout() {
+                for (IRAPIResult callback : onSendDone(key, item, false)) {
+                    callback.onTimeout();
+                }
+            }
+        });
+    }
+
+    /**
+     * 信号をitem.repeatCount回続けて送信します。途中で失敗した場合は残りを送信しません。
+     * Send the signal item.repeatCount times in a row. The rest is not sent on failure.
+     */
+    private void sendOnce(final String key, final SendSignalItem item, final int count) {
+        item.handle.run(new Runnable() {
+            @Override
+            public void run() {
+                sendOnceInHandle(key, item, count);
+            }
+        });
+    }
+
+    private void sendOnceInHandle(final String key, final SendSignalItem item, final int count) {
+        sender.send(item.signal, new IRAPIResult() {
+            @Override
+            public void onSuccess() {
+                int repeatCount;
+                synchronized (pipelines) {
+                    repeatCount = item.repeatCount;
+                }
+                if (count < repeatCount && !item.handle.isCancelled()) {
+                    sendOnce(key, item, count + 1);
+                    return;
+                }
+                for (IRAPIResult callback : onSendDone(key, item, true)) {
+                    callback.onSuccess();
+                }
+            }
+
+            @Override
+            public void onError(IRAPIError error) {
+                for (IRAPIResult callback : onSendDone(key, item, false)) {
+                    callback.onError(error);
+                }
+            }
+
+            @Override
+            public void onTimeout() {
+                for (IRAPIResult callback : onSendDone(key, item, false)) {
+                    callback.onTimeout();
+                }
+            }
+        });
+    }
+
+    /**
+     * 送信が1個完了した際に呼ばれ、同じIRKitの次の信号を送信します。
+     * Called when a send has finished, then sends the next signal for the same IRKit.
+     *
+     * @return 結果を通知するコールバック。 Callbacks to be notified of the result.
+     */
+    private List<IRAPIResult> onSendDone(String key, SendSignalItem item, boolean isSuccess) {
+        long now = System.currentTimeMillis();
+        SendSignalItem nextItem;
+        List<IRAPIResult> callbacks;
+        synchronized (pipelines) {
+            if (item.isDone) {
+                // Already finished by cancel()
+                return new ArrayList<>();
+            }
+            item.isDone = true;
+            callbacks = new ArrayList<>(item.callbacks);
+            Pipeline pipeline = pipelines.get(key);
+            pipeline.queue.removeFirst();
+            Stats stats = pipeline.stats;
+            stats.queueDepth = pipeline.queue.size();
+            nextItem = pipeline.queue.peek();
+            if (item.handle.isCancelled()) {
+                // Aborted by its enqueuers; no callback is left and the result says nothing
+                callbacks.clear();
+            } else {
+                if (isSuccess) {
+                    stats.successCount++;
+                } else {
+                    stats.failureCount++;
+                }
+                stats.lastLatencyMs = now - item.enqueuedAt;
+                stats.lastSendDurationMs = now - item.startedAt;
+                stats.totalLatencyMs += stats.lastLatencyMs;
+                stats.averageLatencyMs = stats.totalLatencyMs / (stats.successCount + stats.failureCount);
+            }
+        }
+        if (nextItem != null) {
+            // Consume the next signal
+            send(key, nextItem);
+        }
+        return callbacks;
+    }
+}
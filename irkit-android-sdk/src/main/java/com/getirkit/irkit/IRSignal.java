@@ -6,12 +6,19 @@ import android.os.Parcel;
 import android.os.Parcelable;
 import android.util.Log;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
+import com.getirkit.irkit.net.IRJsonWriter;
+import com.getirkit.irkit.net.IRSignalBodyCache;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.util.Arrays;
 import java.util.HashMap;
 
 /**
@@ -23,15 +30,38 @@ public class IRSignal implements Serializable, Parcelable {
 
     public static final int VIEW_POSITION_INVALID = -1;
 
+    // How data is stored in a record
+    private static final int RECORD_DATA_NONE = 0;
+    private static final int RECORD_DATA_VARINTS = 1;
+    private static final int RECORD_DATA_PACKED = 2;
+
+    // Bits of sendFlags
+    private static final int SEND_FLAG_IDEMPOTENT = 1;
+    private static final int SEND_FLAG_REPEATABLE = 2;
+
     // Never change this or you'll get InvalidClassException!
     private static final long serialVersionUID = 1L;
 
     /**
-     * 信号データ（2Mhzクロックでのon/off時間の配列）。
-     * Signal data (array of on/off time periods in 2MHz clock).
+     * <p class="ja">
+     * 信号データ（2Mhzクロックでのon/off時間の配列）。Javaシリアライゼーションの互換性のためだけに
+     * 残されているフィールドで、シリアライズ中以外は常にnullです。データはpackedDataに保持されます。
+     * </p>
+     *
+     * <p class="en">
+     * Signal data (array of on/off time periods in 2MHz clock). This field is kept only for
+     * compatibility with Java serialization and is always null except while serializing.
+     * The data is held in packedData.
+     * </p>
      */
     private int[] data;
 
+    /**
+     * IRPulseDataで圧縮された信号データ。
+     * Signal data compressed by IRPulseData.
+     */
+    private transient byte[] packedData;
+
     /**
      * フォーマット。現状 "raw" のみサポートされています。
      * Signal format. Only "raw" is supported at this time.
@@ -86,6 +116,28 @@ public class IRSignal implements Serializable, Parcelable {
      */
     private String id;
 
+    /**
+     * 送信キューでのまとめ方を表すフラグ。isIdempotent()とisRepeatable()を参照してください。
+     * Flags on how queued sends may be merged. See isIdempotent() and isRepeatable().
+     */
+    private int sendFlags;
+
+    /**
+     * 保存対象のフィールドが変更されるたびに増える番号。変更されたレコードだけを
+     * エンコードし直すために使います。
+     * Incremented every time a persisted field changes. Used to re-encode
+     * only the records that have changed.
+     */
+    private transient int revision;
+
+    /**
+     * この信号をインデックスに登録しているIRSignals。idまたはdeviceIdが変わると通知されます。
+     * 保存対象のフィールドが変わった場合も通知されます。
+     * IRSignals whose index holds this signal. Notified when id or deviceId changes,
+     * and when any persisted field changes.
+     */
+    private transient IRIndexOwners indexOwners;
+
     /**
      * コンストラクタ。
      * Constructor.
@@ -94,23 +146,44 @@ public class IRSignal implements Serializable, Parcelable {
     }
 
     /**
-     * 赤外線信号のdataを返します。
-     * Return the data array of this IR signal.
+     * <p class="ja">
+     * 赤外線信号のdataを返します。dataは圧縮して保持されているため、呼ぶたびに展開した
+     * 新しい配列を返します。返された配列を変更しても信号には反映されません。
+     * </p>
+     *
+     * <p class="en">
+     * Return the data array of this IR signal. Since the data is held in compressed form,
+     * every call returns a newly decompressed array. Modifying the returned array does not
+     * affect this signal.
+     * </p>
      *
      * @return 赤外線信号データ。 IR signal data.
      */
     public int[] getData() {
-        return data;
+        return IRPulseData.unpack(packedData);
     }
 
     /**
-     * 赤外線信号のdataをセットします。
-     * Set the data array for this IR signal.
+     * 赤外線信号のdataをセットします。dataは圧縮して保持されます。
+     * Set the data array for this IR signal. The data is held in compressed form.
      *
      * @param data 赤外線信号データ。 IR signal data.
      */
     public void setData(int[] data) {
-        this.data = data;
+        this.packedData = IRPulseData.pack(data);
+        markChanged();
+        IRSignalBodyCache.sharedInstance().invalidate(id);
+    }
+
+    /**
+     * 赤外線信号データを持っているかどうかを返します。
+     * Return whether this signal has data.
+     *
+     * @return データがセットされている場合はtrue。 True if data is set.
+     * @since 1.4.0
+     */
+    public boolean hasData() {
+        return packedData != null;
     }
 
     /**
@@ -131,6 +204,8 @@ public class IRSignal implements Serializable, Parcelable {
      */
     public void setFormat(String format) {
         this.format = format;
+        markChanged();
+        IRSignalBodyCache.sharedInstance().invalidate(id);
     }
 
     /**
@@ -151,6 +226,8 @@ public class IRSignal implements Serializable, Parcelable {
      */
     public void setFrequency(float frequency) {
         this.frequency = frequency;
+        markChanged();
+        IRSignalBodyCache.sharedInstance().invalidate(id);
     }
 
     /**
@@ -171,6 +248,7 @@ public class IRSignal implements Serializable, Parcelable {
      */
     public void setName(String name) {
         this.name = name;
+        markChanged();
     }
 
     /**
@@ -223,6 +301,7 @@ public class IRSignal implements Serializable, Parcelable {
      */
     public void setImageResourceName(String imageResourceName) {
         this.imageResourceName = imageResourceName;
+        markChanged();
     }
 
     /**
@@ -247,6 +326,7 @@ public class IRSignal implements Serializable, Parcelable {
             imageResourceId = 0;
             imageResourceName = null;
         }
+        markChanged();
     }
 
     /**
@@ -267,6 +347,162 @@ public class IRSignal implements Serializable, Parcelable {
      */
     public void setDeviceId(String deviceId) {
         this.deviceId = deviceId;
+        markChanged();
+        notifyKeyChanged();
+    }
+
+    /**
+     * <p class="ja">
+     * 信号が冪等かどうかを返します。冪等な信号（電源オン、入力切替など）は何回送信しても
+     * 1回送信した場合と結果が同じです。IRSendSchedulerのまとめ送信が有効な場合、
+     * 送信待ちの同じ信号の直後に追加された冪等な信号はその送信にまとめられます。
+     * </p>
+     *
+     * <p class="en">
+     * Return whether this signal is idempotent. Sending an idempotent signal (power on,
+     * input select, etc.) many times has the same effect as sending it once. When coalescing
+     * of IRSendScheduler is enabled, an idempotent signal enqueued right after the same
+     * signal still waiting to be sent is merged into that send.
+     * </p>
+     *
+     * @return 冪等な場合はtrue。 True if idempotent.
+     * @since 1.4.0
+     */
+    public boolean isIdempotent() {
+        return (sendFlags & SEND_FLAG_IDEMPOTENT) != 0;
+    }
+
+    /**
+     * 信号が冪等かどうかをセットします。
+     * Set whether this signal is idempotent.
+     *
+     * @param idempotent 冪等な場合はtrue。 True if idempotent.
+     * @see #isIdempotent()
+     * @since 1.4.0
+     */
+    public void setIdempotent(boolean idempotent) {
+        setSendFlag(SEND_FLAG_IDEMPOTENT, idempotent);
+    }
+
+    /**
+     * <p class="ja">
+     * 信号が繰り返し可能かどうかを返します。繰り返し可能な信号（音量アップなど）は送信した回数だけ
+     * 効果があります。IRSendSchedulerのまとめ送信が有効な場合、送信待ちの同じ信号の直後に
+     * 追加された繰り返し可能な信号は「N回繰り返し」の1個の送信にまとめられます。
+     * </p>
+     *
+     * <p class="en">
+     * Return whether this signal is repeatable. A repeatable signal (volume up, etc.) takes
+     * effect as many times as it is sent. When coalescing of IRSendScheduler is enabled, a
+     * repeatable signal enqueued right after the same signal still waiting to be sent is
+     * merged into a single "repeat N times" send.
+     * </p>
+     *
+     * @return 繰り返し可能な場合はtrue。 True if repeatable.
+     * @since 1.4.0
+     */
+    public boolean isRepeatable() {
+        return (sendFlags & SEND_FLAG_REPEATABLE) != 0;
+    }
+
+    /**
+     * 信号が繰り返し可能かどうかをセットします。
+     * Set whether this signal is repeatable.
+     *
+     * @param repeatable 繰り返し可能な場合はtrue。 True if repeatable.
+     * @see #isRepeatable()
+     * @since 1.4.0
+     */
+    public void setRepeatable(boolean repeatable) {
+        setSendFlag(SEND_FLAG_REPEATABLE, repeatable);
+    }
+
+    private void setSendFlag(int flag, boolean isSet) {
+        if (isSet) {
+            sendFlags |= flag;
+        } else {
+            sendFlags &= ~flag;
+        }
+        markChanged();
+    }
+
+    /**
+     * 送信先だけをdeviceIdに変えた、idを持たない複製を返します。
+     * Return a copy without id which is sent to deviceId instead.
+     *
+     * @param deviceId 送信先のdeviceid。 Deviceid of the target.
+     * @return 複製。 Copy.
+     */
+    IRSignal copyForDevice(String deviceId) {
+        IRSignal copy = new IRSignal();
+        copy.packedData = packedData;
+        copy.format = format;
+        copy.frequency = frequency;
+        copy.name = name;
+        copy.sendFlags = sendFlags;
+        copy.deviceId = deviceId;
+        return copy;
+    }
+
+    /**
+     * 送信される内容（deviceid、format、freq、data）が同じかどうかを返します。
+     * Return whether the other signal sends the same content (deviceid, format, freq and data).
+     *
+     * @param other 比較する信号。 Signal to be compared.
+     * @return 同じ場合はtrue。 True if the same.
+     */
+    boolean hasSameContent(IRSignal other) {
+        if (other == this) {
+            return true;
+        }
+        return other != null &&
+                frequency == other.frequency &&
+                (format == null ? other.format == null : format.equals(other.format)) &&
+                (deviceId == null ? other.deviceId == null : deviceId.equals(other.deviceId)) &&
+                Arrays.equals(packedData, other.packedData);
+    }
+
+    /**
+     * <p class="ja">
+     * 同じボタンを学習し直した信号とみなせるかどうかを返します。学習した信号のon/off時間は
+     * 受信のたびに少しずつ揺らぐため、deviceid、format、freq、dataの長さが同じで、
+     * dataの各要素の差が大きい方の値のtolerance倍以内であれば同じとみなします。
+     * </p>
+     *
+     * <p class="en">
+     * Return whether the other signal can be regarded as the same button learned again.
+     * On/off times of learned signals jitter from capture to capture, so the signals are
+     * regarded as the same if deviceid, format, freq and the length of data are the same and
+     * every element of data differs by at most tolerance times the larger of the two.
+     * </p>
+     *
+     * @param other 比較する信号。 Signal to be compared.
+     * @param tolerance 許容する差の割合。 Tolerated ratio of difference.
+     * @return 同じとみなせる場合はtrue。 True if regarded as the same.
+     */
+    boolean hasSimilarContent(IRSignal other, float tolerance) {
+        if (hasSameContent(other)) {
+            return true;
+        }
+        if (other == null ||
+                frequency != other.frequency ||
+                !(format == null ? other.format == null : format.equals(other.format)) ||
+                !(deviceId == null ? other.deviceId == null : deviceId.equals(other.deviceId)) ||
+                packedData == null || other.packedData == null) {
+            return false;
+        }
+        int[] data = getData();
+        int[] otherData = other.getData();
+        if (data.length != otherData.length) {
+            return false;
+        }
+        for (int i = 0; i < data.length; i++) {
+            int larger = Math.max(data[i], otherData[i]);
+            if (Math.abs(data[i] - otherData[i]) > larger * tolerance) {
+                return false;
+            }
+        }
+        return true;
     }
 
     /**
@@ -288,6 +524,7 @@ public class IRSignal implements Serializable, Parcelable {
      */
     public void setViewPosition(int viewPosition) {
         this.viewPosition = viewPosition;
+        markChanged();
     }
 
     /**
@@ -308,6 +545,10 @@ public class IRSignal implements Serializable, Parcelable {
      */
     public void setId(String id) {
         this.id = id;
+        markChanged();
+        notifyKeyChanged();
+        // Another signal may have used this id
+        IRSignalBodyCache.sharedInstance().invalidate(id);
     }
 
     /**
@@ -356,6 +597,7 @@ public class IRSignal implements Serializable, Parcelable {
         File to = new File(context.getFilesDir(), suggestedFilename);
         boolean success = from.renameTo(to);
         imageFilename = suggestedFilename;
+        markChanged();
         return success;
     }
 
@@ -366,22 +608,7 @@ public class IRSignal implements Serializable, Parcelable {
      * @return JSON string
      */
     public String toJson() {
-        JSONObject jsonObj = new JSONObject();
-        try {
-            jsonObj.put("format", format);
-            jsonObj.put("freq", frequency);
-            if (data != null) {
-                JSONArray dataArray = new JSONArray();
-                for (int value : data) {
-                    dataArray.put(value);
-                }
-                jsonObj.put("data", dataArray);
-            }
-        } catch (JSONException e) {
-            e.printStackTrace();
-            return null;
-        }
-        return jsonObj.toString();
+        return IRJsonWriter.toMessageJson(format, frequency, getData());
     }
 
     /**
@@ -426,6 +653,7 @@ public class IRSignal implements Serializable, Parcelable {
             }
         }
         imageFilename = null;
+        markChanged();
     }
 
     /**
@@ -443,6 +671,136 @@ public class IRSignal implements Serializable, Parcelable {
         }
     }
 
+    /**
+     * 保存対象のフィールドが変更された回数を返します。
+     * Return how many times persisted fields have changed.
+     *
+     * @return revision
+     */
+    synchronized int getRevision() {
+        return revision;
+    }
+
+    /**
+     * この信号をインデックスに登録したIRSignalsを追加します。
+     * Add IRSignals whose index holds this signal.
+     *
+     * @param invalidator IRSignalsのインデックスを無効にするInvalidator。 Invalidator of the index of IRSignals.
+     */
+    void addIndexOwner(IRIndexOwners.Invalidator invalidator) {
+        IRIndexOwners owners;
+        synchronized (this) {
+            if (indexOwners == null) {
+                indexOwners = new IRIndexOwners();
+            }
+            owners = indexOwners;
+        }
+        owners.add(invalidator);
+    }
+
+    /**
+     * 保存対象のフィールドが変わったことを記録し、この信号を登録しているIRSignalsに通知します。
+     * Record that a persisted field has changed, and notify IRSignals holding this signal.
+     */
+    private void markChanged() {
+        IRIndexOwners owners;
+        synchronized (this) {
+            revision++;
+            owners = indexOwners;
+        }
+        if (owners != null) {
+            owners.changed(this);
+        }
+    }
+
+    private void notifyKeyChanged() {
+        IRIndexOwners owners;
+        synchronized (this) {
+            owners = indexOwners;
+        }
+        if (owners != null) {
+            owners.keyChanged();
+        }
+    }
+
+    /**
+     * 保存用のバイナリレコードに変換します。
+     * Encode this signal into a binary record for persistence.
+     *
+     * @return バイナリレコード。 Binary record.
+     * @throws IOException エンコードに失敗した場合。 If encoding failed.
+     */
+    byte[] toRecord() throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(64 + (packedData != null ? packedData.length : 0));
+        DataOutputStream out = new DataOutputStream(baos);
+        IRRecordFile.writeString(out, id);
+        IRRecordFile.writeString(out, name);
+        IRRecordFile.writeString(out, format);
+        out.writeFloat(frequency);
+        IRRecordFile.writeString(out, deviceId);
+        IRRecordFile.writeString(out, imageResourceName);
+        IRRecordFile.writeString(out, imageFilename);
+        out.writeInt(viewPosition);
+        if (packedData == null) {
+            out.writeByte(RECORD_DATA_NONE);
+        } else {
+            out.writeByte(RECORD_DATA_PACKED);
+            IRRecordFile.writeVarInt(out, packedData.length);
+            out.write(packedData);
+        }
+        IRRecordFile.writeVarInt(out, sendFlags);
+        out.close();
+        return baos.toByteArray();
+    }
+
+    /**
+     * toRecord()で作成されたバイナリレコードからIRSignalを作成します。
+     * Create an IRSignal from a binary record created by toRecord().
+     *
+     * @param record バイナリレコード。 Binary record.
+     * @return IRSignal
+     * @throws IOException レコードが壊れている場合。 If the record is corrupted.
+     */
+    static IRSignal fromRecord(byte[] record) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        IRSignal signal = new IRSignal();
+        signal.id = IRRecordFile.readString(in);
+        signal.name = IRRecordFile.readString(in);
+        signal.format = IRRecordFile.readString(in);
+        signal.frequency = in.readFloat();
+        signal.deviceId = IRRecordFile.readString(in);
+        signal.imageResourceName = IRRecordFile.readString(in);
+        signal.imageFilename = IRRecordFile.readString(in);
+        signal.viewPosition = in.readInt();
+        int dataEncoding = in.readUnsignedByte();
+        if (dataEncoding == RECORD_DATA_VARINTS) {
+            int[] data = new int[IRRecordFile.readVarInt(in)];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = IRRecordFile.readVarInt(in);
+            }
+            signal.packedData = IRPulseData.pack(data);
+        } else if (dataEncoding == RECORD_DATA_PACKED) {
+            signal.packedData = new byte[IRRecordFile.readVarInt(in)];
+            in.readFully(signal.packedData);
+        } else if (dataEncoding != RECORD_DATA_NONE) {
+            throw new IOException("Unknown data encoding: " + dataEncoding);
+        }
+        signal.sendFlags = IRRecordFile.readVarInt(in);
+        return signal;
+    }
+
+    /**
+     * toRecord()で作成されたバイナリレコードの先頭にあるidだけを読み込みます。
+     * Read only the id at the head of a binary record created by toRecord().
+     *
+     * @param record バイナリレコード。 Binary record.
+     * @return id。nullの場合もあります。 Id, which may be null.
+     * @throws IOException レコードが壊れている場合。 If the record is corrupted.
+     */
+    static String readRecordId(byte[] record) throws IOException {
+        return IRRecordFile.readString(new DataInputStream(new ByteArrayInputStream(record)));
+    }
+
     @Override
     public String toString() {
         return "IRSignal[name=" + name + ";deviceId=" + deviceId + ";viewPosition=" + viewPosition + ";imageResourceName=" + imageResourceName + ";imageFilename=" + imageFilename + "]";
@@ -453,14 +811,25 @@ public class IRSignal implements Serializable, Parcelable {
         return 0;
     }
 
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        // Serialize data as int[] to stay compatible with existing serialized forms
+        data = getData();
+        try {
+            out.defaultWriteObject();
+        } finally {
+            data = null;
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        packedData = IRPulseData.pack(data);
+        data = null;
+    }
+
     @Override
     public void writeToParcel(Parcel out, int flags) {
-        if (data == null) {
-            out.writeInt(-1);
-        } else {
-            out.writeInt(data.length);
-            out.writeIntArray(data);
-        }
+        out.writeByteArray(packedData);
         out.writeString(format);
         out.writeFloat(frequency);
         out.writeString(name);
@@ -470,6 +839,7 @@ public class IRSignal implements Serializable, Parcelable {
         out.writeString(deviceId);
         out.writeInt(viewPosition);
         out.writeString(id);
+        out.writeInt(sendFlags);
     }
 
     public static final Creator<IRSignal> CREATOR = new Creator<IRSignal>() {
@@ -485,13 +855,7 @@ public class IRSignal implements Serializable, Parcelable {
     };
 
     private IRSignal(Parcel in) {
-        int dataLength = in.readInt();
-        if (dataLength == -1) {
-            data = null;
-        } else {
-            data = new int[dataLength];
-            in.readIntArray(data);
-        }
+        packedData = in.createByteArray();
         format = in.readString();
         frequency = in.readFloat();
         name = in.readString();
@@ -501,5 +865,6 @@ public class IRSignal implements Serializable, Parcelable {
         deviceId = in.readString();
         viewPosition = in.readInt();
         id = in.readString();
+        sendFlags = in.readInt();
     }
 }
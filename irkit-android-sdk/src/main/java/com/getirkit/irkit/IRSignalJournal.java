@@ -0,0 +1,370 @@
+package com.getirkit.irkit;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * <p class="ja">
+ * IRSignalsへの変更を追記していくジャーナルファイルです。
+ * スナップショット（signals.dat）の後に行われた変更だけが記録されるため、
+ * 1個の信号の変更は1個のエントリの追記で済みます。読み込み時にはスナップショットに
+ * ジャーナルを再生して最新の状態を復元します。書き込み途中でクラッシュして壊れた
+ * 末尾のエントリは無視されます。ヘッダには元になったスナップショットの長さとCRC32が
+ * 記録され、コンパクション中のクラッシュで残った古いジャーナルが新しいスナップショットに
+ * 再生されることはありません。
+ * </p>
+ *
+ * <p class="en">
+ * Append-only journal of changes to IRSignals. Only the changes made after
+ * the snapshot (signals.dat) are recorded, so changing one signal costs one
+ * appended entry. On load, the journal is replayed on top of the snapshot to
+ * restore the latest state. A trailing entry corrupted by a crash mid-write
+ * is ignored.
+ * </p>
+ *
+ * <p>
+ * The header records the length and CRC32 of the snapshot the journal was
+ * started on, so that a journal left behind by a crash during compaction is
+ * never replayed onto the newer snapshot. Modification time is not used since
+ * it has a granularity of a second on common filesystems.
+ * </p>
+ *
+ * <pre>
+ * file  := magic(int) version(int) snapshotLength(long) snapshotCrc32(long) entry*
+ * entry := type(byte) length(varint) payload crc32(int)
+ * </pre>
+ */
+class IRSignalJournal {
+    public static final String TAG = IRSignalJournal.class.getSimpleName();
+
+    /**
+     * "IRKJ"
+     */
+    static final int MAGIC = 0x49524b4a;
+
+    /**
+     * ファイルフォーマットのバージョン。 Version of the file format.
+     */
+    static final int VERSION = 2;
+
+    private static final int HEADER_LENGTH = 24;
+
+    /**
+     * 信号を追加または置き換えるエントリ。 Entry which adds or replaces a signal.
+     */
+    static final byte TYPE_PUT = 1;
+
+    /**
+     * 信号を削除するエントリ。 Entry which removes a signal.
+     */
+    static final byte TYPE_DELETE = 2;
+
+    /**
+     * 信号の並び順を変更するエントリ。 Entry which reorders signals.
+     */
+    static final byte TYPE_ORDER = 3;
+
+    /**
+     * ジャーナルの1エントリです。
+     * An entry of the journal.
+     */
+    static class Entry {
+        final byte type;
+        final String id;
+        final byte[] record;
+        final List<String> ids;
+
+        private Entry(byte type, String id, byte[] record, List<String> ids) {
+            this.type = type;
+            this.id = id;
+            this.record = record;
+            this.ids = ids;
+        }
+
+        static Entry put(String id, byte[] record) {
+            return new Entry(TYPE_PUT, id, record, null);
+        }
+
+        static Entry delete(String id) {
+            return new Entry(TYPE_DELETE, id, null, null);
+        }
+
+        static Entry order(List<String> ids) {
+            return new Entry(TYPE_ORDER, null, null, ids);
+        }
+    }
+
+    private final File file;
+
+    /**
+     * 最後のreplay()で壊れたエントリか古いジャーナルが見つかった場合はtrue。
+     * True if the last replay() found a corrupted entry or a stale journal.
+     */
+    private boolean needsCompaction;
+
+    IRSignalJournal(File file) {
+        this.file = file;
+    }
+
+    /**
+     * ジャーナルのバイト数を返します。ファイルが存在しない場合は0です。
+     * Return the size of the journal in bytes, or 0 if the file does not exist.
+     *
+     * @return バイト数。 Size in bytes.
+     */
+    long length() {
+        return file.length();
+    }
+
+    /**
+     * ヘッダ以外にエントリが存在するかどうかを返します。
+     * Return whether the journal has any entries.
+     *
+     * @return エントリが存在すればtrue。 True if the journal has entries.
+     */
+    boolean hasEntries() {
+        return file.length() > HEADER_LENGTH;
+    }
+
+    /**
+     * <p class="ja">
+     * 最後のreplay()で壊れたエントリか古いジャーナルが見つかったかどうかを返します。
+     * その場合、以降のエントリを追記する前にスナップショットを書き直す必要があります。
+     * </p>
+     *
+     * <p class="en">
+     * Return whether the last replay() found a corrupted entry or a stale journal.
+     * If so, a snapshot must be written before appending further entries.
+     * </p>
+     *
+     * @return スナップショットを書き直す必要がある場合はtrue。 True if a snapshot must be written.
+     */
+    boolean needsCompaction() {
+        return needsCompaction;
+    }
+
+    /**
+     * エントリを追記します。
+     * Append entries.
+     *
+     * @param entries 追記するエントリ。 Entries to be appended.
+     * @param snapshotLength 元になったスナップショットのバイト数。 Size in bytes of the snapshot.
+     * @param snapshotChecksum 元になったスナップショットのCRC32。 CRC32 of the snapshot.
+     * @throws IOException 書き込みに失敗した場合。 If writing failed.
+     */
+    void append(List<Entry> entries, long snapshotLength, long snapshotChecksum) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+        boolean append = file.length() >= HEADER_LENGTH;
+        if (!append) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(snapshotLength);
+            out.writeLong(snapshotChecksum);
+        }
+        CRC32 crc = new CRC32();
+        for (Entry entry : entries) {
+            byte[] payload = encodePayload(entry);
+            crc.reset();
+            crc.update(entry.type);
+            crc.update(payload);
+            out.writeByte(entry.type);
+            IRRecordFile.writeVarInt(out, payload.length);
+            out.write(payload);
+            out.writeInt((int) crc.getValue());
+        }
+        out.close();
+
+        FileOutputStream fos = new FileOutputStream(file, append);
+        try {
+            fos.write(baos.toByteArray());
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+    }
+
+    /**
+     * ジャーナルのエントリを消去します。スナップショットを書き込んだ後に呼びます。
+     * Discard all entries. Called after a snapshot has been written.
+     */
+    void reset() {
+        if (file.exists() && !file.delete()) {
+            Log.e(TAG, "Failed to delete " + file);
+        }
+        needsCompaction = false;
+    }
+
+    /**
+     * <p class="ja">
+     * ジャーナルが指定されたスナップショットを元にしているかどうかを返します。
+     * 古いジャーナルやヘッダが壊れたジャーナルの場合はfalseを返し、needsCompaction()がtrueになります。
+     * </p>
+     *
+     * <p class="en">
+     * Return whether the journal was started on the given snapshot. For a stale journal
+     * or a journal with a corrupted header, false is returned and needsCompaction() becomes true.
+     * </p>
+     *
+     * @param snapshotLength スナップショットのバイト数。 Size in bytes of the snapshot.
+     * @param snapshotChecksum スナップショットのCRC32。 CRC32 of the snapshot.
+     * @return スナップショットに再生できる場合はtrue。 True if the journal can be replayed onto the snapshot.
+     */
+    boolean belongsTo(long snapshotLength, long snapshotChecksum) {
+        needsCompaction = false;
+        if (!file.exists()) {
+            return true;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new FileInputStream(file));
+            try {
+                if (readHeader(in, snapshotLength, snapshotChecksum)) {
+                    return true;
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException ex) {
+            Log.w(TAG, "Failed to read journal header", ex);
+        }
+        needsCompaction = true;
+        return false;
+    }
+
+    private static boolean readHeader(DataInputStream in, long snapshotLength, long snapshotChecksum) throws IOException {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            Log.w(TAG, "Unknown journal header; ignoring it");
+            return false;
+        }
+        if (in.readLong() != snapshotLength || in.readLong() != snapshotChecksum) {
+            Log.w(TAG, "Journal does not belong to the current snapshot; ignoring it");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * ジャーナルをrecordsに再生します。
+     * Replay the journal onto records.
+     *
+     * @param records idをキーとする、順序付きのレコード。 Ordered records keyed by id.
+     * @param snapshotLength スナップショットのバイト数。 Size in bytes of the snapshot.
+     * @param snapshotChecksum スナップショットのCRC32。 CRC32 of the snapshot.
+     * @throws IOException ファイルの読み込みに失敗した場合。 If the file cannot be read.
+     */
+    void replay(LinkedHashMap<String, byte[]> records, long snapshotLength, long snapshotChecksum) throws IOException {
+        needsCompaction = false;
+        if (!file.exists()) {
+            return;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (!readHeader(in, snapshotLength, snapshotChecksum)) {
+                needsCompaction = true;
+                return;
+            }
+            CRC32 crc = new CRC32();
+            while (true) {
+                int type = in.read();
+                if (type == -1) {
+                    break;
+                }
+                byte[] payload = new byte[IRRecordFile.readVarInt(in)];
+                in.readFully(payload);
+                int checksum = in.readInt();
+                crc.reset();
+                crc.update(type);
+                crc.update(payload);
+                if ((int) crc.getValue() != checksum) {
+                    Log.w(TAG, "Checksum mismatch; ignoring the rest of the journal");
+                    needsCompaction = true;
+                    break;
+                }
+                apply((byte) type, payload, records);
+            }
+        } catch (EOFException ex) {
+            Log.w(TAG, "Truncated entry; ignoring the rest of the journal");
+            needsCompaction = true;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static byte[] encodePayload(Entry entry) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+        switch (entry.type) {
+            case TYPE_PUT:
+                IRRecordFile.writeString(out, entry.id);
+                out.write(entry.record);
+                break;
+            case TYPE_DELETE:
+                IRRecordFile.writeString(out, entry.id);
+                break;
+            case TYPE_ORDER:
+                IRRecordFile.writeVarInt(out, entry.ids.size());
+                for (String id : entry.ids) {
+                    IRRecordFile.writeString(out, id);
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown entry type: " + entry.type);
+        }
+        out.close();
+        return baos.toByteArray();
+    }
+
+    private static void apply(byte type, byte[] payload, LinkedHashMap<String, byte[]> records) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        switch (type) {
+            case TYPE_PUT: {
+                String id = IRRecordFile.readString(in);
+                byte[] record = new byte[in.available()];
+                in.readFully(record);
+                // Replacing the value of an existing key keeps its position
+                records.put(id, record);
+                break;
+            }
+            case TYPE_DELETE:
+                records.remove(IRRecordFile.readString(in));
+                break;
+            case TYPE_ORDER: {
+                int count = IRRecordFile.readVarInt(in);
+                LinkedHashMap<String, byte[]> reordered = new LinkedHashMap<>(records.size());
+                for (int i = 0; i < count; i++) {
+                    String id = IRRecordFile.readString(in);
+                    byte[] record = records.get(id);
+                    if (record != null) {
+                        reordered.put(id, record);
+                    }
+                }
+                for (Iterator<Map.Entry<String, byte[]>> iter = records.entrySet().iterator(); iter.hasNext(); ) {
+                    Map.Entry<String, byte[]> e = iter.next();
+                    if (!reordered.containsKey(e.getKey())) {
+                        reordered.put(e.getKey(), e.getValue());
+                    }
+                }
+                records.clear();
+                records.putAll(reordered);
+                break;
+            }
+            default:
+                throw new IOException("Unknown entry type: " + type);
+        }
+    }
+}
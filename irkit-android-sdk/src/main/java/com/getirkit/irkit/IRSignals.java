@@ -7,13 +7,19 @@ import android.util.Base64;
 import android.util.Log;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 
 /**
@@ -27,6 +33,73 @@ public class IRSignals extends ArrayList<IRSignal> implements Parcelable {
     public static final String TAG = "IRSignals";
     public static final String PREFS_KEY = "signals";
 
+    /**
+     * データを保存するファイル名です。
+     * Name of the file which holds the data.
+     */
+    public static final String FILENAME = "signals.dat";
+
+    /**
+     * 変更を追記するジャーナルのファイル名です。
+     * Name of the journal file which changes are appended to.
+     */
+    public static final String JOURNAL_FILENAME = "signals.journal";
+
+    /**
+     * ジャーナルがこのバイト数とスナップショットの大きさの両方を超えたらスナップショットを書き直します。
+     * The snapshot is rewritten when the journal exceeds both this size in bytes and the snapshot size.
+     */
+    private static final long MIN_JOURNAL_LENGTH_TO_COMPACT = 64 * 1024;
+
+    /**
+     * 前回保存した時点での各信号のエンコード結果です。
+     * Encoded records of each signal as of the last save.
+     */
+    private transient IdentityHashMap<IRSignal, EncodedRecord> encodedRecords;
+
+    /**
+     * 前回保存した時点で保存されていた信号をidをキーとして持つマップです。
+     * nullの場合、次の保存ではスナップショットを書き直します。
+     * Signals persisted as of the last save, keyed by id. If null, the next save rewrites the snapshot.
+     */
+    private transient HashMap<String, IRSignal> persistedSignalsById;
+
+    // Changes since the last save. They are recorded by the methods which modify the list and
+    // by signals whose persisted fields change, so that save() never has to scan the list.
+    private transient Set<IRSignal> addedSignals;
+    private transient Set<IRSignal> changedSignals;
+    private transient Set<IRSignal> removedSignals;
+    private transient boolean isOrderChanged;
+    private transient boolean isFullSaveNeeded;
+    // modCount as of the last recorded change. Other structural changes leave it behind.
+    private transient int trackedModCount;
+
+    /**
+     * ジャーナルが元にするスナップショットのバイト数とCRC32です。
+     * Size in bytes and CRC32 of the snapshot the journal is based on.
+     */
+    private transient long snapshotLength;
+    private transient long snapshotChecksum;
+
+    private static class EncodedRecord {
+        private final String id;
+        private final int revision;
+        private final byte[] bytes;
+
+        private EncodedRecord(String id, int revision, byte[] bytes) {
+            this.id = id;
+            this.revision = revision;
+            this.bytes = bytes;
+        }
+    }
+
+    // Indexes for lookups. They are rebuilt when the list or a key of a signal
+    // has changed in a way that add() can't keep track of.
+    private transient HashMap<String, IRSignal> signalsById;
+    private transient HashMap<String, ArrayList<IRSignal>> signalsByDeviceId;
+    private transient int indexedModCount;
+    private transient IRIndexOwners.Invalidator indexInvalidator;
+
     /**
      * コンストラクタです。
      * Constructor.
@@ -34,6 +107,231 @@ public class IRSignals extends ArrayList<IRSignal> implements Parcelable {
     public IRSignals() {
     }
 
+    @Override
+    public synchronized boolean add(IRSignal signal) {
+        boolean isIndexValid = isIndexValid();
+        boolean isTracked = trackedModCount == modCount;
+        super.add(signal);
+        if (isIndexValid) {
+            addToIndex(signal);
+            indexedModCount = modCount;
+        }
+        trackAdded(signal, true);
+        if (isTracked) {
+            trackedModCount = modCount;
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized void add(int index, IRSignal signal) {
+        boolean isTracked = trackedModCount == modCount;
+        boolean isAppended = index == size();
+        super.add(index, signal);
+        trackAdded(signal, isAppended);
+        if (isTracked) {
+            trackedModCount = modCount;
+        }
+    }
+
+    @Override
+    public synchronized boolean addAll(Collection<? extends IRSignal> signals) {
+        // Copied in case signals is this list
+        for (IRSignal signal : new ArrayList<>(signals)) {
+            add(signal);
+        }
+        return !signals.isEmpty();
+    }
+
+    @Override
+    public synchronized IRSignal set(int index, IRSignal signal) {
+        // ArrayList#set doesn't change modCount
+        signalsById = null;
+        IRSignal previous = super.set(index, signal);
+        if (previous != signal) {
+            trackRemoved(previous);
+            trackAdded(signal, index == size() - 1);
+        }
+        return previous;
+    }
+
+    @Override
+    public synchronized IRSignal remove(int index) {
+        boolean isTracked = trackedModCount == modCount;
+        IRSignal signal = super.remove(index);
+        trackRemoved(signal);
+        if (isTracked) {
+            trackedModCount = modCount;
+        }
+        return signal;
+    }
+
+    @Override
+    public synchronized boolean remove(Object object) {
+        int index = indexOf(object);
+        if (index < 0) {
+            return false;
+        }
+        remove(index);
+        return true;
+    }
+
+    @Override
+    public synchronized void clear() {
+        boolean isTracked = trackedModCount == modCount;
+        for (IRSignal signal : this) {
+            trackRemoved(signal);
+        }
+        super.clear();
+        if (isTracked) {
+            trackedModCount = modCount;
+        }
+    }
+
+    /**
+     * <p class="ja">
+     * 信号の追加を記録します。isAppendedがfalseの場合は並び順の変更も記録します。
+     * nullや同じ信号が2回追加された場合はidで記録するジャーナルでは表せないため、
+     * 次の保存でスナップショットを書き直します。
+     * </p>
+     *
+     * <p class="en">
+     * Record that signal has been added. Unless isAppended, a change of the order is recorded too.
+     * The journal keys records by id, so null or the same signal added twice makes the next save
+     * rewrite the snapshot.
+     * </p>
+     */
+    private void trackAdded(IRSignal signal, boolean isAppended) {
+        initChanges();
+        if (signal == null || addedSignals.contains(signal) || isPersisted(signal)) {
+            isFullSaveNeeded = true;
+            return;
+        }
+        if (encodedRecords != null) {
+            signal.addIndexOwner(getIndexInvalidator());
+        }
+        if (removedSignals.remove(signal)) {
+            // Its persisted record stays at the old position unless the order is rewritten
+            changedSignals.add(signal);
+            isOrderChanged = true;
+        } else {
+            addedSignals.add(signal);
+            if (!isAppended) {
+                isOrderChanged = true;
+            }
+        }
+    }
+
+    /**
+     * 信号の削除を記録します。
+     * Record that signal has been removed.
+     */
+    private void trackRemoved(IRSignal signal) {
+        initChanges();
+        if (signal == null || addedSignals.remove(signal)) {
+            return;
+        }
+        changedSignals.remove(signal);
+        if (encodedRecords != null && encodedRecords.containsKey(signal)) {
+            removedSignals.add(signal);
+        }
+    }
+
+    /**
+     * 前回保存した信号で、まだこのリストに含まれているかどうかを返します。
+     * Return whether signal has been persisted by the last save and is still in this list.
+     */
+    private boolean isPersisted(IRSignal signal) {
+        return encodedRecords != null && encodedRecords.containsKey(signal) && !removedSignals.contains(signal);
+    }
+
+    private void initChanges() {
+        if (addedSignals == null) {
+            // Created lazily since transient fields are null after deserialization
+            resetChanges();
+        }
+    }
+
+    /**
+     * 記録した変更を破棄します。保存またはファイルからの読み込みの後に呼びます。
+     * Discard the recorded changes. Called after saving or loading from the files.
+     */
+    private void resetChanges() {
+        addedSignals = Collections.newSetFromMap(new IdentityHashMap<IRSignal, Boolean>());
+        changedSignals = Collections.newSetFromMap(new IdentityHashMap<IRSignal, Boolean>());
+        removedSignals = Collections.newSetFromMap(new IdentityHashMap<IRSignal, Boolean>());
+        isOrderChanged = false;
+        isFullSaveNeeded = false;
+        trackedModCount = modCount;
+    }
+
+    private boolean isIndexValid() {
+        return signalsById != null && indexedModCount == modCount;
+    }
+
+    /**
+     * 信号のidまたはdeviceIdが変わった際にインデックスを無効にするInvalidatorを返します。
+     * Return the Invalidator which invalidates the indexes when id or deviceId of a signal changes.
+     */
+    private IRIndexOwners.Invalidator getIndexInvalidator() {
+        if (indexInvalidator == null) {
+            // Created lazily since transient fields are null after deserialization
+            indexInvalidator = new IRIndexOwners.Invalidator() {
+                @Override
+                void invalidate() {
+                    synchronized (IRSignals.this) {
+                        signalsById = null;
+                    }
+                }
+
+                @Override
+                void changed(Object element) {
+                    synchronized (IRSignals.this) {
+                        IRSignal signal = (IRSignal) element;
+                        // Added signals are encoded by the next save anyway
+                        if (changedSignals != null && isPersisted(signal)) {
+                            changedSignals.add(signal);
+                        }
+                    }
+                }
+            };
+        }
+        return indexInvalidator;
+    }
+
+    private void addToIndex(IRSignal signal) {
+        if (signal == null) {
+            return;
+        }
+        signal.addIndexOwner(getIndexInvalidator());
+        String id = signal.getId();
+        if (id != null && !signalsById.containsKey(id)) {
+            signalsById.put(id, signal);
+        }
+        ArrayList<IRSignal> deviceSignals = signalsByDeviceId.get(signal.getDeviceId());
+        if (deviceSignals == null) {
+            deviceSignals = new ArrayList<>();
+            signalsByDeviceId.put(signal.getDeviceId(), deviceSignals);
+        }
+        deviceSignals.add(signal);
+    }
+
+    /**
+     * 必要な場合はインデックスを作り直します。
+     * Rebuild the indexes if needed.
+     */
+    private void ensureIndex() {
+        if (isIndexValid()) {
+            return;
+        }
+        signalsById = new HashMap<>(this.size());
+        signalsByDeviceId = new HashMap<>();
+        for (IRSignal signal : this) {
+            addToIndex(signal);
+        }
+        indexedModCount = modCount;
+    }
+
     /**
      * idが一致するIRSignalインスタンスを返します。
      * Return IRSignal instance that matches id.
@@ -42,13 +340,9 @@ public class IRSignals extends ArrayList<IRSignal> implements Parcelable {
      * @return 一致したIRSignal。一致しない場合はnull。
      *         Matched IRSignal, or null if not matched.
      */
-    public IRSignal getSignal(String id) {
-        for (IRSignal signal : this) {
-            if (signal.getId().equals(id)) {
-                return signal;
-            }
-        }
-        return null;
+    public synchronized IRSignal getSignal(String id) {
+        ensureIndex();
+        return signalsById.get(id);
     }
 
     /**
@@ -73,11 +367,14 @@ public class IRSignals extends ArrayList<IRSignal> implements Parcelable {
      * Remove signals which have invalid viewPosition.
      */
     public void removeInvalidSignals() {
-        for (Iterator<IRSignal> iter = this.iterator(); iter.hasNext(); ) {
-            IRSignal signal = iter.next();
+        // remove(int) records the removal for save(), which Iterator#remove may bypass
+        for (int i = 0; i < size(); ) {
+            IRSignal signal = get(i);
             if (signal.getViewPosition() == IRSignal.VIEW_POSITION_INVALID) {
-                iter.remove();
+                remove(i);
                 Log.w(TAG, "Removed invalid signal: " + signal);
+            } else {
+                i++;
             }
         }
     }
@@ -93,65 +390,323 @@ public class IRSignals extends ArrayList<IRSignal> implements Parcelable {
     }
 
     /**
-     * SharedPreferencesにデータを保存します。
-     * Save data to SharedPreferences.
+     * <p class="ja">
+     * 前回の保存からの変更をジャーナルに追記します。1個の信号の追加・削除・変更は
+     * 1個のエントリの追記で済みます。変更はリストの操作と信号からの通知で記録されるため、
+     * 変更されていない信号を調べることはありません。ジャーナルが大きくなるとスナップショットを
+     * 書き直してジャーナルを空にします。
+     * </p>
+     *
+     * <p class="en">
+     * Append changes since the last save to the journal. Adding, removing or
+     * modifying one signal costs one appended entry. Changes are recorded as the list
+     * is modified and as signals notify it, so unchanged signals are never visited.
+     * When the journal grows large, the snapshot is rewritten and the journal is emptied.
+     * </p>
      */
-    public void save() {
-        String serializedStr;
+    public synchronized void save() {
+        initChanges();
+        if (persistedSignalsById == null || isFullSaveNeeded || trackedModCount != modCount) {
+            // The journal is keyed by id, and only the recorded changes can be journaled
+            compact();
+            return;
+        }
+        if (addedSignals.isEmpty() && changedSignals.isEmpty() && removedSignals.isEmpty() && !isOrderChanged) {
+            return;
+        }
+        IRSignalJournal journal = getJournal();
+        if (journal.length() > MIN_JOURNAL_LENGTH_TO_COMPACT && journal.length() > getRecordFile().length()) {
+            compact();
+            return;
+        }
+
+        // Deletes go first so that no later entry deletes a put
+        ArrayList<IRSignalJournal.Entry> entries = new ArrayList<>();
+        HashSet<String> deletedIds = new HashSet<>();
+        boolean isOrderChanged = this.isOrderChanged;
+        for (IRSignal signal : removedSignals) {
+            String id = encodedRecords.get(signal).id;
+            deletedIds.add(id);
+            entries.add(IRSignalJournal.Entry.delete(id));
+        }
+        ArrayList<IRSignal> putSignals = new ArrayList<>(changedSignals.size() + addedSignals.size());
+        for (IRSignal signal : changedSignals) {
+            EncodedRecord previous = encodedRecords.get(signal);
+            if (signal.getId() != null && !signal.getId().equals(previous.id)) {
+                // The new id is a new key to the journal, which replay() puts at the end
+                deletedIds.add(previous.id);
+                entries.add(IRSignalJournal.Entry.delete(previous.id));
+                isOrderChanged = true;
+            } else if (previous.revision == signal.getRevision()) {
+                continue;
+            }
+            putSignals.add(signal);
+        }
+        if (isOrderChanged) {
+            putSignals.addAll(addedSignals);
+        } else {
+            // Without reordering, added signals are the tail of the list in the order they were added
+            putSignals.addAll(subList(size() - addedSignals.size(), size()));
+        }
+
+        IdentityHashMap<IRSignal, EncodedRecord> putRecords = new IdentityHashMap<>(putSignals.size());
+        HashSet<String> putIds = new HashSet<>(putSignals.size());
+        try {
+            for (IRSignal signal : putSignals) {
+                String id = signal.getId();
+                IRSignal persisted = id != null ? persistedSignalsById.get(id) : null;
+                if (id == null || !putIds.add(id) ||
+                        (persisted != null && persisted != signal && !deletedIds.contains(id))) {
+                    // Null or duplicate id
+                    compact();
+                    return;
+                }
+                EncodedRecord encodedRecord = new EncodedRecord(id, signal.getRevision(), signal.toRecord());
+                putRecords.put(signal, encodedRecord);
+                entries.add(IRSignalJournal.Entry.put(id, encodedRecord.bytes));
+            }
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            return;
+        }
+        if (isOrderChanged) {
+            ArrayList<String> ids = new ArrayList<>(this.size());
+            for (IRSignal signal : this) {
+                ids.add(signal.getId());
+            }
+            entries.add(IRSignalJournal.Entry.order(ids));
+        }
+        if (entries.isEmpty()) {
+            resetChanges();
+            return;
+        }
         try {
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            ObjectOutputStream oos = new ObjectOutputStream(baos);
-            oos.writeObject(this);
-            oos.close();
-            serializedStr = Base64.encodeToString(baos.toByteArray(), Base64.DEFAULT);
+            journal.append(entries, snapshotLength, snapshotChecksum);
         } catch (IOException ex) {
             ex.printStackTrace();
+            // The journal may end with a partial entry now
+            compact();
             return;
         }
-        IRKit.sharedInstance().savePreference(PREFS_KEY, serializedStr);
+        for (IRSignal signal : removedSignals) {
+            encodedRecords.remove(signal);
+        }
+        for (String id : deletedIds) {
+            persistedSignalsById.remove(id);
+        }
+        for (Map.Entry<IRSignal, EncodedRecord> entry : putRecords.entrySet()) {
+            encodedRecords.put(entry.getKey(), entry.getValue());
+            persistedSignalsById.put(entry.getValue().id, entry.getKey());
+        }
+        resetChanges();
+        IRKit.sharedInstance().requestBackup();
     }
 
     /**
-     * SharedPreferencesからこのインスタンスにデータを読み込みます。
-     * Load data from SharedPreferences into this intance.
+     * <p class="ja">
+     * すべての信号をスナップショットに書き込み、ジャーナルを空にします。
+     * 前回の保存から変更されていない信号はエンコードし直さずに前回の結果を使います。
+     * </p>
+     *
+     * <p class="en">
+     * Write all signals to the snapshot and empty the journal.
+     * Signals which have not changed since the last save are not re-encoded;
+     * their previous records are reused.
+     * </p>
+     *
+     * @since 1.4.0
      */
-    public void load() {
+    public synchronized void compact() {
+        IdentityHashMap<IRSignal, EncodedRecord> previousRecords = encodedRecords;
+        IdentityHashMap<IRSignal, EncodedRecord> newRecords = new IdentityHashMap<>(this.size());
+        ArrayList<byte[]> records = new ArrayList<>(this.size());
+        HashMap<String, IRSignal> signalsById = new HashMap<>(this.size());
+        boolean hasUniqueIds = true;
+        try {
+            for (IRSignal signal : this) {
+                EncodedRecord encodedRecord = previousRecords != null ? previousRecords.get(signal) : null;
+                if (encodedRecord == null || encodedRecord.revision != signal.getRevision()) {
+                    encodedRecord = new EncodedRecord(signal.getId(), signal.getRevision(), signal.toRecord());
+                }
+                newRecords.put(signal, encodedRecord);
+                records.add(encodedRecord.bytes);
+                if (signal.getId() == null || signalsById.put(signal.getId(), signal) != null) {
+                    hasUniqueIds = false;
+                }
+                // Signals added in ways that save() can't see are not registered yet
+                signal.addIndexOwner(getIndexInvalidator());
+            }
+            IRRecordFile recordFile = getRecordFile();
+            recordFile.write(records);
+            snapshotLength = recordFile.length();
+            snapshotChecksum = recordFile.getChecksum();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            return;
+        }
+        getJournal().reset();
+        encodedRecords = newRecords;
+        persistedSignalsById = hasUniqueIds ? signalsById : null;
+        resetChanges();
+        IRKit.sharedInstance().requestBackup();
+    }
+
+    /**
+     * <p class="ja">
+     * ファイルからこのインスタンスにデータを読み込みます。スナップショットを読み込んだ後、
+     * ジャーナルに記録された変更を再生します。ファイルが存在せず、以前のバージョンで
+     * SharedPreferencesに保存したデータがある場合は、それを読み込んでファイルに移行します。
+     * </p>
+     *
+     * <p class="en">
+     * Load data from the files into this instance. The snapshot is loaded, then
+     * changes recorded in the journal are replayed. If the files do not exist
+     * and there is data saved to SharedPreferences by an older version,
+     * it is loaded and migrated to the files.
+     * </p>
+     */
+    public synchronized void load() {
         this.clear();
+        encodedRecords = null;
+        persistedSignalsById = null;
+        snapshotLength = 0;
+        snapshotChecksum = 0;
 
-        String jsonStr = IRKit.sharedInstance().getPreference(PREFS_KEY);
-        if (jsonStr != null) {
+        IRRecordFile recordFile = getRecordFile();
+        IRSignalJournal journal = getJournal();
+        boolean forceCompaction = false;
+        if (recordFile.exists() || journal.hasEntries()) {
             try {
-                byte[] data = Base64.decode(jsonStr, Base64.DEFAULT);
-                ObjectInputStream ois = new ObjectInputStream(
-                        new ByteArrayInputStream(data)
-                );
-                IRSignals signals = (IRSignals)ois.readObject();
-                for (Object obj : signals) {
-                    IRSignal signal = (IRSignal)obj;
+                List<byte[]> snapshot = new ArrayList<>();
+                if (recordFile.exists()) {
+                    snapshot = recordFile.read();
+                    snapshotLength = recordFile.length();
+                    snapshotChecksum = recordFile.getChecksum();
+                }
+                List<byte[]> records = snapshot;
+                if (journal.hasEntries() && journal.belongsTo(snapshotLength, snapshotChecksum)) {
+                    LinkedHashMap<String, byte[]> recordsById = keyByUniqueId(snapshot);
+                    if (recordsById != null) {
+                        journal.replay(recordsById, snapshotLength, snapshotChecksum);
+                        records = new ArrayList<>(recordsById.values());
+                    } else {
+                        // save() never journals a list without unique ids, so this journal
+                        // can't be meant for this snapshot. Keep every signal of the snapshot.
+                        Log.w(TAG, "Snapshot has duplicate or null ids; ignoring the journal");
+                        forceCompaction = true;
+                    }
+                }
+                IdentityHashMap<IRSignal, EncodedRecord> loadedRecords = new IdentityHashMap<>(records.size());
+                HashMap<String, IRSignal> loadedById = new HashMap<>(records.size());
+                boolean hasUniqueIds = true;
+                for (byte[] record : records) {
+                    IRSignal signal = IRSignal.fromRecord(record);
                     this.add(signal);
+                    signal.addIndexOwner(getIndexInvalidator());
+                    loadedRecords.put(signal, new EncodedRecord(signal.getId(), signal.getRevision(), record));
+                    if (signal.getId() == null || loadedById.put(signal.getId(), signal) != null) {
+                        hasUniqueIds = false;
+                    }
                 }
-                ois.close();
-            } catch (IOException | ClassNotFoundException ex) {
+                encodedRecords = loadedRecords;
+                persistedSignalsById = hasUniqueIds ? loadedById : null;
+                resetChanges();
+            } catch (IOException ex) {
                 Log.e(TAG, "Failed to load signals");
                 ex.printStackTrace();
+                return;
             }
+            if (journal.needsCompaction() || forceCompaction) {
+                // Don't append after a corrupted entry
+                compact();
+            }
+        } else if (loadLegacyPreference()) {
+            this.compact();
+            IRKit.sharedInstance().removePreference(PREFS_KEY);
         }
     }
 
+    /**
+     * <p class="ja">
+     * レコードをidをキーとするマップにします。nullのidや重複したidがあると
+     * 信号が失われるため、その場合はnullを返します。各レコードは先頭のidだけを読み、
+     * 残りはload()で1回だけデコードします。
+     * </p>
+     *
+     * <p class="en">
+     * Key records by id. A null or duplicate id would lose signals, so null is returned in that case.
+     * Only the id at the head of each record is read; the rest is decoded once by load().
+     * </p>
+     */
+    private static LinkedHashMap<String, byte[]> keyByUniqueId(List<byte[]> records) throws IOException {
+        LinkedHashMap<String, byte[]> recordsById = new LinkedHashMap<>(records.size());
+        for (byte[] record : records) {
+            String id = IRSignal.readRecordId(record);
+            if (id == null || recordsById.put(id, record) != null) {
+                return null;
+            }
+        }
+        return recordsById;
+    }
+
+    /**
+     * 以前のバージョンでSharedPreferencesに保存されたデータを読み込みます。
+     * Load data saved to SharedPreferences by an older version.
+     *
+     * @return データを読み込めた場合はtrue。 True if data has been loaded.
+     */
+    private boolean loadLegacyPreference() {
+        String jsonStr = IRKit.sharedInstance().getPreference(PREFS_KEY);
+        if (jsonStr == null) {
+            return false;
+        }
+        try {
+            byte[] data = Base64.decode(jsonStr, Base64.DEFAULT);
+            ObjectInputStream ois = new ObjectInputStream(
+                    new ByteArrayInputStream(data)
+            );
+            IRSignals signals = (IRSignals)ois.readObject();
+            for (Object obj : signals) {
+                IRSignal signal = (IRSignal)obj;
+                this.add(signal);
+            }
+            ois.close();
+            return true;
+        } catch (IOException | ClassNotFoundException ex) {
+            Log.e(TAG, "Failed to load signals");
+            ex.printStackTrace();
+            return false;
+        }
+    }
+
+    private IRRecordFile getRecordFile() {
+        return new IRRecordFile(new File(IRKit.sharedInstance().getContext().getFilesDir(), FILENAME));
+    }
+
+    private IRSignalJournal getJournal() {
+        File filesDir = IRKit.sharedInstance().getContext().getFilesDir();
+        return new IRSignalJournal(new File(filesDir, JOURNAL_FILENAME));
+    }
+
     /**
      * deviceidが一致する信号をすべて削除します。
      * Remove signals that matches deviceid.
      *
      * @param deviceId deviceid
      */
-    public void removeIRSignalsForDeviceId(String deviceId) {
+    public synchronized void removeIRSignalsForDeviceId(String deviceId) {
         if (deviceId == null) {
             return;
         }
-        for (Iterator<IRSignal> iter = this.iterator(); iter.hasNext(); ) {
-            IRSignal signal = iter.next();
-            if (signal.getDeviceId().equals(deviceId)) {
-                iter.remove();
+        ensureIndex();
+        if (!signalsByDeviceId.containsKey(deviceId)) {
+            return;
+        }
+        for (int i = 0; i < size(); ) {
+            if (deviceId.equals(get(i).getDeviceId())) {
+                remove(i);
+            } else {
+                i++;
             }
         }
     }
@@ -163,13 +718,13 @@ public class IRSignals extends ArrayList<IRSignal> implements Parcelable {
      * @param deviceId deviceid
      * @return 信号のリスト。 List of signals.
      */
-    public IRSignals getIRSignalsByDeviceId(String deviceId) {
+    public synchronized IRSignals getIRSignalsByDeviceId(String deviceId) {
         IRSignals signals = new IRSignals();
         if (deviceId != null) {
-            for (IRSignal signal : this) {
-                if (signal.getDeviceId().equals(deviceId)) {
-                    signals.add(signal);
-                }
+            ensureIndex();
+            ArrayList<IRSignal> deviceSignals = signalsByDeviceId.get(deviceId);
+            if (deviceSignals != null) {
+                signals.addAll(deviceSignals);
             }
         }
         return signals;
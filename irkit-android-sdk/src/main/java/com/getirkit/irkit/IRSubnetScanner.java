@@ -0,0 +1,611 @@
+package com.getirkit.irkit;
+
+import android.util.Log;
+
+import com.getirkit.irkit.net.IRHTTPClient;
+import com.getirkit.irkit.net.IRRequestHandle;
+import com.squareup.okhttp.Callback;
+import com.squareup.okhttp.ConnectionPool;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p class="ja">
+ * マルチキャストが遮断されたネットワークでIRKitを見つけるため、ローカルネットワークのアドレスに
+ * 順番にGET /を送るスキャナです。既定ではWi-Fiの/24を調べますが、addRange()で範囲を指定することもできます。
+ * 同時に送るリクエストの数には上限があり、IRKitはレスポンスのServerヘッダ（"IRKit/..."）で判別します。
+ * 既にアドレスが解決されているIRKitには送りません。リクエストはIRHTTPClientのDevice HTTP APIと
+ * Dispatcherを共有するため、1個のIRKitに同時に送られるリクエストは1個だけです。
+ * 見つかったIRKitはdeviceidで既存のIRPeripheralと照合され、IRDiscoveryEngineのスレッドで
+ * mDNSで解決された場合と同じ経路でIRPeripheralsに反映されます。
+ * </p>
+ *
+ * <p class="en">
+ * Scanner which sends GET / to addresses on the local network to find IRKits on networks
+ * where multicast is blocked. By default the /24 of Wi-Fi is scanned, and ranges can be
+ * given with addRange(). The number of concurrent requests is bounded, and IRKits are told
+ * by Server header ("IRKit/...") of the responses. IRKits whose addresses have already been
+ * resolved are skipped. Requests share the Dispatcher with Device HTTP API of IRHTTPClient,
+ * so only one request at a time is sent to each IRKit. Found IRKits are matched with existing
+ * IRPeripherals by deviceid, and are merged into IRPeripherals on the thread of
+ * IRDiscoveryEngine along the same path as those resolved over mDNS.
+ * </p>
+ *
+ * @since 1.4.0
+ */
+public class IRSubnetScanner {
+    public static final String TAG = IRSubnetScanner.class.getSimpleName();
+
+    /**
+     * IRKitのDevice HTTP APIのポート番号。 Port number of Device HTTP API of IRKit.
+     */
+    public static final int IRKIT_PORT = 80;
+
+    /**
+     * 同時に送るリクエストの既定の最大数。 Default maximum number of concurrent requests.
+     */
+    public static final int DEFAULT_MAX_CONCURRENT_PROBES = 16;
+
+    /**
+     * 1個のアドレスに対する接続と読み込みのタイムアウト（ミリ秒）。
+     * Connect and read timeout in milliseconds for each address.
+     */
+    static final long PROBE_TIMEOUT_MS = 1500;
+
+    /**
+     * 1回のスキャンで調べるアドレスの最大数。大きすぎる範囲は切り詰められます。
+     * Maximum number of addresses probed in one scan. Larger ranges are truncated.
+     */
+    static final int MAX_ADDRESSES_PER_SCAN = 4096;
+
+    /**
+     * scanIfDue()が続けてスキャンしない間隔（ミリ秒）。
+     * Interval in milliseconds within which scanIfDue() does not scan again.
+     */
+    static final long MIN_SCAN_INTERVAL_MS = 5 * 60 * 1000L;
+
+    /**
+     * スキャンの結果を受け取るインタフェースです。任意のスレッドから呼ばれます。
+     * Interface to receive scan results. Called from any thread.
+     */
+    public interface ScanListener {
+        /**
+         * IRKitが見つかり、IRPeripheralsに反映された際に呼ばれます。
+         * Called when an IRKit is found and merged into IRPeripherals.
+         *
+         * @param peripheral 見つかったIRPeripheral。 IRPeripheral found.
+         */
+        void onIRKitFound(IRPeripheral peripheral);
+
+        /**
+         * <p class="ja">
+         * IRKitが見つかったものの、どのIRPeripheralか分からなかった際に呼ばれます。
+         * IRPeripheralsはホスト名をキーにしており、後でmDNSで解決された際に重複するため、追加はされません。
+         * </p>
+         *
+         * <p class="en">
+         * Called when an IRKit is found but it cannot be told which IRPeripheral it is.
+         * IRPeripherals is keyed by hostname and would get a duplicate when it is later
+         * resolved over mDNS, so it is not added.
+         * </p>
+         *
+         * @param host IPv4アドレス。 IPv4 address.
+         * @param port ポート番号。 Port number.
+         */
+        void onUnidentifiedIRKitFound(InetAddress host, int port);
+
+        /**
+         * <p class="ja">
+         * すべてのアドレスを調べ終わった際に呼ばれます。deviceidでの照合はこの後も続くことがあります。
+         * </p>
+         *
+         * <p class="en">
+         * Called when every address has been probed. Matching by deviceid may still be in progress.
+         * </p>
+         *
+         * @param foundCount 応答したIRKitの数。 Number of IRKits which answered.
+         */
+        void onScanFinished(int foundCount);
+    }
+
+    private static class Range {
+        private int first;
+        private int last;
+    }
+
+    private OkHttpClient httpClient;
+    private final ArrayList<Range> ranges = new ArrayList<>();
+    private IRRequestHandle runningHandle;
+    private long lastScanStartedAt;
+    private volatile int maxConcurrentProbes = DEFAULT_MAX_CONCURRENT_PROBES;
+
+    IRSubnetScanner() {
+    }
+
+    /**
+     * 同時に送るリクエストの最大数をセットします。
+     * Set the maximum number of concurrent requests.
+     *
+     * @param maxConcurrentProbes 最大数。 Maximum number.
+     * @throws IllegalArgumentException maxConcurrentProbesが1未満の場合。 If maxConcurrentProbes is less than 1.
+     */
+    public void setMaxConcurrentProbes(int maxConcurrentProbes) {
+        if (maxConcurrentProbes < 1) {
+            throw new IllegalArgumentException("maxConcurrentProbes must be positive");
+        }
+        this.maxConcurrentProbes = maxConcurrentProbes;
+    }
+
+    /**
+     * 同時に送るリクエストの最大数を返します。
+     * Return the maximum number of concurrent requests.
+     *
+     * @return 最大数。 Maximum number.
+     */
+    public int getMaxConcurrentProbes() {
+        return maxConcurrentProbes;
+    }
+
+    /**
+     * <p class="ja">
+     * スキャンに使うクライアントを返します。IRHTTPClientのDispatcherを共有するため、
+     * IRKitの生成中に作らないよう最初のスキャンで作ります。
+     * </p>
+     *
+     * <p class="en">
+     * Return the client used for scanning. It shares the Dispatcher of IRHTTPClient, so it is
+     * created on the first scan rather than while IRKit is being constructed.
+     * </p>
+     */
+    private synchronized OkHttpClient getHttpClient() {
+        if (httpClient == null) {
+            httpClient = new OkHttpClient();
+            httpClient.setConnectTimeout(PROBE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            httpClient.setReadTimeout(PROBE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            httpClient.setFollowRedirects(false);
+            httpClient.setRetryOnConnectionFailure(false);
+            // Most of the addresses are not IRKits, and found ones are reached through IRHTTPClient
+            httpClient.setConnectionPool(new ConnectionPool(0, 1));
+            // Never talk to an IRKit while IRHTTPClient does
+            httpClient.setDispatcher(IRHTTPClient.sharedInstance().getLocalDispatcher());
+        }
+        return httpClient;
+    }
+
+    /**
+     * <p class="ja">
+     * スキャンするアドレスの範囲を追加します。範囲が1個もなければWi-Fiの/24をスキャンします。
+     * </p>
+     *
+     * <p class="en">
+     * Add a range of addresses to be scanned. If there is no range, the /24 of Wi-Fi is scanned.
+     * </p>
+     *
+     * @param first 最初のアドレス。 First address.
+     * @param last 最後のアドレス（含む）。 Last address (inclusive).
+     */
+    public synchronized void addRange(Inet4Address first, Inet4Address last) {
+        Range range = new Range();
+        range.first = toInt(first);
+        range.last = toInt(last);
+        if ((range.first & 0xffffffffL) > (range.last & 0xffffffffL)) {
+            throw new IllegalArgumentException("first must not be greater than last");
+        }
+        ranges.add(range);
+    }
+
+    /**
+     * addRange()で追加した範囲をすべて削除します。
+     * Remove every range added by addRange().
+     */
+    public synchronized void clearRanges() {
+        ranges.clear();
+    }
+
+    /**
+     * <p class="ja">
+     * スキャンを開始します。実行中のスキャンがあれば取り消されます。
+     * </p>
+     *
+     * <p class="en">
+     * Start a scan. A scan in progress is cancelled.
+     * </p>
+     *
+     * @param listener 結果を受け取るリスナ。nullでも構いません。 Listener to receive results. May be null.
+     * @return スキャンを取り消すためのハンドル。 Handle to cancel the scan.
+     */
+    public IRRequestHandle scan(ScanListener listener) {
+        IRRequestHandle handle = new IRRequestHandle();
+        Set<InetAddress> resolvedHosts = findResolvedHosts();
+        List<InetAddress> addresses;
+        IRRequestHandle previousHandle;
+        synchronized (this) {
+            previousHandle = runningHandle;
+            runningHandle = handle;
+            lastScanStartedAt = System.currentTimeMillis();
+            addresses = listAddresses(resolvedHosts);
+        }
+        if (previousHandle != null) {
+            previousHandle.cancel();
+        }
+        start(handle, addresses, listener);
+        return handle;
+    }
+
+    /**
+     * <p class="ja">
+     * 前回のスキャンからMIN_SCAN_INTERVAL_MS以上経っていればスキャンを開始します。
+     * startBonjourDiscovery()はIRKit#setSubnetScanEnabled()が有効な場合にこれを呼びます。
+     * </p>
+     *
+     * <p class="en">
+     * Start a scan if MIN_SCAN_INTERVAL_MS or more has passed since the last one.
+     * startBonjourDiscovery() calls this if IRKit#setSubnetScanEnabled() is enabled.
+     * </p>
+     */
+    void scanIfDue() {
+        synchronized (this) {
+            if (lastScanStartedAt != 0 && System.currentTimeMillis() - lastScanStartedAt < MIN_SCAN_INTERVAL_MS) {
+                return;
+            }
+        }
+        scan(null);
+    }
+
+    /**
+     * 実行中のスキャンを取り消します。
+     * Cancel the scan in progress.
+     */
+    public void cancel() {
+        IRRequestHandle handle;
+        synchronized (this) {
+            handle = runningHandle;
+            runningHandle = null;
+        }
+        if (handle != null) {
+            handle.cancel();
+        }
+    }
+
+    /**
+     * スキャンするアドレスを返します。ロックした状態で呼んでください。
+     * Return addresses to be scanned. Must be called with this locked.
+     *
+     * @param resolvedHosts アドレスが解決されたIRKitのホスト。スキャンしません。
+     *                      Hosts of IRKits whose addresses have been resolved. They are not scanned.
+     */
+    private List<InetAddress> listAddresses(Set<InetAddress> resolvedHosts) {
+        ArrayList<InetAddress> addresses = new ArrayList<>();
+        InetAddress localAddress = IRKit.sharedInstance().getWifiIPv4Address();
+        int local = localAddress instanceof Inet4Address ? toInt((Inet4Address) localAddress) : 0;
+        ArrayList<Range> scanRanges = new ArrayList<>(ranges);
+        if (scanRanges.isEmpty()) {
+            if (local == 0) {
+                Log.e(TAG, "scan: Wi-Fi address is not available");
+                return addresses;
+            }
+            // Skip the network and broadcast addresses
+            Range range = new Range();
+            range.first = (local & 0xffffff00) | 1;
+            range.last = (local & 0xffffff00) | 254;
+            scanRanges.add(range);
+        }
+        for (Range range : scanRanges) {
+            for (long address = range.first & 0xffffffffL; address <= (range.last & 0xffffffffL); address++) {
+                if (addresses.size() >= MAX_ADDRESSES_PER_SCAN) {
+                    Log.w(TAG, "scan: too many addresses; truncated to " + MAX_ADDRESSES_PER_SCAN);
+                    return addresses;
+                }
+                if ((int) address == local) {
+                    continue;
+                }
+                try {
+                    InetAddress inetAddress = toInetAddress((int) address);
+                    if (!resolvedHosts.contains(inetAddress)) {
+                        addresses.add(inetAddress);
+                    }
+                } catch (UnknownHostException e) {
+                    // Never happens with 4 bytes
+                    Log.e(TAG, "scan: invalid address", e);
+                }
+            }
+        }
+        return addresses;
+    }
+
+    private void start(final IRRequestHandle handle, List<InetAddress> addresses, final ScanListener listener) {
+        final OkHttpClient client = getHttpClient();
+        handle.addCancelAction(new Runnable() {
+            @Override
+            public void run() {
+                client.cancel(handle);
+            }
+        });
+        if (addresses.isEmpty()) {
+            if (listener != null) {
+                listener.onScanFinished(0);
+            }
+            return;
+        }
+        Scan scan = new Scan(client, handle, addresses, listener);
+        int concurrency = Math.min(maxConcurrentProbes, addresses.size());
+        for (int i = 0; i < concurrency; i++) {
+            scan.probeNext();
+        }
+    }
+
+    /**
+     * <p class="ja">
+     * 1回のスキャンの状態です。Dispatcherは他の通信と共有しているため、同時に送るリクエストの数は
+     * 1個終わるたびに次の1個を送ることで制限します。
+     * </p>
+     *
+     * <p class="en">
+     * State of one scan. The Dispatcher is shared with other traffic, so the number of concurrent
+     * requests is bounded by sending the next one each time one finishes.
+     * </p>
+     */
+    private class Scan {
+        private final OkHttpClient client;
+        private final IRRequestHandle handle;
+        private final ScanListener listener;
+        private final ConcurrentLinkedQueue<InetAddress> pendingAddresses;
+        private final AtomicInteger remainingCount;
+        private final AtomicInteger foundCount = new AtomicInteger(0);
+
+        private Scan(OkHttpClient client, IRRequestHandle handle, List<InetAddress> addresses, ScanListener listener) {
+            this.client = client;
+            this.handle = handle;
+            this.listener = listener;
+            pendingAddresses = new ConcurrentLinkedQueue<>(addresses);
+            remainingCount = new AtomicInteger(addresses.size());
+        }
+
+        private void probeNext() {
+            if (handle.isCancelled()) {
+                return;
+            }
+            final InetAddress address = pendingAddresses.poll();
+            if (address == null) {
+                return;
+            }
+            Request request = new Request.Builder()
+                    .url("http://" + address.getHostAddress() + ":" + IRKIT_PORT + "/")
+                    .header("Connection", "close")
+                    .tag(handle)
+                    .build();
+            client.newCall(request).enqueue(new Callback() {
+                @Override
+                public void onFailure(Request request, IOException e) {
+                    onProbeDone();
+                }
+
+                @Override
+                public void onResponse(Response response) throws IOException {
+                    // IRKit returns 404 for GET /, so the status code doesn't matter
+                    final String server = response.header("Server");
+                    response.body().close();
+                    if (!handle.isCancelled() && isIRKitServerHeaderValue(server)) {
+                        foundCount.incrementAndGet();
+                        IRKit.sharedInstance().getDiscoveryEngine().post(new Runnable() {
+                            @Override
+                            public void run() {
+                                onIRKitAnswered(handle, address, IRKIT_PORT, server, listener);
+                            }
+                        });
+                    }
+                    onProbeDone();
+                }
+            });
+        }
+
+        private void onProbeDone() {
+            if (remainingCount.decrementAndGet() != 0) {
+                probeNext();
+                return;
+            }
+            if (handle.isCancelled()) {
+                return;
+            }
+            synchronized (IRSubnetScanner.this) {
+                if (runningHandle == handle) {
+                    runningHandle = null;
+                }
+            }
+            if (listener != null) {
+                listener.onScanFinished(foundCount.get());
+            }
+        }
+    }
+
+    /**
+     * <p class="ja">
+     * 応答したIRKitを既存のIRPeripheralと照合します。IRDiscoveryEngineのスレッドで呼ばれます。
+     * 調べている間に同じアドレスで解決されていればServerヘッダだけを保存し、そうでなければdeviceidで照合します。
+     * 同じアドレスに別のIRKitが割り当てられている場合があるため、IRAddressCacheのホスト名は使いません。
+     * </p>
+     *
+     * <p class="en">
+     * Match an IRKit which answered with existing IRPeripherals. Called on the thread of
+     * IRDiscoveryEngine. If it has been resolved to the same address in the meantime, only Server
+     * header is stored. Otherwise it is matched by deviceid. The address may have been assigned to
+     * another IRKit, so hostnames in IRAddressCache are not used.
+     * </p>
+     */
+    private void onIRKitAnswered(IRRequestHandle handle, InetAddress host, int port, String server, ScanListener listener) {
+        if (handle.isCancelled()) {
+            return;
+        }
+        IRKit irkit = IRKit.sharedInstance();
+        IRPeripheral peripheral = findPeripheralByAddress(irkit.peripherals, host, port);
+        if (peripheral != null) {
+            if (peripheral.storeServerHeaderValue(server)) {
+                irkit.peripherals.save();
+            }
+            if (listener != null) {
+                listener.onIRKitFound(peripheral);
+            }
+            return;
+        }
+        identifyByDeviceId(handle, host, port, listener);
+    }
+
+    /**
+     * <p class="ja">
+     * POST /keysとInternet HTTP APIでdeviceidを取得し、まだローカルアドレスが解決されていない
+     * IRPeripheralと照合します。照合する相手がいなければ何も送りません。
+     * </p>
+     *
+     * <p class="en">
+     * Obtain deviceid with POST /keys and Internet HTTP API, and match it with IRPeripherals whose
+     * local address has not been resolved yet. Nothing is sent if there is nothing to match with.
+     * </p>
+     */
+    private void identifyByDeviceId(final IRRequestHandle handle, final InetAddress host, final int port, final ScanListener listener) {
+        if (!hasUnresolvedPeripheralWithDeviceId(IRKit.sharedInstance().peripherals)) {
+            if (listener != null) {
+                listener.onUnidentifiedIRKitFound(host, port);
+            }
+            return;
+        }
+        // A throwaway peripheral which is never added to IRPeripherals
+        final IRPeripheral probe = new IRPeripheral();
+        probe.setHost(host);
+        probe.setPort(port);
+        probe.setListener(new IRPeripheral.IRPeripheralListener() {
+            @Override
+            public void onErrorFetchingDeviceId(String message) {
+                Log.e(TAG, "identifyByDeviceId: " + message);
+            }
+
+            @Override
+            public void onDeviceIdStatusChange() {
+            }
+
+            @Override
+            public void onFetchDeviceIdSuccess() {
+                IRKit.sharedInstance().getDiscoveryEngine().post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onIdentified(handle, host, port, probe.getDeviceId(), listener);
+                    }
+                });
+            }
+
+            @Override
+            public void onFetchModelInfoSuccess() {
+            }
+
+            @Override
+            public void onErrorFetchingModelInfo(String message) {
+            }
+        });
+        final IRRequestHandle fetchHandle = probe.fetchDeviceId();
+        handle.addCancelAction(new Runnable() {
+            @Override
+            public void run() {
+                fetchHandle.cancel();
+            }
+        });
+    }
+
+    /**
+     * deviceidが分かったIRKitをIRPeripheralsに反映します。IRDiscoveryEngineのスレッドで呼ばれます。
+     * Merge an IRKit whose deviceid is known into IRPeripherals. Called on the thread of IRDiscoveryEngine.
+     */
+    private void onIdentified(IRRequestHandle handle, InetAddress host, int port, String deviceId, ScanListener listener) {
+        if (handle.isCancelled()) {
+            return;
+        }
+        IRPeripheral peripheral = IRKit.sharedInstance().peripherals.getPeripheralByDeviceId(deviceId);
+        if (peripheral == null || peripheral.isLocalAddressResolved()) {
+            if (listener != null) {
+                listener.onUnidentifiedIRKitFound(host, port);
+            }
+            return;
+        }
+        if (peripheral.getHostname() != null) {
+            IRKit.sharedInstance().onServiceResolved(peripheral.getHostname(), (Inet4Address) host, port);
+        } else {
+            peripheral.setHost(host);
+            peripheral.setPort(port);
+        }
+        if (listener != null) {
+            listener.onIRKitFound(peripheral);
+        }
+    }
+
+    /**
+     * アドレスが解決されているIRKitのホストを返します。
+     * Return hosts of IRKits whose addresses have been resolved.
+     */
+    private static Set<InetAddress> findResolvedHosts() {
+        HashSet<InetAddress> hosts = new HashSet<>();
+        IRPeripherals peripherals = IRKit.sharedInstance().peripherals;
+        if (peripherals == null) {
+            return hosts;
+        }
+        synchronized (peripherals) {
+            for (IRPeripheral peripheral : peripherals) {
+                if (peripheral.isLocalAddressResolved() && peripheral.getPort() == IRKIT_PORT) {
+                    hosts.add(peripheral.getHost());
+                }
+            }
+        }
+        return hosts;
+    }
+
+    private static IRPeripheral findPeripheralByAddress(IRPeripherals peripherals, InetAddress host, int port) {
+        synchronized (peripherals) {
+            for (IRPeripheral peripheral : peripherals) {
+                if (host.equals(peripheral.getHost()) && port == peripheral.getPort()) {
+                    return peripheral;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static boolean hasUnresolvedPeripheralWithDeviceId(IRPeripherals peripherals) {
+        synchronized (peripherals) {
+            for (IRPeripheral peripheral : peripherals) {
+                if (!peripheral.isLocalAddressResolved() && peripheral.hasDeviceId()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean isIRKitServerHeaderValue(String server) {
+        if (server == null) {
+            return false;
+        }
+        String modelName = IRPeripheral.parseServerHeaderValue(server).get("modelName");
+        return IRPeripheral.IRKIT_MODEL_NAME.equals(modelName);
+    }
+
+    private static int toInt(Inet4Address address) {
+        byte[] bytes = address.getAddress();
+        return ((bytes[0] & 0xff) << 24) | ((bytes[1] & 0xff) << 16) | ((bytes[2] & 0xff) << 8) | (bytes[3] & 0xff);
+    }
+
+    private static InetAddress toInetAddress(int address) throws UnknownHostException {
+        return InetAddress.getByAddress(new byte[] {
+                (byte) (address >>> 24), (byte) (address >>> 16), (byte) (address >>> 8), (byte) address,
+        });
+    }
+}
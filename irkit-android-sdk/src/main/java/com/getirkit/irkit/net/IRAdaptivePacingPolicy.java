@@ -0,0 +1,122 @@
+package com.getirkit.irkit.net;
+
+/**
+ * <p class="ja">
+ * 応答時間とエラーからIRKitデバイスごとに安全なリクエスト間隔を学習するIRPacingPolicyです。
+ * 応答時間の指数移動平均に比例した時間を空け、エラーが続くと間隔を倍々に広げ（バックオフ）、
+ * 成功が続くと元に戻します。最初の応答を観測するまではinitialDelayMsを使います。
+ * 既定のポリシーではないため、使うにはIRRequestThrottler#setPacingPolicyFactory()でセットしてください。
+ * </p>
+ *
+ * <p class="en">
+ * IRPacingPolicy which learns a safe gap between requests per IRKit device from
+ * observed response times and errors. The gap is proportional to the exponential
+ * moving average of response times, doubles on consecutive errors (backoff), and
+ * recovers on consecutive successes. initialDelayMs is used until the first response
+ * has been observed. This is not the default policy; set it with
+ * IRRequestThrottler#setPacingPolicyFactory() to use it.
+ * </p>
+ *
+ * @since 1.4.0
+ */
+public class IRAdaptivePacingPolicy implements IRPacingPolicy {
+    public static final String TAG = IRAdaptivePacingPolicy.class.getSimpleName();
+
+    public static final long DEFAULT_MIN_DELAY_MS = 100;
+    public static final long DEFAULT_MAX_DELAY_MS = 8000;
+
+    /**
+     * 応答時間の指数移動平均の重み。
+     * Weight of the exponential moving average of response times.
+     */
+    private static final double SMOOTHING = 0.25;
+
+    /**
+     * バックオフ係数の上限。
+     * Upper bound of the backoff factor.
+     */
+    private static final int MAX_BACKOFF = 16;
+
+    private final long minDelayMs;
+    private final long maxDelayMs;
+    private final long initialDelayMs;
+    private final double responseTimeMultiplier;
+
+    private double smoothedResponseTimeMs = -1;
+    private int backoff = 1;
+    private long currentDelayMs;
+
+    public IRAdaptivePacingPolicy() {
+        this(DEFAULT_MIN_DELAY_MS, DEFAULT_MAX_DELAY_MS, IRRequestThrottler.DELAY_BETWEEN_REQUESTS_MS, 1.0);
+    }
+
+    /**
+     * コンストラクタ。
+     * Constructor.
+     *
+     * @param minDelayMs 待ち時間の下限（ミリ秒）。 Lower bound of the delay in milliseconds.
+     * @param maxDelayMs 待ち時間の上限（ミリ秒）。 Upper bound of the delay in milliseconds.
+     * @param initialDelayMs 応答を観測するまでの待ち時間（ミリ秒）。 Delay in milliseconds until a response is observed.
+     * @param responseTimeMultiplier 平均応答時間に掛ける係数。 Multiplier applied to the average response time.
+     */
+    public IRAdaptivePacingPolicy(long minDelayMs, long maxDelayMs, long initialDelayMs, double responseTimeMultiplier) {
+        this.minDelayMs = minDelayMs;
+        this.maxDelayMs = maxDelayMs;
+        this.initialDelayMs = initialDelayMs;
+        this.responseTimeMultiplier = responseTimeMultiplier;
+        this.currentDelayMs = initialDelayMs;
+    }
+
+    @Override
+    public synchronized long onRequestDone(long responseTimeMs, boolean isSuccess) {
+        if (isSuccess) {
+            if (smoothedResponseTimeMs < 0) {
+                smoothedResponseTimeMs = responseTimeMs;
+            } else {
+                smoothedResponseTimeMs += SMOOTHING * (responseTimeMs - smoothedResponseTimeMs);
+            }
+            if (backoff > 1) {
+                backoff /= 2;
+            }
+        } else {
+            if (backoff < MAX_BACKOFF) {
+                backoff *= 2;
+            }
+        }
+
+        long base;
+        if (smoothedResponseTimeMs < 0) {
+            // No successful response yet
+            base = initialDelayMs;
+        } else {
+            base = Math.max(minDelayMs, (long) (smoothedResponseTimeMs * responseTimeMultiplier));
+        }
+        currentDelayMs = Math.min(maxDelayMs, base * backoff);
+        return currentDelayMs;
+    }
+
+    @Override
+    public synchronized long getCurrentDelayMs() {
+        return currentDelayMs;
+    }
+
+    /**
+     * 応答時間の指数移動平均を返します。応答を観測していない場合は-1です。
+     * Return the moving average of response times, or -1 if no response has been observed.
+     *
+     * @return 平均応答時間（ミリ秒）。 Average response time in milliseconds.
+     */
+    public synchronized long getSmoothedResponseTimeMs() {
+        return (long) smoothedResponseTimeMs;
+    }
+
+    /**
+     * 現在のバックオフ係数を返します。
+     * Return the current backoff factor.
+     *
+     * @return バックオフ係数。 Backoff factor.
+     */
+    public synchronized int getBackoff() {
+        return backoff;
+    }
+}
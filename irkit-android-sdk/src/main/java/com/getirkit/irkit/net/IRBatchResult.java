@@ -0,0 +1,98 @@
+package com.getirkit.irkit.net;
+
+import com.getirkit.irkit.IRSignal;
+
+import java.util.List;
+
+/**
+ * <p class="ja">
+ * IRKit#sendSignals()の結果を受け取るコールバックです。
+ * すべての信号の送信が終わった後にonComplete()が1回だけ呼ばれます。
+ * </p>
+ *
+ * <p class="en">
+ * Callback for receiving the result of IRKit#sendSignals().
+ * onComplete() is called exactly once after all signals have been processed.
+ * </p>
+ *
+ * @since 1.4.0
+ */
+public interface IRBatchResult {
+    /**
+     * 1個の信号の送信結果です。
+     * Result of sending one signal.
+     */
+    enum Status {
+        /**
+         * 送信に成功しました。 The signal was sent.
+         */
+        SUCCESS,
+
+        /**
+         * 送信に失敗しました。errorに理由が入ります。 Sending failed. error holds the reason.
+         */
+        ERROR,
+    }
+
+    /**
+     * バッチの1ステップです。
+     * A step of the batch.
+     */
+    class Step {
+        /**
+         * sendSignals()に渡したリスト内の位置。
+         * Position in the list passed to sendSignals().
+         */
+        public final int index;
+
+        /**
+         * 送信した信号。
+         * Signal which was sent.
+         */
+        public final IRSignal signal;
+
+        /**
+         * 送信結果。
+         * Result of the send.
+         */
+        public Status status;
+
+        /**
+         * statusがERRORの場合のエラー。
+         * Error if status is ERROR.
+         */
+        public IRAPIError error;
+
+        /**
+         * 送信を開始した時刻（System.currentTimeMillis()）。送信しなかった場合は0。
+         * Time when the send started (System.currentTimeMillis()), or 0 if not sent.
+         */
+        public long startedAt;
+
+        /**
+         * 送信開始から完了までの時間（ミリ秒）。
+         * Milliseconds from start to completion of the send.
+         */
+        public long durationMs;
+
+        public Step(int index, IRSignal signal) {
+            this.index = index;
+            this.signal = signal;
+        }
+
+        @Override
+        public String toString() {
+            return "Step[index=" + index + ";status=" + status + ";durationMs=" + durationMs +
+                    (error != null ? ";error=" + error.message : "") + "]";
+        }
+    }
+
+    /**
+     * すべての信号の送信が終わった際に呼ばれます。
+     * Called when all signals have been processed.
+     *
+     * @param steps sendSignals()に渡した順のステップ。 Steps in the order passed to sendSignals().
+     * @param isSuccess すべてのステップが成功した場合はtrue。 True if all steps succeeded.
+     */
+    void onComplete(List<Step> steps, boolean isSuccess);
+}
@@ -0,0 +1,132 @@
+package com.getirkit.irkit.net;
+
+import com.squareup.okhttp.Headers;
+import com.squareup.okhttp.MediaType;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.RequestBody;
+import com.squareup.okhttp.ResponseBody;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import okio.BufferedSink;
+import retrofit.client.Client;
+import retrofit.client.Header;
+import retrofit.client.Request;
+import retrofit.client.Response;
+import retrofit.mime.TypedInput;
+import retrofit.mime.TypedOutput;
+
+/**
+ * <p class="ja">
+ * retrofit.client.OkClientと同じ変換を行うClientです。IRRequestHandle.TAG_HEADERヘッダを
+ * 取り除いてOkHttpのリクエストのタグにするため、OkHttpClient#cancel(Object)でリクエストを中断できます。
+ * </p>
+ *
+ * <p class="en">
+ * Client which converts requests the same way as retrofit.client.OkClient. It turns the
+ * IRRequestHandle.TAG_HEADER header into the tag of the OkHttp request, so the request
+ * can be aborted with OkHttpClient#cancel(Object).
+ * </p>
+ */
+class IRCancellableOkClient implements Client {
+    private final OkHttpClient client;
+
+    IRCancellableOkClient(OkHttpClient client) {
+        this.client = client;
+    }
+
+    @Override
+    public Response execute(Request request) throws IOException {
+        return parseResponse(client.newCall(createRequest(request)).execute());
+    }
+
+    private static com.squareup.okhttp.Request createRequest(Request request) {
+        RequestBody body = createRequestBody(request.getBody());
+        if (body == null && requiresRequestBody(request.getMethod())) {
+            body = RequestBody.create(null, new byte[0]);
+        }
+        com.squareup.okhttp.Request.Builder builder = new com.squareup.okhttp.Request.Builder()
+                .url(request.getUrl())
+                .method(request.getMethod(), body);
+        for (Header header : request.getHeaders()) {
+            String value = header.getValue() != null ? header.getValue() : "";
+            if (IRRequestHandle.TAG_HEADER.equals(header.getName())) {
+                builder.tag(value);
+            } else {
+                builder.addHeader(header.getName(), value);
+            }
+        }
+        return builder.build();
+    }
+
+    private static boolean requiresRequestBody(String method) {
+        return "POST".equals(method) || "PUT".equals(method) || "PATCH".equals(method);
+    }
+
+    private static Response parseResponse(com.squareup.okhttp.Response response) throws IOException {
+        return new Response(response.request().urlString(), response.code(), response.message(),
+                createHeaders(response.headers()), createResponseBody(response.body()));
+    }
+
+    private static RequestBody createRequestBody(final TypedOutput body) {
+        if (body == null) {
+            return null;
+        }
+        final MediaType mediaType = MediaType.parse(body.mimeType());
+        return new RequestBody() {
+            @Override
+            public MediaType contentType() {
+                return mediaType;
+            }
+
+            @Override
+            public long contentLength() {
+                return body.length();
+            }
+
+            @Override
+            public void writeTo(BufferedSink sink) throws IOException {
+                body.writeTo(sink.outputStream());
+            }
+        };
+    }
+
+    private static TypedInput createResponseBody(final ResponseBody body) throws IOException {
+        if (body.contentLength() == 0) {
+            return null;
+        }
+        return new TypedInput() {
+            @Override
+            public String mimeType() {
+                MediaType mediaType = body.contentType();
+                return mediaType != null ? mediaType.toString() : null;
+            }
+
+            @Override
+            public long length() {
+                try {
+                    return body.contentLength();
+                } catch (IOException e) {
+                    return -1;
+                }
+            }
+
+            @Override
+            public InputStream in() throws IOException {
+                return body.byteStream();
+            }
+        };
+    }
+
+    private static List<Header> createHeaders(Headers headers) {
+        int size = headers.size();
+        List<Header> headerList = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            headerList.add(new Header(headers.name(i), headers.value(i)));
+        }
+        return headerList;
+    }
+}
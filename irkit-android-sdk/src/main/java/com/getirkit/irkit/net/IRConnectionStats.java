@@ -0,0 +1,89 @@
+package com.getirkit.irkit.net;
+
+/**
+ * <p class="ja">
+ * Device HTTP APIへのHTTP接続の再利用の統計です。IRHTTPClient#getLocalConnectionStats()が
+ * 返すのはその時点のコピーで、後の通信では更新されません。
+ * </p>
+ *
+ * <p class="en">
+ * Statistics of HTTP connection reuse for Device HTTP API. IRHTTPClient#getLocalConnectionStats()
+ * returns a snapshot which is not updated by later traffic.
+ * </p>
+ *
+ * @since 1.4.0
+ */
+public class IRConnectionStats {
+    private long requestCount;
+    private long reusedCount;
+
+    IRConnectionStats() {
+    }
+
+    private IRConnectionStats(long requestCount, long reusedCount) {
+        this.requestCount = requestCount;
+        this.reusedCount = reusedCount;
+    }
+
+    synchronized void recordRequest(boolean isReused) {
+        requestCount++;
+        if (isReused) {
+            reusedCount++;
+        }
+    }
+
+    synchronized void add(IRConnectionStats other) {
+        IRConnectionStats snapshot = other.copy();
+        requestCount += snapshot.requestCount;
+        reusedCount += snapshot.reusedCount;
+    }
+
+    synchronized IRConnectionStats copy() {
+        return new IRConnectionStats(requestCount, reusedCount);
+    }
+
+    /**
+     * 送信されたリクエストの数を返します。
+     * Return the number of requests sent.
+     *
+     * @return リクエスト数。 Number of requests.
+     */
+    public synchronized long getRequestCount() {
+        return requestCount;
+    }
+
+    /**
+     * 既存の接続を再利用したリクエストの数を返します。
+     * Return the number of requests which reused an existing connection.
+     *
+     * @return 再利用したリクエスト数。 Number of requests which reused a connection.
+     */
+    public synchronized long getReusedCount() {
+        return reusedCount;
+    }
+
+    /**
+     * 新しい接続を開いたリクエストの数を返します。
+     * Return the number of requests which opened a new connection.
+     *
+     * @return 新しい接続の数。 Number of new connections.
+     */
+    public synchronized long getNewConnectionCount() {
+        return requestCount - reusedCount;
+    }
+
+    /**
+     * 接続の再利用率を0から1の範囲で返します。リクエストがない場合は0です。
+     * Return the connection reuse rate between 0 and 1, or 0 if there is no request.
+     *
+     * @return 再利用率。 Reuse rate.
+     */
+    public synchronized double getReuseRate() {
+        return requestCount == 0 ? 0 : (double) reusedCount / requestCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "IRConnectionStats[requestCount=" + requestCount + ";reusedCount=" + reusedCount + "]";
+    }
+}
@@ -14,13 +14,10 @@ import retrofit.mime.TypedInput;
  * <pre><code>
  * IRHTTPClient httpClient = IRKit.sharedInstance().getHTTPClient();
  *
- * // Set base URL
- * httpClient.setDeviceAPIEndpoint("http://192.168.1.1"); // IRKit IP address
+ * // Get Device HTTP API service bound to an IRKit
+ * IRDeviceAPIService deviceAPI = httpClient.getDeviceAPIService("http://192.168.1.1"); // IRKit IP address
  * // Or from IRPeripheral
- * httpClient.setDeviceAPIEndpoint(peripheral.getDeviceAPIEndpoint());
- *
- * // Get Device HTTP API service
- * IRDeviceAPIService deviceAPI = httpClient.getDeviceAPIService();
+ * IRDeviceAPIService deviceAPI = httpClient.getDeviceAPIService(peripheral);
  *
  * // Request parameters
  * IRDeviceAPIService.PostMessagesRequest req = new IRDeviceAPIService.PostMessagesRequest();
@@ -0,0 +1,87 @@
+package com.getirkit.irkit.net;
+
+import android.util.Log;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p class="ja">
+ * ScheduledExecutorServiceで動くIRSchedulerです。既定のスケジューラは1本のデーモンスレッドを
+ * SDK全体で共有するため、IRKitデバイスの数が増えてもスレッドやHandlerは増えません。
+ * </p>
+ *
+ * <p class="en">
+ * IRScheduler backed by a ScheduledExecutorService. The default scheduler shares a single
+ * daemon thread across the SDK, so no threads or Handlers are added as the number of IRKit
+ * devices grows.
+ * </p>
+ *
+ * @since 1.4.0
+ */
+public class IRExecutorScheduler implements IRScheduler {
+    public static final String TAG = IRExecutorScheduler.class.getSimpleName();
+
+    private static IRScheduler defaultScheduler;
+
+    private final ScheduledExecutorService executor;
+
+    public IRExecutorScheduler(ScheduledExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * SDKが使うスケジューラを返します。
+     * Return the scheduler used by the SDK.
+     *
+     * @return IRScheduler
+     */
+    public static synchronized IRScheduler getDefault() {
+        if (defaultScheduler == null) {
+            ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "IRKit-scheduler");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            defaultScheduler = new IRExecutorScheduler(executor);
+        }
+        return defaultScheduler;
+    }
+
+    /**
+     * SDKが使うスケジューラを差し替えます。以降にスケジュールされるタスクから有効になります。
+     * Replace the scheduler used by the SDK. Takes effect for tasks scheduled afterwards.
+     *
+     * @param scheduler IRScheduler
+     */
+    public static synchronized void setDefault(IRScheduler scheduler) {
+        defaultScheduler = scheduler;
+    }
+
+    @Override
+    public Task schedule(final Runnable runnable, long delayMs) {
+        final ScheduledFuture<?> future = executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    runnable.run();
+                } catch (RuntimeException ex) {
+                    // Keep the shared thread alive
+                    Log.e(TAG, "Scheduled task threw an exception", ex);
+                }
+            }
+        }, Math.max(0, delayMs), TimeUnit.MILLISECONDS);
+        return new Task() {
+            @Override
+            public void cancel() {
+                future.cancel(false);
+            }
+        };
+    }
+}
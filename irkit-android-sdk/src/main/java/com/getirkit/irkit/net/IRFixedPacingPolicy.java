@@ -0,0 +1,29 @@
+package com.getirkit.irkit.net;
+
+/**
+ * 常に一定の時間を空けるIRPacingPolicyです。1.4.0より前のIRRequestThrottlerの動作と同じです。
+ * IRPacingPolicy which always leaves a fixed gap. Same as IRRequestThrottler before 1.4.0.
+ *
+ * @since 1.4.0
+ */
+public class IRFixedPacingPolicy implements IRPacingPolicy {
+    private final long delayMs;
+
+    public IRFixedPacingPolicy() {
+        this(IRRequestThrottler.DELAY_BETWEEN_REQUESTS_MS);
+    }
+
+    public IRFixedPacingPolicy(long delayMs) {
+        this.delayMs = delayMs;
+    }
+
+    @Override
+    public long onRequestDone(long responseTimeMs, boolean isSuccess) {
+        return delayMs;
+    }
+
+    @Override
+    public long getCurrentDelayMs() {
+        return delayMs;
+    }
+}
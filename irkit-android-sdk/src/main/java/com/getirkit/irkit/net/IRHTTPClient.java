@@ -9,12 +9,20 @@ import com.getirkit.irkit.IRPeripherals;
 import com.getirkit.irkit.IRSignal;
 import com.getirkit.irkit.IRState;
 import com.getirkit.irkit.IRWifiInfo;
+import com.squareup.okhttp.Connection;
+import com.squareup.okhttp.ConnectionPool;
+import com.squareup.okhttp.Dispatcher;
+import com.squareup.okhttp.Interceptor;
 import com.squareup.okhttp.OkHttpClient;
 
-import java.util.Date;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.WeakHashMap;
 import java.util.concurrent.TimeUnit;
 
 import retrofit.Callback;
@@ -22,9 +30,10 @@ import retrofit.RequestInterceptor;
 import retrofit.RestAdapter;
 import retrofit.RetrofitError;
 import retrofit.client.Header;
-import retrofit.client.OkClient;
+import retrofit.client.Client;
 import retrofit.client.Response;
 import retrofit.mime.TypedInput;
+import retrofit.mime.TypedOutput;
 import retrofit.mime.TypedString;
 
 /**
@@ -52,6 +61,20 @@ public class IRHTTPClient {
      */
     public static final String DEVICE_API_X_REQUESTED_WITH = "IRKit Android SDK";
 
+    /**
+     * Device HTTP APIのアイドル状態の接続を保持する時間（ミリ秒）。
+     * IRKitのファームウェアが接続を閉じた場合はそれに従います。
+     * Milliseconds to keep idle connections to Device HTTP API.
+     * Connections closed by IRKit firmware are not kept.
+     */
+    private static final long LOCAL_KEEP_ALIVE_MS = 60 * 1000;
+
+    /**
+     * Device HTTP APIのアイドル状態の接続を保持する最大数。
+     * Max number of idle connections kept for Device HTTP API.
+     */
+    private static final int LOCAL_MAX_IDLE_CONNECTIONS = 8;
+
     // Retrofit
     private RestAdapter internetRestAdapter;
     private RestAdapter deviceRestAdapter;
@@ -61,10 +84,31 @@ public class IRHTTPClient {
     private String clientkey;
     private OkHttpClient internetHttpClient;
     private OkHttpClient localHttpClient;
-    private Date lastRequestDate;
+    private final IRSignalReceiver signalReceiver = new IRSignalReceiver(this);
+
+    /**
+     * waitForSignal()の実行中の購読。
+     * Subscriptions of waitForSignal() in progress.
+     */
+    private final ArrayList<IRSignalReceiver.Subscription> waitForSignalSubscriptions = new ArrayList<>();
     private IRInternetAPIService.PostDevicesResponse holdingPostDevicesResponse;
-    private Date lastPostDoorRequestDate;
+    private IRRequestHandle postDoorHandle;
     private IRDeviceEndpoint deviceEndpoint;
+    private Client localClient;
+    private RequestInterceptor deviceRequestInterceptor;
+
+    /**
+     * "http://host:port"ごとのDevice HTTP APIのインスタンス。
+     * Device HTTP API instances per "http://host:port".
+     */
+    private final HashMap<String, IRDeviceAPIService> deviceAPIServices = new HashMap<>();
+
+    /**
+     * ホストごとのDevice HTTP APIの接続の統計。
+     * Connection statistics of Device HTTP API per host.
+     */
+    private final HashMap<String, IRConnectionStats> localConnectionStats = new HashMap<>();
+    private final Set<Connection> seenLocalConnections = Collections.newSetFromMap(new WeakHashMap<Connection, Boolean>());
 
     // singleton
     private static IRHTTPClient ourInstance = new IRHTTPClient();
@@ -90,10 +134,27 @@ public class IRHTTPClient {
         // A request may take 2-24 seconds
         localHttpClient.setReadTimeout(30, TimeUnit.SECONDS);
         localHttpClient.getDispatcher().setMaxRequestsPerHost(1);
+        // Keep warm connections to every IRKit on the local network
+        localHttpClient.setConnectionPool(new ConnectionPool(LOCAL_MAX_IDLE_CONNECTIONS, LOCAL_KEEP_ALIVE_MS));
+        localHttpClient.networkInterceptors().add(new Interceptor() {
+            @Override
+            public com.squareup.okhttp.Response intercept(Chain chain) throws IOException {
+                recordLocalConnection(chain.request().url().getHost(), chain.connection());
+                return chain.proceed(chain.request());
+            }
+        });
+        localClient = new IRCancellableOkClient(localHttpClient);
 
         internetRestAdapter = new RestAdapter.Builder()
-                .setClient(new OkClient(internetHttpClient))
+                .setClient(new IRCancellableOkClient(internetHttpClient))
                 .setEndpoint(APIENDPOINT_BASE)
+                .setRequestInterceptor(new RequestInterceptor() {
+                    @Override
+                    public void intercept(RequestFacade request) {
+                        addHandleTag(request);
+                    }
+                })
+                .setConverter(new IRJsonConverter())
 //                .setLogLevel(RestAdapter.LogLevel.FULL)
                 .build();
         internetAPIService = internetRestAdapter.create(IRInternetAPIService.class);
@@ -102,22 +163,51 @@ public class IRHTTPClient {
         deviceEndpoint.setUrl(DEVICE_API_ENDPOINT_IRKITWIFI);
 
         // Add X-Requested-With header to every request to Device HTTP API
-        RequestInterceptor requestInterceptor = new RequestInterceptor() {
+        deviceRequestInterceptor = new RequestInterceptor() {
             @Override
             public void intercept(RequestFacade request) {
                 request.addHeader("X-Requested-With", DEVICE_API_X_REQUESTED_WITH);
+                addHandleTag(request);
             }
         };
 
         deviceRestAdapter = new RestAdapter.Builder()
-                .setClient(new OkClient(localHttpClient))
+                .setClient(localClient)
                 .setEndpoint(deviceEndpoint)
-                .setRequestInterceptor(requestInterceptor)
+                .setRequestInterceptor(deviceRequestInterceptor)
+                .setConverter(new IRJsonConverter())
 //                .setLogLevel(RestAdapter.LogLevel.FULL)
                 .build();
         deviceAPIService = deviceRestAdapter.create(IRDeviceAPIService.class);
     }
 
+    /**
+     * <p class="ja">
+     * このスレッドで有効なIRRequestHandleがあれば、リクエストをそれに結び付けます。
+     * Retrofitは非同期のリクエストでも呼び出し元のスレッドでRequestInterceptorを呼びます。
+     * </p>
+     *
+     * <p class="en">
+     * Tie the request to the IRRequestHandle in effect on this thread, if any.
+     * Retrofit calls RequestInterceptor on the calling thread even for asynchronous requests.
+     * </p>
+     */
+    private static void addHandleTag(RequestInterceptor.RequestFacade request) {
+        IRRequestHandle handle = IRRequestHandle.current();
+        if (handle != null) {
+            request.addHeader(IRRequestHandle.TAG_HEADER, handle.getTag());
+        }
+    }
+
+    /**
+     * tagが付いた実行中のHTTPリクエストを中断します。
+     * Abort HTTP requests in flight which have tag.
+     */
+    void cancelCalls(String tag) {
+        localHttpClient.cancel(tag);
+        internetHttpClient.cancel(tag);
+    }
+
     /**
      * clientkeyをセットします。
      * Set a clientkey.
@@ -129,8 +219,17 @@ public class IRHTTPClient {
     }
 
     /**
-     * Device HTTP APIのエンドポイントをセットします。
-     * Set an endpoint for Device HTTP API.
+     * <p class="ja">
+     * Device HTTP APIのエンドポイントをセットします。影響するのはgetDeviceAPIService()と
+     * getThrottledDeviceAPIService()が返すインスタンスだけです。複数のIRKitと並行して
+     * 通信する場合はgetDeviceAPIService(String)を使ってください。
+     * </p>
+     *
+     * <p class="en">
+     * Set an endpoint for Device HTTP API. Only the instances returned by getDeviceAPIService()
+     * and getThrottledDeviceAPIService() are affected. To talk to several IRKits in parallel,
+     * use getDeviceAPIService(String).
+     * </p>
      *
      * @param endpoint A string like "http://127.0.0.1"
      */
@@ -191,11 +290,8 @@ public class IRHTTPClient {
      * @param callback 結果を受け取るコールバック。 Callback to be notified a result.
      */
     public void sendSignalOverInternet(IRSignal signal, final IRAPICallback<IRInternetAPIService.PostMessagesResponse> callback) {
-        HashMap<String, String> params = new HashMap<>();
-        params.put("deviceid", signal.getDeviceId());
-        params.put("message", signal.toJson());
-        this.addClientKey(params);
-        getThrottledInternetAPIService(signal.getDeviceId()).postMessages(params, new IRAPICallback<IRInternetAPIService.PostMessagesResponse>() {
+        TypedOutput body = IRSignalBodyCache.sharedInstance().getInternetBody(signal, clientkey);
+        getThrottledInternetAPIService(signal.getDeviceId()).postEncodedMessages(body, new IRAPICallback<IRInternetAPIService.PostMessagesResponse>() {
             @Override
             public void success(IRInternetAPIService.PostMessagesResponse postMessagesResponse, Response response) {
                 if (callback != null) {
@@ -213,19 +309,86 @@ public class IRHTTPClient {
     }
 
     /**
-     * Device HTTP APIで赤外線信号を送信します。
-     * Send IRSignal over Device HTTP API.
+     * <p class="ja">
+     * IRRequestThrottlerのキューを通さずに、Internet HTTP APIで赤外線信号をすぐに送信します。
+     * 同じIRKitへのDevice HTTP APIの呼び出しが実行中でも待ちません。
+     * IRKit本体はサーバからの信号を自身のペースで取得するため、ローカルの呼び出しと並行しても問題ありません。
+     * </p>
+     *
+     * <p class="en">
+     * Send signal over Internet HTTP API immediately, bypassing the IRRequestThrottler queue.
+     * It does not wait for a Device HTTP API call to the same IRKit in progress.
+     * The IRKit device fetches signals from the server at its own pace, so running in parallel
+     * with a local call is safe.
+     * </p>
+     *
+     * @param signal IRSignal
+     * @param callback 結果を受け取るコールバック。 Callback to be notified a result.
+     * @since 1.4.0
+     */
+    public void sendSignalOverInternetNow(IRSignal signal, final IRAPICallback<IRInternetAPIService.PostMessagesResponse> callback) {
+        TypedOutput body = IRSignalBodyCache.sharedInstance().getInternetBody(signal, clientkey);
+        internetAPIService.postEncodedMessages(body, callback);
+    }
+
+    /**
+     * <p class="ja">
+     * Device HTTP APIで赤外線信号を送信します。送信先は信号のdeviceidに対応するIRPeripheralのエンドポイントです。
+     * IRPeripheralのアドレスが解決されていない場合はonError()が呼ばれます。deviceidに対応するIRPeripheralが
+     * ない場合は、以前のバージョンと同じくsetDeviceAPIEndpoint()でセットしたエンドポイントに送信します。
+     * </p>
+     *
+     * <p class="en">
+     * Send IRSignal over Device HTTP API to the endpoint of IRPeripheral for the deviceid of the signal.
+     * If the address of the IRPeripheral is not resolved, onError() is called. If there is no
+     * IRPeripheral for the deviceid, the signal is sent to the endpoint set by setDeviceAPIEndpoint()
+     * as in older versions.
+     * </p>
      *
      * @param signal IRSignal
      * @param result 結果を受け取るコールバック。 Callback to be notified a result.
      */
     public void sendSignalOverLocalNetwork(final IRSignal signal, final IRAPIResult result) {
-        IRDeviceAPIService.PostMessagesRequest request = new IRDeviceAPIService.PostMessagesRequest();
-        request.format = signal.getFormat();
-        request.freq = signal.getFrequency();
-        request.data = signal.getData();
+        IRPeripheral peripheral = IRKit.sharedInstance().peripherals.getPeripheralByDeviceId(signal.getDeviceId());
+        if (peripheral != null) {
+            sendSignalOverLocalNetwork(signal, peripheral.getDeviceAPIEndpoint(), result);
+        } else {
+            postMessages(signal, getThrottledDeviceAPIService(signal.getDeviceId()), result);
+        }
+    }
+
+    /**
+     * <p class="ja">
+     * Device HTTP APIでendpointのIRKitから赤外線信号を送信します。endpointがnullの場合は
+     * 何も送らずにonError()が呼ばれます。setDeviceAPIEndpoint()でセットしたエンドポイントは
+     * 別のIRKitを指していることがあるため使いません。
+     * </p>
+     *
+     * <p class="en">
+     * Send IRSignal over Device HTTP API of the IRKit at endpoint. If endpoint is null, nothing is
+     * sent and onError() is called. The endpoint set by setDeviceAPIEndpoint() may point to another
+     * IRKit, so it is never used.
+     * </p>
+     *
+     * @param signal IRSignal
+     * @param endpoint "http://host:port" のような文字列。 A string like "http://host:port".
+     * @param result 結果を受け取るコールバック。 Callback to be notified a result.
+     * @since 1.4.0
+     */
+    public void sendSignalOverLocalNetwork(final IRSignal signal, String endpoint, final IRAPIResult result) {
+        if (endpoint == null) {
+            if (result != null) {
+                result.onError(new IRAPIError("local address is not resolved"));
+            }
+            return;
+        }
+        postMessages(signal, getThrottledDeviceAPIService(signal.getDeviceId(), endpoint), result);
+    }
 
-        getThrottledDeviceAPIService(signal.getDeviceId()).postMessages(request, new Callback<IRDeviceAPIService.PostMessagesResponse>() {
+    private void postMessages(final IRSignal signal, IRDeviceAPIService service, final IRAPIResult result) {
+        IRDeviceAPIService.PostMessagesRequest request = IRSignalBodyCache.sharedInstance().getDeviceRequest(signal);
+
+        service.postMessages(request, new Callback<IRDeviceAPIService.PostMessagesResponse>() {
             @Override
             public void success(IRDeviceAPIService.PostMessagesResponse postMessagesResponse, Response response) {
                 IRPeripherals peripherals = IRKit.sharedInstance().peripherals;
@@ -262,52 +425,87 @@ public class IRHTTPClient {
      * Clear the IR signal saved in IRKit server, then wait for a new IR signal.
      *
      * @param callback 結果を受け取るコールバック。 Callback to be notified a result.
+     * @return 待機を取り消すためのハンドル。 Handle to cancel the wait.
      */
-    public void waitForSignal(IRAPICallback<IRInternetAPIService.GetMessagesResponse> callback) {
-        waitForSignal(callback, true);
+    public IRRequestHandle waitForSignal(IRAPICallback<IRInternetAPIService.GetMessagesResponse> callback) {
+        return waitForSignal(callback, true);
     }
 
     /**
-     * 赤外線信号を受信します。
-     * Receive an IR signal.
+     * <p class="ja">
+     * 赤外線信号を1個受信します。getSignalReceiver()の購読者として動作し、最初の信号を受信すると購読をやめます。
+     * 続けて複数の信号を受信する場合はgetSignalReceiver()を直接使ってください。
+     * </p>
+     *
+     * <p class="en">
+     * Receive an IR signal. This works as a subscriber of getSignalReceiver() and stops
+     * the subscription when the first signal has been received. To receive several signals
+     * in a row, use getSignalReceiver() directly.
+     * </p>
      *
      * @param callback 結果を受け取るコールバック。 Callback to be notified a result.
      * @param clear trueの場合、IRKitサーバに保存されている信号を削除して、新しい信号を待機します。
      *              If true, delete the IR signal saved in IRKit server, then wait for a new IR signal.
+     * @return 待機を取り消すためのハンドル。取り消した場合callbackは呼ばれません。
+     *         Handle to cancel the wait. callback is never called once cancelled.
      */
-    public void waitForSignal(final IRAPICallback<IRInternetAPIService.GetMessagesResponse> callback, boolean clear) {
-        HashMap<String, String> params = new HashMap<>(2);
-        if (clear) {
-            params.put("clear", "1");
-        }
-        this.addClientKey(params);
-
-        final Date requestDate = lastRequestDate = new Date();
-        internetAPIService.getMessages(params, new Callback<IRInternetAPIService.GetMessagesResponse>() {
+    public IRRequestHandle waitForSignal(final IRAPICallback<IRInternetAPIService.GetMessagesResponse> callback, boolean clear) {
+        final IRSignalReceiver.Subscription[] subscription = new IRSignalReceiver.Subscription[1];
+        IRSignalReceiver.Subscriber subscriber = new IRSignalReceiver.Subscriber() {
             @Override
-            public void success(IRInternetAPIService.GetMessagesResponse getMessagesResponse, Response response) {
-                if (lastRequestDate == null) {
-                    // The request has been cancelled. Discard this response.
+            public void onSignalReceived(IRSignal signal) {
+                if (!finish()) {
                     return;
                 }
-                if (lastRequestDate.after(requestDate)) {
-                    // The request is obsolete. Discard this response.
-                    return;
+                IRInternetAPIService.GetMessagesResponse getMessagesResponse = new IRInternetAPIService.GetMessagesResponse();
+                getMessagesResponse.deviceid = signal.getDeviceId();
+                getMessagesResponse.message = new IRDeviceAPIService.GetMessagesResponse();
+                getMessagesResponse.message.format = signal.getFormat();
+                getMessagesResponse.message.freq = signal.getFrequency();
+                getMessagesResponse.message.data = signal.getData();
+                IRPeripheral peripheral = IRKit.sharedInstance().peripherals.getPeripheralByDeviceId(signal.getDeviceId());
+                if (peripheral != null) {
+                    getMessagesResponse.hostname = peripheral.getHostname();
                 }
-                if (getMessagesResponse == null) {
-                    // Server returned null response. Try again.
-                    IRHTTPClient.sharedInstance().waitForSignal(callback, false);
-                } else {
-                    callback.success(getMessagesResponse, response);
+                callback.success(getMessagesResponse, null);
+            }
+
+            @Override
+            public void onError(RetrofitError error) {
+                if (finish()) {
+                    callback.failure(error);
                 }
             }
 
+            private boolean finish() {
+                synchronized (waitForSignalSubscriptions) {
+                    if (!waitForSignalSubscriptions.remove(subscription[0])) {
+                        // Already finished or cancelled
+                        return false;
+                    }
+                }
+                subscription[0].cancel();
+                return true;
+            }
+        };
+        synchronized (waitForSignalSubscriptions) {
+            subscription[0] = signalReceiver.subscribe(subscriber, clear);
+            waitForSignalSubscriptions.add(subscription[0]);
+        }
+        IRRequestHandle handle = new IRRequestHandle();
+        handle.addCancelAction(new Runnable() {
             @Override
-            public void failure(RetrofitError error) {
-                Log.e(TAG, "internet getMessages failure: " + error.getMessage());
-                callback.failure(error);
+            public void run() {
+                synchronized (waitForSignalSubscriptions) {
+                    if (!waitForSignalSubscriptions.remove(subscription[0])) {
+                        // Already finished
+                        return;
+                    }
+                }
+                subscription[0].cancel();
             }
         });
+        return handle;
     }
 
     /**
@@ -322,7 +520,25 @@ public class IRHTTPClient {
      * </p>
      */
     public void cancelRequests() {
-        lastRequestDate = null;
+        ArrayList<IRSignalReceiver.Subscription> subscriptions;
+        synchronized (waitForSignalSubscriptions) {
+            subscriptions = new ArrayList<>(waitForSignalSubscriptions);
+            waitForSignalSubscriptions.clear();
+        }
+        for (IRSignalReceiver.Subscription subscription : subscriptions) {
+            subscription.cancel();
+        }
+    }
+
+    /**
+     * 受信した赤外線信号を次々と届けるIRSignalReceiverを返します。
+     * Return the IRSignalReceiver which delivers received IR signals as a stream.
+     *
+     * @return IRSignalReceiver instance.
+     * @since 1.4.0
+     */
+    public IRSignalReceiver getSignalReceiver() {
+        return signalReceiver;
     }
 
     /**
@@ -401,7 +617,7 @@ public class IRHTTPClient {
         }
         String morseString = irWifiInfo.createMorseString(holdingPostDevicesResponse.devicekey);
         TypedInput in = new TypedString(morseString);
-        deviceAPIService.postWifi(in, new Callback<IRDeviceAPIService.PostWifiResponse>() {
+        getDeviceAPIService(DEVICE_API_ENDPOINT_IRKITWIFI).postWifi(in, new Callback<IRDeviceAPIService.PostWifiResponse>() {
             @Override
             public void success(IRDeviceAPIService.PostWifiResponse postWifiResponse, Response response) {
                 clearDeviceKeyCache();
@@ -417,11 +633,18 @@ public class IRHTTPClient {
     }
 
     /**
-     * waitForDoor()をキャンセルします。
-     * Cancel previously called waitForDoor().
+     * waitForDoor()をキャンセルします。待機中のリクエストは中断されます。
+     * Cancel previously called waitForDoor(). The pending request is aborted.
      */
     public void cancelPostDoor() {
-        lastPostDoorRequestDate = null;
+        IRRequestHandle handle;
+        synchronized (this) {
+            handle = postDoorHandle;
+            postDoorHandle = null;
+        }
+        if (handle != null) {
+            handle.cancel();
+        }
     }
 
     /**
@@ -436,60 +659,82 @@ public class IRHTTPClient {
      *
      * @param deviceId deviceid
      * @param callback 結果を受け取るコールバック。 Callback to be notified a result.
+     * @return 待機を取り消すためのハンドル。取り消した場合callbackは呼ばれません。以前のwaitForDoor()は取り消されます。
+     *         Handle to cancel the wait. callback is never called once cancelled.
+     *         Previously called waitForDoor() is cancelled.
      */
-    public void waitForDoor(final String deviceId, final IRAPICallback<IRInternetAPIService.PostDoorResponse> callback) {
-        HashMap<String, String> params = new HashMap<>(2);
+    public IRRequestHandle waitForDoor(final String deviceId, final IRAPICallback<IRInternetAPIService.PostDoorResponse> callback) {
+        IRRequestHandle handle = new IRRequestHandle();
+        IRRequestHandle previousHandle;
+        synchronized (this) {
+            previousHandle = postDoorHandle;
+            postDoorHandle = handle;
+        }
+        if (previousHandle != null) {
+            previousHandle.cancel();
+        }
+        postDoor(deviceId, handle, callback);
+        return handle;
+    }
+
+    private void postDoor(final String deviceId, final IRRequestHandle handle, final IRAPICallback<IRInternetAPIService.PostDoorResponse> callback) {
+        final HashMap<String, String> params = new HashMap<>(2);
         addClientKey(params);
         params.put("deviceid", deviceId);
-        final Date requestDate = lastPostDoorRequestDate = new Date();
-        internetAPIService.postDoor(params, new Callback<IRInternetAPIService.PostDoorResponse>() {
+        handle.run(new Runnable() {
             @Override
-            public void success(IRInternetAPIService.PostDoorResponse postDoorResponse, Response response) {
-                if (lastPostDoorRequestDate == null) {
-                    // This request has been canceled. Discard this response.
-                    return;
-                }
-                if (lastPostDoorRequestDate.after(requestDate)) {
-                    // This request is obsolete. Discard this response.
-                    return;
-                }
-                if (postDoorResponse.hostname == null) {
-                    // Empty response. Retry.
-                    waitForDoor(deviceId, callback);
-                } else {
-                    // Success
-                    callback.success(postDoorResponse, response);
-                }
-            }
+            public void run() {
+                internetAPIService.postDoor(params, new Callback<IRInternetAPIService.PostDoorResponse>() {
+                    @Override
+                    public void success(IRInternetAPIService.PostDoorResponse postDoorResponse, Response response) {
+                        if (handle.isCancelled()) {
+                            // This request has been canceled. Discard this response.
+                            return;
+                        }
+                        if (postDoorResponse.hostname == null) {
+                            // Empty response. Retry.
+                            postDoor(deviceId, handle, callback);
+                        } else {
+                            // Success
+                            finishPostDoor(handle);
+                            callback.success(postDoorResponse, response);
+                        }
+                    }
 
-            @Override
-            public void failure(RetrofitError error) {
-                if (lastPostDoorRequestDate == null) {
-                    // This request has been canceled. Discard this response.
-                    return;
-                }
-                if (lastPostDoorRequestDate.after(requestDate)) {
-                    // This request is obsolete. Discard this response.
-                    return;
-                }
-                if (error != null && error.getResponse() != null) {
-                    int statusCode = error.getResponse().getStatus();
-                    // IRKit server returns 408 when /door didn't success in a certain amount of time
-                    if (statusCode >= 400 && statusCode < 500) {
-                        // Retry postDoor
-                        waitForDoor(deviceId, callback);
-                    } else {
-                        Log.e(TAG, "postDoor error: statusCode=" + statusCode);
-                        callback.failure(error);
+                    @Override
+                    public void failure(RetrofitError error) {
+                        if (handle.isCancelled()) {
+                            // This request has been canceled. Discard this response.
+                            return;
+                        }
+                        if (error != null && error.getResponse() != null) {
+                            int statusCode = error.getResponse().getStatus();
+                            // IRKit server returns 408 when /door didn't success in a certain amount of time
+                            if (statusCode >= 400 && statusCode < 500) {
+                                // Retry postDoor
+                                postDoor(deviceId, handle, callback);
+                            } else {
+                                Log.e(TAG, "postDoor error: statusCode=" + statusCode);
+                                finishPostDoor(handle);
+                                callback.failure(error);
+                            }
+                        } else {
+                            Log.e(TAG, "postDoor failure: " + error);
+                            finishPostDoor(handle);
+                            callback.failure(error);
+                        }
                     }
-                } else {
-                    Log.e(TAG, "postDoor failure: " + error);
-                    callback.failure(error);
-                }
+                });
             }
         });
     }
 
+    private synchronized void finishPostDoor(IRRequestHandle handle) {
+        if (postDoorHandle == handle) {
+            postDoorHandle = null;
+        }
+    }
+
     /**
      * Checks if the response header denotes IRKit.
      *
@@ -525,7 +770,6 @@ public class IRHTTPClient {
      * @since 1.2.0
      */
     public void testIfIRKitWifiConnected(final IRAPIResult result) {
-        setDeviceAPIEndpoint(DEVICE_API_ENDPOINT_IRKITWIFI);
 
         final IRState state = new IRState();
         final Handler handler = new Handler();
@@ -548,7 +792,7 @@ public class IRHTTPClient {
         handler.postDelayed(r, 3000);
 
         // TODO: throttle?
-        deviceAPIService.getHome(new Callback<IRDeviceAPIService.GetHomeResponse>() {
+        getDeviceAPIService(DEVICE_API_ENDPOINT_IRKITWIFI).getHome(new Callback<IRDeviceAPIService.GetHomeResponse>() {
             @Override
             public void success(IRDeviceAPIService.GetHomeResponse getRootResponse, Response response) {
                 boolean isTimedOut = false;
@@ -605,6 +849,120 @@ public class IRHTTPClient {
         return deviceAPIService;
     }
 
+    /**
+     * <p class="ja">
+     * endpointのIRKitに固定されたDevice HTTP APIのインスタンスを返します。
+     * setDeviceAPIEndpoint()の影響を受けないため、複数のIRKitと並行して通信できます。
+     * インスタンスはendpointごとに1個作られ、接続プールを共有します。
+     * </p>
+     *
+     * <p class="en">
+     * Return a Device HTTP API instance bound to the IRKit at endpoint.
+     * It is not affected by setDeviceAPIEndpoint(), so several IRKits can be used in parallel.
+     * One instance is created per endpoint, and all of them share the connection pool.
+     * </p>
+     *
+     * @param endpoint "http://host:port" のような文字列。 A string like "http://host:port".
+     * @return IRDeviceAPIService instance.
+     * @since 1.4.0
+     */
+    public IRDeviceAPIService getDeviceAPIService(String endpoint) {
+        synchronized (deviceAPIServices) {
+            IRDeviceAPIService service = deviceAPIServices.get(endpoint);
+            if (service == null) {
+                RestAdapter restAdapter = new RestAdapter.Builder()
+                        .setClient(localClient)
+                        .setEndpoint(endpoint)
+                        .setRequestInterceptor(deviceRequestInterceptor)
+                        .setConverter(new IRJsonConverter())
+                        .build();
+                service = restAdapter.create(IRDeviceAPIService.class);
+                deviceAPIServices.put(endpoint, service);
+            }
+            return service;
+        }
+    }
+
+    /**
+     * peripheralに固定されたDevice HTTP APIのインスタンスを返します。
+     * Return a Device HTTP API instance bound to peripheral.
+     *
+     * @param peripheral 対象となるIRKitデバイス。 Target IRKit device.
+     * @return IRDeviceAPIService instance, or null if peripheral is not found on local network.
+     * @see #getDeviceAPIService(String)
+     * @since 1.4.0
+     */
+    public IRDeviceAPIService getDeviceAPIService(IRPeripheral peripheral) {
+        String endpoint = peripheral.getDeviceAPIEndpoint();
+        return endpoint != null ? getDeviceAPIService(endpoint) : null;
+    }
+
+    /**
+     * <p class="ja">
+     * Device HTTP APIのリクエストを実行するDispatcherを返します。このDispatcherは1個のIRKitに
+     * 同時に1個のリクエストしか送らないため、同じDispatcherを使うクライアントはこの制限を共有します。
+     * </p>
+     *
+     * <p class="en">
+     * Return the Dispatcher which runs requests of Device HTTP API. It sends only one request
+     * at a time to each IRKit, so clients using the same Dispatcher share that limit.
+     * </p>
+     *
+     * @return Dispatcher
+     * @since 1.4.0
+     */
+    public Dispatcher getLocalDispatcher() {
+        return localHttpClient.getDispatcher();
+    }
+
+    /**
+     * hostへのDevice HTTP APIの接続の統計を返します。
+     * Return connection statistics of Device HTTP API for host.
+     *
+     * @param host IPアドレスなどのホスト名。 Host name such as an IP address.
+     * @return IRConnectionStats
+     * @since 1.4.0
+     */
+    public IRConnectionStats getLocalConnectionStats(String host) {
+        synchronized (localConnectionStats) {
+            IRConnectionStats stats = localConnectionStats.get(host);
+            return stats != null ? stats.copy() : new IRConnectionStats();
+        }
+    }
+
+    /**
+     * すべてのIRKitへのDevice HTTP APIの接続の統計を合計して返します。
+     * Return connection statistics of Device HTTP API summed over all IRKits.
+     *
+     * @return IRConnectionStats
+     * @since 1.4.0
+     */
+    public IRConnectionStats getLocalConnectionStats() {
+        IRConnectionStats total = new IRConnectionStats();
+        synchronized (localConnectionStats) {
+            for (IRConnectionStats stats : localConnectionStats.values()) {
+                total.add(stats);
+            }
+        }
+        return total;
+    }
+
+    private void recordLocalConnection(String host, Connection connection) {
+        boolean isReused;
+        synchronized (seenLocalConnections) {
+            isReused = connection != null && !seenLocalConnections.add(connection);
+        }
+        IRConnectionStats stats;
+        synchronized (localConnectionStats) {
+            stats = localConnectionStats.get(host);
+            if (stats == null) {
+                stats = new IRConnectionStats();
+                localConnectionStats.put(host, stats);
+            }
+        }
+        stats.recordRequest(isReused);
+    }
+
     /**
      * ランダムな文字列を返します。
      * Returns a random string.
@@ -624,7 +982,33 @@ public class IRHTTPClient {
      * @since 1.2.1
      */
     public IRDeviceAPIService getThrottledDeviceAPIService(IRPeripheral peripheral) {
-        return IRRequestThrottler.getThrottler(peripheral, deviceAPIService, internetAPIService).getDeviceAPIRequester();
+        return getThrottledDeviceAPIService(peripheral.getDeviceId(), peripheral.getDeviceAPIEndpoint());
+    }
+
+    /**
+     * <p class="ja">
+     * deviceIdのIRKitに対してスロットル制御を行いながら、endpointにDevice HTTP APIでアクセスするためのオブジェクトを返します。
+     * 呼び出しはキューに追加した時点のendpointに送られるため、実行までに他のIRKitとの通信があっても送信先は変わりません。
+     * </p>
+     *
+     * <p class="en">
+     * Returns an object which accesses Device HTTP API at endpoint with request throttling for the IRKit of deviceId.
+     * Calls are sent to the endpoint given when they were enqueued, so traffic to other IRKits
+     * in the meantime never changes their destination.
+     * </p>
+     *
+     * @param deviceId 対象となるIRKitデバイスのdeviceid。 Deviceid of the target IRKit device.
+     * @param endpoint "http://host:port" のような文字列。nullの場合はsetDeviceAPIEndpoint()でセットしたエンドポイント。
+     *                 A string like "http://host:port". If null, the endpoint set by setDeviceAPIEndpoint().
+     * @return IRDeviceAPIService instance.
+     * @since 1.4.0
+     */
+    public IRDeviceAPIService getThrottledDeviceAPIService(String deviceId, String endpoint) {
+        IRRequestThrottler throttler = IRRequestThrottler.getThrottler(deviceId, deviceAPIService, internetAPIService);
+        if (endpoint == null) {
+            return throttler.getDeviceAPIRequester();
+        }
+        return throttler.getDeviceAPIRequester(getDeviceAPIService(endpoint));
     }
 
     /**
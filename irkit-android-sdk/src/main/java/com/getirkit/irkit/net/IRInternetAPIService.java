@@ -3,12 +3,14 @@ package com.getirkit.irkit.net;
 import java.util.Map;
 
 import retrofit.Callback;
+import retrofit.http.Body;
 import retrofit.http.FieldMap;
 import retrofit.http.FormUrlEncoded;
 import retrofit.http.GET;
 import retrofit.http.POST;
 import retrofit.http.QueryMap;
 import retrofit.mime.TypedInput;
+import retrofit.mime.TypedOutput;
 
 /**
  * IRKit Internet HTTP APIのインタフェースです。
@@ -85,6 +87,18 @@ public interface IRInternetAPIService {
     @POST("/1/messages")
     void postMessages(@FieldMap Map<String, String> params, Callback<PostMessagesResponse> callback);
 
+    /**
+     * エンコード済みのフォームボディで赤外線信号を送信します。
+     * Send an IR signal with a pre-encoded form body.
+     *
+     * @param body application/x-www-form-urlencoded body
+     * @param callback
+     * @see IRSignalBodyCache#getInternetBody(com.getirkit.irkit.IRSignal, String)
+     * @since 1.4.0
+     */
+    @POST("/1/messages")
+    void postEncodedMessages(@Body TypedOutput body, Callback<PostMessagesResponse> callback);
+
     /**
      * postClients()のレスポンスです。
      * Response of postClients().
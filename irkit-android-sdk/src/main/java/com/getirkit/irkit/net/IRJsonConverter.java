@@ -0,0 +1,185 @@
+package com.getirkit.irkit.net;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.reflect.Type;
+import java.util.Arrays;
+
+import retrofit.converter.ConversionException;
+import retrofit.converter.Converter;
+import retrofit.converter.GsonConverter;
+import retrofit.mime.MimeUtil;
+import retrofit.mime.TypedInput;
+import retrofit.mime.TypedOutput;
+
+/**
+ * <p class="ja">
+ * 赤外線信号を含むリクエストとレスポンスをGsonのリフレクションを使わずに変換する
+ * Retrofitのコンバータです。PostMessagesRequestはIRJsonWriterでちょうどの長さの
+ * バイト列に書き出し、GetMessagesResponseはプルパーサでdataをボクシングせずに
+ * int配列へ読み込みます。それ以外の型はGsonConverterに委譲します。
+ * </p>
+ *
+ * <p class="en">
+ * Retrofit converter which converts requests and responses carrying IR signals
+ * without Gson reflection. PostMessagesRequest is written by IRJsonWriter into
+ * a byte array of the exact length, and GetMessagesResponse is read by a pull
+ * parser straight into an int array without boxing. Other types are delegated
+ * to GsonConverter.
+ * </p>
+ *
+ * @since 1.4.0
+ */
+public class IRJsonConverter implements Converter {
+    public static final String TAG = IRJsonConverter.class.getSimpleName();
+
+    private static final String MIME_TYPE = "application/json; charset=UTF-8";
+    private static final String DEFAULT_CHARSET = "UTF-8";
+    private static final int INITIAL_DATA_CAPACITY = 512;
+
+    private final Converter delegate;
+
+    public IRJsonConverter() {
+        this(new GsonConverter(new Gson()));
+    }
+
+    public IRJsonConverter(Converter delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public Object fromBody(TypedInput body, Type type) throws ConversionException {
+        if (type == IRDeviceAPIService.GetMessagesResponse.class) {
+            return readBody(body, false);
+        } else if (type == IRInternetAPIService.GetMessagesResponse.class) {
+            return readBody(body, true);
+        }
+        return delegate.fromBody(body, type);
+    }
+
+    @Override
+    public TypedOutput toBody(Object object) {
+        if (object instanceof IRSignalBodyCache.EncodedPostMessagesRequest) {
+            return ((IRSignalBodyCache.EncodedPostMessagesRequest) object).toBody();
+        } else if (object instanceof IRDeviceAPIService.PostMessagesRequest) {
+            IRDeviceAPIService.PostMessagesRequest req = (IRDeviceAPIService.PostMessagesRequest) object;
+            return new IRSignalBodyCache.BytesTypedOutput(MIME_TYPE, null,
+                    IRJsonWriter.toMessageBytes(req.format, req.freq, req.data));
+        }
+        return delegate.toBody(object);
+    }
+
+    private static Object readBody(TypedInput body, boolean isInternetResponse) throws ConversionException {
+        String charset = DEFAULT_CHARSET;
+        if (body.mimeType() != null) {
+            charset = MimeUtil.parseCharset(body.mimeType(), DEFAULT_CHARSET);
+        }
+        InputStreamReader isr = null;
+        try {
+            isr = new InputStreamReader(body.in(), charset);
+            JsonReader reader = new JsonReader(isr);
+            reader.setLenient(true);
+            try {
+                // Empty body is converted to null like GsonConverter does
+                reader.peek();
+            } catch (EOFException e) {
+                return null;
+            }
+            if (isInternetResponse) {
+                return readInternetMessagesResponse(reader);
+            } else {
+                return readMessagesResponse(reader);
+            }
+        } catch (IOException | IllegalStateException | NumberFormatException e) {
+            throw new ConversionException(e);
+        } finally {
+            if (isr != null) {
+                try {
+                    isr.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private static IRInternetAPIService.GetMessagesResponse readInternetMessagesResponse(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        IRInternetAPIService.GetMessagesResponse response = new IRInternetAPIService.GetMessagesResponse();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (name.equals("message")) {
+                response.message = readMessagesResponse(reader);
+            } else if (name.equals("hostname")) {
+                response.hostname = nextStringOrNull(reader);
+            } else if (name.equals("deviceid")) {
+                response.deviceid = nextStringOrNull(reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return response;
+    }
+
+    private static IRDeviceAPIService.GetMessagesResponse readMessagesResponse(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        IRDeviceAPIService.GetMessagesResponse response = new IRDeviceAPIService.GetMessagesResponse();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (name.equals("format")) {
+                response.format = nextStringOrNull(reader);
+            } else if (name.equals("freq")) {
+                if (reader.peek() == JsonToken.NULL) {
+                    reader.nextNull();
+                } else {
+                    response.freq = reader.nextDouble();
+                }
+            } else if (name.equals("data")) {
+                response.data = readIntArray(reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return response;
+    }
+
+    private static int[] readIntArray(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        int[] values = new int[INITIAL_DATA_CAPACITY];
+        int count = 0;
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (count == values.length) {
+                values = Arrays.copyOf(values, count * 2);
+            }
+            values[count++] = reader.nextInt();
+        }
+        reader.endArray();
+        return Arrays.copyOf(values, count);
+    }
+
+    private static String nextStringOrNull(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        return reader.nextString();
+    }
+}
@@ -0,0 +1,268 @@
+package com.getirkit.irkit.net;
+
+import java.nio.charset.Charset;
+
+/**
+ * <p class="ja">
+ * 赤外線信号のJSON表現 <code>{"format":...,"freq":...,"data":[...]}</code> を
+ * JSONObjectやGsonを介さずにバイト配列へ直接書き込むクラスです。dataの各値を
+ * Integerにボクシングせず、中間のオブジェクトも作りません。
+ * </p>
+ *
+ * <p class="en">
+ * Writes the JSON representation of an IR signal, <code>{"format":...,"freq":...,"data":[...]}</code>,
+ * directly into a byte array without going through JSONObject or Gson. Values of
+ * data are never boxed into Integer and no intermediate objects are created.
+ * </p>
+ *
+ * @since 1.4.0
+ */
+public final class IRJsonWriter {
+    public static final String TAG = IRJsonWriter.class.getSimpleName();
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final byte[] FORMAT_KEY = "{\"format\":".getBytes(UTF_8);
+    private static final byte[] FREQ_KEY = ",\"freq\":".getBytes(UTF_8);
+    private static final byte[] DATA_KEY = ",\"data\":[".getBytes(UTF_8);
+    private static final byte[] NULL = "null".getBytes(UTF_8);
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(UTF_8);
+
+    /**
+     * toMessageJson()で使い回すスレッドごとのバッファ。
+     * Per-thread buffer reused by toMessageJson().
+     */
+    private static final ThreadLocal<byte[]> reusableBuffer = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[4096];
+        }
+    };
+
+    private IRJsonWriter() {
+    }
+
+    /**
+     * 赤外線信号のJSON表現のバイト数を返します。
+     * Return the length in bytes of the JSON representation of an IR signal.
+     *
+     * @param format 赤外線信号フォーマット。 IR signal format.
+     * @param freq キャリア周波数。 Carrier frequency.
+     * @param data 赤外線信号データ。nullの場合は"data"を出力しません。
+     *             IR signal data. If null, "data" is omitted.
+     * @return バイト数。 Length in bytes.
+     */
+    public static int messageLength(String format, float freq, int[] data) {
+        int length = FORMAT_KEY.length + stringLength(format) + FREQ_KEY.length + floatLength(freq) + 1;
+        if (data != null) {
+            length += DATA_KEY.length + 1;
+            for (int i = 0; i < data.length; i++) {
+                if (i > 0) {
+                    length++;
+                }
+                length += intLength(data[i]);
+            }
+        }
+        return length;
+    }
+
+    /**
+     * 赤外線信号のJSON表現をdstに書き込みます。dstにはmessageLength()バイト以上の空きが必要です。
+     * Write the JSON representation of an IR signal into dst. dst must have at least
+     * messageLength() bytes of room.
+     *
+     * @param dst 書き込み先。 Destination.
+     * @param offset 書き込みを開始する位置。 Position to start writing at.
+     * @param format 赤外線信号フォーマット。 IR signal format.
+     * @param freq キャリア周波数。NaNと無限大はnullとして書き込みます。
+     *             Carrier frequency. NaN and infinities are written as null.
+     * @param data 赤外線信号データ。nullの場合は"data"を出力しません。
+     *             IR signal data. If null, "data" is omitted.
+     * @return 書き込み終了位置。 Position just after the written bytes.
+     */
+    public static int writeMessage(byte[] dst, int offset, String format, float freq, int[] data) {
+        offset = writeBytes(dst, offset, FORMAT_KEY);
+        offset = writeString(dst, offset, format);
+        offset = writeBytes(dst, offset, FREQ_KEY);
+        offset = writeFloat(dst, offset, freq);
+        if (data != null) {
+            offset = writeBytes(dst, offset, DATA_KEY);
+            for (int i = 0; i < data.length; i++) {
+                if (i > 0) {
+                    dst[offset++] = ',';
+                }
+                offset = writeInt(dst, offset, data[i]);
+            }
+            dst[offset++] = ']';
+        }
+        dst[offset++] = '}';
+        return offset;
+    }
+
+    /**
+     * 赤外線信号のJSON表現をちょうどの大きさのバイト配列で返します。
+     * Return the JSON representation of an IR signal in a byte array of the exact size.
+     *
+     * @param format 赤外線信号フォーマット。 IR signal format.
+     * @param freq キャリア周波数。 Carrier frequency.
+     * @param data 赤外線信号データ。 IR signal data.
+     * @return UTF-8でエンコードされたJSON。 UTF-8 encoded JSON.
+     */
+    public static byte[] toMessageBytes(String format, float freq, int[] data) {
+        byte[] bytes = new byte[messageLength(format, freq, data)];
+        writeMessage(bytes, 0, format, freq, data);
+        return bytes;
+    }
+
+    /**
+     * 赤外線信号のJSON表現を文字列で返します。エンコードにはスレッドごとのバッファを使い回します。
+     * Return the JSON representation of an IR signal as a string. A per-thread buffer is
+     * reused for encoding.
+     *
+     * @param format 赤外線信号フォーマット。 IR signal format.
+     * @param freq キャリア周波数。 Carrier frequency.
+     * @param data 赤外線信号データ。 IR signal data.
+     * @return JSON string
+     */
+    public static String toMessageJson(String format, float freq, int[] data) {
+        int length = messageLength(format, freq, data);
+        byte[] buffer = reusableBuffer.get();
+        if (buffer.length < length) {
+            buffer = new byte[Math.max(length, buffer.length * 2)];
+            reusableBuffer.set(buffer);
+        }
+        writeMessage(buffer, 0, format, freq, data);
+        return new String(buffer, 0, length, UTF_8);
+    }
+
+    // Primitives
+
+    private static int writeBytes(byte[] dst, int offset, byte[] bytes) {
+        System.arraycopy(bytes, 0, dst, offset, bytes.length);
+        return offset + bytes.length;
+    }
+
+    static int intLength(int value) {
+        if (value == Integer.MIN_VALUE) {
+            return 11;
+        }
+        int length = 1;
+        if (value < 0) {
+            length++;
+            value = -value;
+        }
+        while (value >= 10) {
+            value /= 10;
+            length++;
+        }
+        return length;
+    }
+
+    static int writeInt(byte[] dst, int offset, int value) {
+        int length = intLength(value);
+        if (value == Integer.MIN_VALUE) {
+            byte[] bytes = Integer.toString(value).getBytes(UTF_8);
+            return writeBytes(dst, offset, bytes);
+        }
+        int end = offset + length;
+        if (value < 0) {
+            dst[offset] = '-';
+            value = -value;
+        }
+        int pos = end;
+        do {
+            dst[--pos] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        return end;
+    }
+
+    private static boolean isIntegral(float value) {
+        return value == (int) value;
+    }
+
+    private static int floatLength(float value) {
+        if (Float.isNaN(value) || Float.isInfinite(value)) {
+            return NULL.length;
+        }
+        if (isIntegral(value)) {
+            return intLength((int) value);
+        }
+        return Float.toString(value).length();
+    }
+
+    private static int writeFloat(byte[] dst, int offset, float value) {
+        if (Float.isNaN(value) || Float.isInfinite(value)) {
+            // JSON has no literal for these; readers already accept a null freq
+            return writeBytes(dst, offset, NULL);
+        }
+        if (isIntegral(value)) {
+            return writeInt(dst, offset, (int) value);
+        }
+        // Float.toString() only produces ASCII characters
+        return writeBytes(dst, offset, Float.toString(value).getBytes(UTF_8));
+    }
+
+    private static int stringLength(String value) {
+        if (value == null) {
+            return NULL.length;
+        }
+        int length = 2;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                length += 2;
+            } else if (c < 0x20) {
+                length += 6;
+            } else if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private static int writeString(byte[] dst, int offset, String value) {
+        if (value == null) {
+            return writeBytes(dst, offset, NULL);
+        }
+        dst[offset++] = '"';
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                dst[offset++] = '\\';
+                dst[offset++] = (byte) c;
+            } else if (c < 0x20) {
+                dst[offset++] = '\\';
+                dst[offset++] = 'u';
+                dst[offset++] = '0';
+                dst[offset++] = '0';
+                dst[offset++] = HEX_DIGITS[c >> 4];
+                dst[offset++] = HEX_DIGITS[c & 0xf];
+            } else if (c < 0x80) {
+                dst[offset++] = (byte) c;
+            } else if (c < 0x800) {
+                dst[offset++] = (byte) (0xc0 | (c >> 6));
+                dst[offset++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                dst[offset++] = (byte) (0xf0 | (codePoint >> 18));
+                dst[offset++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                dst[offset++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                dst[offset++] = (byte) (0x80 | (codePoint & 0x3f));
+            } else {
+                dst[offset++] = (byte) (0xe0 | (c >> 12));
+                dst[offset++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                dst[offset++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        dst[offset++] = '"';
+        return offset;
+    }
+}
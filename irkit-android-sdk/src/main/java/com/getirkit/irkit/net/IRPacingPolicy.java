@@ -0,0 +1,50 @@
+package com.getirkit.irkit.net;
+
+/**
+ * <p class="ja">
+ * IRRequestThrottlerがリクエストとリクエストの間に空ける時間を決めるポリシーです。
+ * IRRequestThrottlerは対象のIRKitデバイスごとに1個のインスタンスを持ちます。
+ * </p>
+ *
+ * <p class="en">
+ * Policy which decides the gap IRRequestThrottler leaves between requests.
+ * IRRequestThrottler holds one instance per target IRKit device.
+ * </p>
+ *
+ * @see IRRequestThrottler#setPacingPolicyFactory(Factory)
+ * @since 1.4.0
+ */
+public interface IRPacingPolicy {
+    /**
+     * IRPacingPolicyを作成するファクトリです。
+     * Factory which creates IRPacingPolicy.
+     */
+    interface Factory {
+        /**
+         * deviceIdを対象とするIRRequestThrottlerのためのポリシーを作成します。
+         * Create a policy for the IRRequestThrottler which targets deviceId.
+         *
+         * @param deviceId 対象とするIRKitデバイスのdeviceid。 Deviceid of target IRKit device.
+         * @return IRPacingPolicy
+         */
+        IRPacingPolicy create(String deviceId);
+    }
+
+    /**
+     * リクエストが1個終わった際に呼ばれ、次のリクエストまでの待ち時間を返します。
+     * Called when a request has finished, and returns the delay before the next request.
+     *
+     * @param responseTimeMs リクエスト開始から応答までの時間（ミリ秒）。 Milliseconds from request to response.
+     * @param isSuccess リクエストが成功した場合はtrue。 True if the request succeeded.
+     * @return 次のリクエストまでの待ち時間（ミリ秒）。 Delay in milliseconds before the next request.
+     */
+    long onRequestDone(long responseTimeMs, boolean isSuccess);
+
+    /**
+     * 現在の待ち時間を返します。
+     * Return the current delay between requests.
+     *
+     * @return 待ち時間（ミリ秒）。 Delay in milliseconds.
+     */
+    long getCurrentDelayMs();
+}
@@ -0,0 +1,130 @@
+package com.getirkit.irkit.net;
+
+import java.util.ArrayList;
+import java.util.UUID;
+
+/**
+ * <p class="ja">
+ * 実行中のSDKの処理を取り消すためのハンドルです。cancel()を呼ぶと、この処理のHTTPリクエストは
+ * 実行中であれば中断され、IRRequestThrottlerのキューで待機中であればキューから取り除かれます。
+ * 取り消された処理のコールバックは呼ばれません。
+ * </p>
+ *
+ * <p class="en">
+ * Handle to cancel an SDK operation in progress. cancel() aborts HTTP requests of the operation
+ * which are in flight, and removes those waiting in IRRequestThrottler queues.
+ * Callbacks of a cancelled operation are never called.
+ * </p>
+ *
+ * @since 1.4.0
+ */
+public class IRRequestHandle {
+    public static final String TAG = IRRequestHandle.class.getSimpleName();
+
+    /**
+     * リクエストをハンドルに結び付けるためのヘッダ。送信前に取り除かれます。
+     * Header which ties a request to a handle. Removed before sending.
+     */
+    static final String TAG_HEADER = "X-IRKit-Request-Tag";
+
+    private static final ThreadLocal<IRRequestHandle> current = new ThreadLocal<>();
+
+    private final String tag = UUID.randomUUID().toString();
+    private final ArrayList<Runnable> cancelActions = new ArrayList<>();
+    private boolean isCancelled;
+
+    /**
+     * 処理を取り消します。2回目以降の呼び出しは何もしません。
+     * Cancel the operation. Calling it more than once has no effect.
+     */
+    public void cancel() {
+        ArrayList<Runnable> actions;
+        synchronized (this) {
+            if (isCancelled) {
+                return;
+            }
+            isCancelled = true;
+            actions = new ArrayList<>(cancelActions);
+            cancelActions.clear();
+        }
+        IRRequestThrottler.cancelCalls(this);
+        IRHTTPClient.sharedInstance().cancelCalls(tag);
+        for (Runnable action : actions) {
+            action.run();
+        }
+    }
+
+    /**
+     * 取り消されたかどうかを返します。
+     * Return whether cancelled.
+     *
+     * @return 取り消された場合はtrue。 True if cancelled.
+     */
+    public synchronized boolean isCancelled() {
+        return isCancelled;
+    }
+
+    /**
+     * 取り消された際に実行する処理を追加します。既に取り消されている場合はすぐに実行します。
+     * Add an action run on cancellation. If already cancelled, it is run immediately.
+     *
+     * @param action 実行する処理。 Action to be run.
+     */
+    public void addCancelAction(Runnable action) {
+        synchronized (this) {
+            if (!isCancelled) {
+                cancelActions.add(action);
+                return;
+            }
+        }
+        action.run();
+    }
+
+    /**
+     * <p class="ja">
+     * このハンドルの下でrunnableを実行します。runnableがこのスレッドで発行したHTTPリクエストと
+     * IRRequestThrottlerへの呼び出しはこのハンドルに結び付けられます。
+     * </p>
+     *
+     * <p class="en">
+     * Run runnable under this handle. HTTP requests and IRRequestThrottler calls issued by
+     * runnable on this thread are tied to this handle.
+     * </p>
+     *
+     * @param runnable 実行する処理。 Work to be run.
+     */
+    public void run(Runnable runnable) {
+        run(this, runnable);
+    }
+
+    /**
+     * handleの下でrunnableを実行します。handleがnullの場合はそのまま実行します。
+     * Run runnable under handle. If handle is null, runnable is run as is.
+     *
+     * @param handle ハンドル。 Handle.
+     * @param runnable 実行する処理。 Work to be run.
+     */
+    public static void run(IRRequestHandle handle, Runnable runnable) {
+        IRRequestHandle previous = current.get();
+        current.set(handle);
+        try {
+            runnable.run();
+        } finally {
+            current.set(previous);
+        }
+    }
+
+    /**
+     * このスレッドで有効なハンドルを返します。
+     * Return the handle in effect on this thread.
+     *
+     * @return ハンドル。なければnull。 Handle, or null if none.
+     */
+    public static IRRequestHandle current() {
+        return current.get();
+    }
+
+    String getTag() {
+        return tag;
+    }
+}
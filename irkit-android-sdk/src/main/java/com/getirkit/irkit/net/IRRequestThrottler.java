@@ -1,11 +1,12 @@
 package com.getirkit.irkit.net;
 
-import android.os.Handler;
-
 import com.getirkit.irkit.IRPeripheral;
 
 import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
 
 import retrofit.Callback;
@@ -15,6 +16,7 @@ import retrofit.http.Body;
 import retrofit.http.FieldMap;
 import retrofit.http.QueryMap;
 import retrofit.mime.TypedInput;
+import retrofit.mime.TypedOutput;
 import retrofit.mime.TypedString;
 
 /**
@@ -25,7 +27,79 @@ public class IRRequestThrottler {
     public static final String TAG = IRRequestThrottler.class.getSimpleName();
 
     public static final int DELAY_BETWEEN_REQUESTS_MS = 1000;
-    private final ArrayDeque<APICall> pendingCalls = new ArrayDeque<>();
+
+    /**
+     * この時間以上待たされているAPI呼び出しは優先度にかかわらず先に処理されます。
+     * API calls which have waited this long are processed first regardless of priority.
+     */
+    public static final long STARVATION_THRESHOLD_MS = 5000;
+
+    /**
+     * <p class="ja">
+     * API呼び出しの優先度です。空いた時点で最も優先度の高いレーンの先頭が処理されるため、
+     * ボタン操作による送信がバックグラウンドの通信に待たされることはありません。
+     * STARVATION_THRESHOLD_MS以上待たされた呼び出しは優先度にかかわらず待ち時間の長い順に処理されます。
+     * </p>
+     *
+     * <p class="en">
+     * Priority of API calls. When the throttler becomes free, the head of the highest priority
+     * lane is processed, so sends triggered by button presses never wait behind housekeeping
+     * traffic. Calls which have waited STARVATION_THRESHOLD_MS or longer are processed in order
+     * of waiting time regardless of priority.
+     * </p>
+     *
+     * @since 1.4.0
+     */
+    public enum Priority {
+        /**
+         * ユーザ操作による送信。 Sends initiated by the user.
+         */
+        INTERACTIVE,
+
+        /**
+         * IRKitのセットアップ。 Setting up IRKit.
+         */
+        SETUP,
+
+        /**
+         * モデル情報の取得や受信のポーリングなどのバックグラウンド通信。
+         * Background traffic such as fetching model info and polling for received signals.
+         */
+        BACKGROUND,
+    }
+
+    /**
+     * 優先度ごとの待機中のAPI呼び出し。
+     * Pending API calls per priority.
+     */
+    private final EnumMap<Priority, ArrayDeque<APICall>> lanes = new EnumMap<>(Priority.class);
+
+    /**
+     * 実行中か、実行後の待ち時間中のAPI呼び出し。
+     * API call which is in progress or in the delay after it.
+     */
+    private APICall currentCall;
+
+    private static IRPacingPolicy.Factory pacingPolicyFactory = new IRPacingPolicy.Factory() {
+        @Override
+        public IRPacingPolicy create(String deviceId) {
+            return new IRFixedPacingPolicy();
+        }
+    };
+
+    private IRPacingPolicy pacingPolicy;
+
+    /**
+     * nullの場合はIRExecutorScheduler.getDefault()を使います。
+     * If null, IRExecutorScheduler.getDefault() is used.
+     */
+    private IRScheduler scheduler;
+
+    /**
+     * 実行中のAPI呼び出しを開始した時刻。
+     * Time when the API call in progress was started.
+     */
+    private long currentCallStartedAt;
 
     private IRDeviceAPIService deviceAPIService;
     private IRInternetAPIService internetAPIService;
@@ -39,23 +113,54 @@ public class IRRequestThrottler {
      */
     private static class APICall {
         private enum Method {
-            DEVICE_POST_KEYS,
-            DEVICE_GET_MESSAGES,
-            DEVICE_POST_MESSAGES,
-            DEVICE_POST_WIFI,
-            DEVICE_GET_HOME,
-            INTERNET_GET_MESSAGES,
-            INTERNET_POST_MESSAGES,
+            DEVICE_POST_KEYS(Priority.SETUP),
+            DEVICE_GET_MESSAGES(Priority.BACKGROUND),
+            DEVICE_POST_MESSAGES(Priority.INTERACTIVE),
+            DEVICE_POST_WIFI(Priority.SETUP),
+            DEVICE_GET_HOME(Priority.BACKGROUND),
+            INTERNET_GET_MESSAGES(Priority.INTERACTIVE),
+            INTERNET_POST_MESSAGES(Priority.INTERACTIVE),
+            INTERNET_POST_ENCODED_MESSAGES(Priority.INTERACTIVE);
+
+            private final Priority priority;
+
+            Method(Priority priority) {
+                this.priority = priority;
+            }
         }
 
         private Object requestParameters;
         private Callback callback;
         private Method method;
+        private long enqueuedAt;
+
+        /**
+         * Device HTTP APIの呼び出し先。キューに追加した時点で決まり、実行時には変わりません。
+         * Target of a Device HTTP API call. Fixed when enqueued and never changes before execution.
+         */
+        private IRDeviceAPIService deviceAPIService;
+
+        /**
+         * キューに追加した時点でスレッドに有効だったIRRequestHandle。
+         * IRRequestHandle in effect on the thread when enqueued.
+         */
+        private IRRequestHandle handle;
 
         public APICall(Method method, Object requestParameters, Callback callback) {
             this.method = method;
             this.requestParameters = requestParameters;
             this.callback = callback;
+            this.enqueuedAt = System.currentTimeMillis();
+            this.handle = IRRequestHandle.current();
+        }
+
+        private boolean isCancelled() {
+            return handle != null && handle.isCancelled();
+        }
+
+        public APICall(IRDeviceAPIService deviceAPIService, Method method, Object requestParameters, Callback callback) {
+            this(method, requestParameters, callback);
+            this.deviceAPIService = deviceAPIService;
         }
 
         @Override
@@ -91,7 +196,7 @@ public class IRRequestThrottler {
         synchronized (throttlers) {
             throttler = throttlers.get(deviceId);
             if (throttler == null) {
-                throttler = new IRRequestThrottler(deviceAPIService, internetAPIService);
+                throttler = new IRRequestThrottler(deviceId, deviceAPIService, internetAPIService);
                 throttlers.put(deviceId, throttler);
             }
         }
@@ -99,10 +204,93 @@ public class IRRequestThrottler {
     }
 
     public IRRequestThrottler(IRDeviceAPIService deviceAPIService, IRInternetAPIService internetAPIService) {
+        this(null, deviceAPIService, internetAPIService);
+    }
+
+    private IRRequestThrottler(String deviceId, IRDeviceAPIService deviceAPIService, IRInternetAPIService internetAPIService) {
         this.deviceAPIService = deviceAPIService;
         this.internetAPIService = internetAPIService;
-        this.deviceAPIRequester = new IRDeviceAPIRequester();
+        this.deviceAPIRequester = new IRDeviceAPIRequester(deviceAPIService);
         this.internetAPIRequester = new IRInternetAPIRequester();
+        for (Priority priority : Priority.values()) {
+            lanes.put(priority, new ArrayDeque<APICall>());
+        }
+        synchronized (IRRequestThrottler.class) {
+            this.pacingPolicy = pacingPolicyFactory.create(deviceId);
+        }
+    }
+
+    /**
+     * <p class="ja">
+     * 以降に作成されるIRRequestThrottlerが使うIRPacingPolicyのファクトリをセットします。
+     * 既定では1.4.0より前と同じく常に1秒空けるIRFixedPacingPolicyが使われます。
+     * 応答時間に合わせて間隔を縮めるには、IRAdaptivePacingPolicyを作成するファクトリをセットしてください。
+     * IRAdaptivePacingPolicyは既定で最短100ミリ秒まで間隔を縮めるため、ファームウェアが
+     * 短い間隔に耐えられることを確認した上で使ってください。
+     * </p>
+     *
+     * <p class="en">
+     * Set the factory of IRPacingPolicy for IRRequestThrottlers created afterwards.
+     * IRFixedPacingPolicy, which always leaves one second as before 1.4.0, is used by default.
+     * To shorten the gap according to response times, set a factory which creates
+     * IRAdaptivePacingPolicy. It shortens the gap down to 100 milliseconds by default,
+     * so use it only after making sure the firmware copes with short gaps.
+     * </p>
+     *
+     * @param factory IRPacingPolicy.Factory
+     * @since 1.4.0
+     */
+    public static synchronized void setPacingPolicyFactory(IRPacingPolicy.Factory factory) {
+        pacingPolicyFactory = factory;
+    }
+
+    /**
+     * このIRRequestThrottlerが使うIRPacingPolicyをセットします。
+     * Set the IRPacingPolicy used by this IRRequestThrottler.
+     *
+     * @param pacingPolicy IRPacingPolicy
+     * @since 1.4.0
+     */
+    public synchronized void setPacingPolicy(IRPacingPolicy pacingPolicy) {
+        this.pacingPolicy = pacingPolicy;
+    }
+
+    /**
+     * このIRRequestThrottlerがリクエスト間隔の待機に使うIRSchedulerをセットします。
+     * nullの場合はIRExecutorScheduler.getDefault()を使います。
+     * Set the IRScheduler used for waiting between requests.
+     * If null, IRExecutorScheduler.getDefault() is used.
+     *
+     * @param scheduler IRScheduler
+     * @since 1.4.0
+     */
+    public synchronized void setScheduler(IRScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * このIRRequestThrottlerが使っているIRPacingPolicyを返します。
+     * Return the IRPacingPolicy used by this IRRequestThrottler.
+     *
+     * @return IRPacingPolicy
+     * @since 1.4.0
+     */
+    public synchronized IRPacingPolicy getPacingPolicy() {
+        return pacingPolicy;
+    }
+
+    /**
+     * priorityのレーンで待機中のAPI呼び出しの数を返します。
+     * Return the number of API calls pending in the lane of priority.
+     *
+     * @param priority 優先度。 Priority.
+     * @return 待機中のAPI呼び出しの数。 Number of pending API calls.
+     * @since 1.4.0
+     */
+    public int getPendingCount(Priority priority) {
+        synchronized (lanes) {
+            return lanes.get(priority).size();
+        }
     }
 
     /**
@@ -118,6 +306,27 @@ public class IRRequestThrottler {
         return deviceAPIRequester;
     }
 
+    /**
+     * <p class="ja">
+     * targetにスロットル制御付きでアクセスするためのIRDeviceAPIServiceを返します。
+     * 呼び出しはこのIRRequestThrottlerのキューで順番を待ちますが、実行時には必ずtargetに送られます。
+     * IRHTTPClient#getDeviceAPIService(String)で取得したエンドポイント固定のインスタンスを渡してください。
+     * </p>
+     *
+     * <p class="en">
+     * Return an IRDeviceAPIService which accesses target with request throttling.
+     * Calls wait in the queue of this IRRequestThrottler, but are always sent to target
+     * when executed. Pass an endpoint-bound instance obtained by IRHTTPClient#getDeviceAPIService(String).
+     * </p>
+     *
+     * @param target 呼び出し先のIRDeviceAPIService。 IRDeviceAPIService to be called.
+     * @return IRDeviceAPIService instance.
+     * @since 1.4.0
+     */
+    public IRDeviceAPIService getDeviceAPIRequester(IRDeviceAPIService target) {
+        return new IRDeviceAPIRequester(target);
+    }
+
     /**
      * Internet HTTP APIにアクセスするためのクラスを返します。そのメソッドを呼ぶ際、適宜
      * スロットル制御が有効になります。
@@ -131,36 +340,118 @@ public class IRRequestThrottler {
         return internetAPIRequester;
     }
 
-    private <T> Callback<T> createCallback(final Callback<T> callback) {
+    /**
+     * <p class="ja">
+     * API呼び出しが終わったら次の呼び出しに進むコールバックを作成します。IRPacingPolicyは
+     * IRKitデバイスの負荷を表すDevice HTTP APIの応答時間と結果だけを受け取ります。
+     * Internet HTTP APIの呼び出しは現在の待ち時間を変えません。
+     * </p>
+     *
+     * <p class="en">
+     * Create a callback which proceeds to the next call when the API call has been done.
+     * IRPacingPolicy is fed only with response times and results of Device HTTP API, which
+     * reflect the load of the IRKit device. Internet HTTP API calls keep the current delay.
+     * </p>
+     *
+     * @param isDeviceAPI Device HTTP APIの呼び出しの場合はtrue。 True for a Device HTTP API call.
+     */
+    private <T> Callback<T> createCallback(final Callback<T> callback, final boolean isDeviceAPI) {
+        final IRRequestHandle handle = IRRequestHandle.current();
         return new Callback<T>() {
             @Override
             public void success(T t, Response response) {
-                onRequestDone();
+                if (isDeviceAPI) {
+                    onRequestDone(true);
+                } else {
+                    dispatchNext(getPacingPolicy().getCurrentDelayMs());
+                }
                 callback.success(t, response);
             }
 
             @Override
             public void failure(RetrofitError error) {
-                onRequestDone();
+                if (!isDeviceAPI || (handle != null && handle.isCancelled())) {
+                    // Aborted by IRRequestHandle or sent through the server;
+                    // this says nothing about the device
+                    dispatchNext(getPacingPolicy().getCurrentDelayMs());
+                } else {
+                    onRequestDone(false);
+                }
                 callback.failure(error);
             }
         };
     }
 
+    /**
+     * <p class="ja">
+     * handleに結び付いた待機中のAPI呼び出しをすべてのIRRequestThrottlerのキューから取り除きます。
+     * 取り除かれた呼び出しのコールバックは呼ばれません。
+     * </p>
+     *
+     * <p class="en">
+     * Remove pending API calls tied to handle from the queues of all IRRequestThrottlers.
+     * Callbacks of removed calls are never called.
+     * </p>
+     *
+     * @param handle IRRequestHandle
+     */
+    static void cancelCalls(IRRequestHandle handle) {
+        ArrayList<IRRequestThrottler> allThrottlers;
+        synchronized (throttlers) {
+            allThrottlers = new ArrayList<>(throttlers.values());
+        }
+        for (IRRequestThrottler throttler : allThrottlers) {
+            synchronized (throttler.lanes) {
+                for (ArrayDeque<APICall> lane : throttler.lanes.values()) {
+                    Iterator<APICall> iter = lane.iterator();
+                    while (iter.hasNext()) {
+                        if (iter.next().handle == handle) {
+                            iter.remove();
+                        }
+                    }
+                }
+            }
+        }
+    }
+
     /**
      * API呼び出しが1つ終わるたびに呼び出されるメソッドです。
-     * Called when an API call has been done.
+     * 次のAPI呼び出しまでの待ち時間はIRPacingPolicyが決めます。
+     * Called when an API call has been done. The delay before the next
+     * API call is decided by IRPacingPolicy.
+     *
+     * @param isSuccess API呼び出しが成功した場合はtrue。 True if the API call succeeded.
+     */
+    private void onRequestDone(boolean isSuccess) {
+        long delayMs;
+        synchronized (this) {
+            delayMs = pacingPolicy.onRequestDone(System.currentTimeMillis() - currentCallStartedAt, isSuccess);
+        }
+        dispatchNext(delayMs);
+    }
+
+    /**
+     * delayMsミリ秒後に次のAPI呼び出しを実行します。
+     * Execute the next API call after delayMs milliseconds.
      */
-    private void onRequestDone() {
-        new Handler().postDelayed(new Runnable() {
+    private void dispatchNext(long delayMs) {
+        IRScheduler scheduler;
+        synchronized (this) {
+            scheduler = this.scheduler != null ? this.scheduler : IRExecutorScheduler.getDefault();
+        }
+        scheduler.schedule(new Runnable() {
             @Override
             public void run() {
-                synchronized (pendingCalls) {
-                    pendingCalls.poll();
+                APICall nextCall;
+                synchronized (lanes) {
+                    currentCall = pollNextCall();
+                    nextCall = currentCall;
+                }
+                if (nextCall != null) {
+                    dispatch(nextCall);
                 }
-                consumeNextRequest();
             }
-        }, DELAY_BETWEEN_REQUESTS_MS);
+        }, delayMs);
     }
 
     /**
@@ -170,56 +461,109 @@ public class IRRequestThrottler {
      * @param call キューに追加するAPI呼び出し。 API call which will be added to the queue.
      */
     private void request(APICall call) {
-        boolean consumeRequest = false;
-        synchronized (pendingCalls) {
-            pendingCalls.add(call);
-            if (pendingCalls.size() == 1) {
-                consumeRequest = true;
+        APICall nextCall = null;
+        synchronized (lanes) {
+            lanes.get(call.method.priority).add(call);
+            if (currentCall == null) {
+                currentCall = pollNextCall();
+                nextCall = currentCall;
             }
         }
-        if (consumeRequest) {
-            consumeNextRequest();
+        if (nextCall != null) {
+            dispatch(nextCall);
         }
     }
 
     /**
-     * 待機中の次のAPICallを処理します。
+     * <p class="ja">
+     * 次に処理するAPICallをレーンから取り出します。STARVATION_THRESHOLD_MS以上待たされている
+     * 呼び出しがあれば最も長く待っているものを、なければ最も優先度の高いレーンの先頭を返します。
+     * lanesをロックした状態で呼んでください。
+     * </p>
+     *
+     * <p class="en">
+     * Take the next APICall to be processed from the lanes. If any call has waited
+     * STARVATION_THRESHOLD_MS or longer, the one waiting longest is returned. Otherwise
+     * the head of the highest priority lane is returned. Must be called with lanes locked.
+     * </p>
+     *
+     * @return 次のAPICall。なければnull。 Next APICall, or null if none.
      */
-    private void consumeNextRequest() {
-        APICall call = null;
-        synchronized (pendingCalls) {
-            if (!pendingCalls.isEmpty()) {
-                call = pendingCalls.peek();
+    private APICall pollNextCall() {
+        long now = System.currentTimeMillis();
+        ArrayDeque<APICall> starvingLane = null;
+        ArrayDeque<APICall> firstLane = null;
+        for (Priority priority : Priority.values()) {
+            ArrayDeque<APICall> lane = lanes.get(priority);
+            APICall head = lane.peek();
+            if (head == null) {
+                continue;
+            }
+            if (firstLane == null) {
+                firstLane = lane;
+            }
+            if (now - head.enqueuedAt >= STARVATION_THRESHOLD_MS &&
+                    (starvingLane == null || head.enqueuedAt < starvingLane.peek().enqueuedAt)) {
+                starvingLane = lane;
             }
         }
-        if (call != null) {
-            switch (call.method) {
-                case DEVICE_POST_KEYS:
-                    TypedInput emptyBody = new TypedString("");
-                    deviceAPIService.postKeys(emptyBody, call.callback);
-                    break;
-                case DEVICE_GET_MESSAGES:
-                    deviceAPIService.getMessages(call.callback);
-                    break;
-                case DEVICE_POST_MESSAGES:
-                    deviceAPIService.postMessages((IRDeviceAPIService.PostMessagesRequest) call.requestParameters,
-                            call.callback);
-                    break;
-                case DEVICE_POST_WIFI:
-                    deviceAPIService.postWifi((TypedInput) call.requestParameters, call.callback);
-                    break;
-                case DEVICE_GET_HOME:
-                    deviceAPIService.getHome(call.callback);
-                    break;
-                case INTERNET_GET_MESSAGES:
-                    internetAPIService.getMessages((Map<String, String>) call.requestParameters, call.callback);
-                    break;
-                case INTERNET_POST_MESSAGES:
-                    internetAPIService.postMessages((Map<String, String>) call.requestParameters, call.callback);
-                    break;
-                default:
-                    throw new IllegalArgumentException("Unknown method: " + call.method);
+        if (starvingLane != null) {
+            return starvingLane.poll();
+        }
+        return firstLane != null ? firstLane.poll() : null;
+    }
+
+    /**
+     * APICallを実行します。
+     * Execute an APICall.
+     */
+    private void dispatch(final APICall call) {
+        if (call.isCancelled()) {
+            // Cancelled after cancelCalls() had scanned the lanes
+            dispatchNext(0);
+            return;
+        }
+        synchronized (this) {
+            currentCallStartedAt = System.currentTimeMillis();
+        }
+        IRRequestHandle.run(call.handle, new Runnable() {
+            @Override
+            public void run() {
+                execute(call);
             }
+        });
+    }
+
+    private void execute(APICall call) {
+        switch (call.method) {
+            case DEVICE_POST_KEYS:
+                TypedInput emptyBody = new TypedString("");
+                call.deviceAPIService.postKeys(emptyBody, call.callback);
+                break;
+            case DEVICE_GET_MESSAGES:
+                call.deviceAPIService.getMessages(call.callback);
+                break;
+            case DEVICE_POST_MESSAGES:
+                call.deviceAPIService.postMessages((IRDeviceAPIService.PostMessagesRequest) call.requestParameters,
+                        call.callback);
+                break;
+            case DEVICE_POST_WIFI:
+                call.deviceAPIService.postWifi((TypedInput) call.requestParameters, call.callback);
+                break;
+            case DEVICE_GET_HOME:
+                call.deviceAPIService.getHome(call.callback);
+                break;
+            case INTERNET_GET_MESSAGES:
+                internetAPIService.getMessages((Map<String, String>) call.requestParameters, call.callback);
+                break;
+            case INTERNET_POST_MESSAGES:
+                internetAPIService.postMessages((Map<String, String>) call.requestParameters, call.callback);
+                break;
+            case INTERNET_POST_ENCODED_MESSAGES:
+                internetAPIService.postEncodedMessages((TypedOutput) call.requestParameters, call.callback);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown method: " + call.method);
         }
     }
 
@@ -227,29 +571,35 @@ public class IRRequestThrottler {
      * IRDeviceAPIServiceにスロットル制御をかけるためのクラスです。
      */
     private class IRDeviceAPIRequester implements IRDeviceAPIService {
+        private final IRDeviceAPIService target;
+
+        private IRDeviceAPIRequester(IRDeviceAPIService target) {
+            this.target = target;
+        }
+
         @Override
         public void postKeys(@Body TypedInput emptyBody, Callback<PostKeysResponse> callback) {
-            request(new APICall(APICall.Method.DEVICE_POST_KEYS, emptyBody, createCallback(callback)));
+            request(new APICall(target, APICall.Method.DEVICE_POST_KEYS, emptyBody, createCallback(callback, true)));
         }
 
         @Override
         public void getMessages(Callback<GetMessagesResponse> callback) {
-            request(new APICall(APICall.Method.DEVICE_GET_MESSAGES, null, createCallback(callback)));
+            request(new APICall(target, APICall.Method.DEVICE_GET_MESSAGES, null, createCallback(callback, true)));
         }
 
         @Override
         public void postMessages(@Body PostMessagesRequest request, Callback<PostMessagesResponse> callback) {
-            request(new APICall(APICall.Method.DEVICE_POST_MESSAGES, request, createCallback(callback)));
+            request(new APICall(target, APICall.Method.DEVICE_POST_MESSAGES, request, createCallback(callback, true)));
         }
 
         @Override
         public void postWifi(@Body TypedInput body, Callback<PostWifiResponse> callback) {
-            request(new APICall(APICall.Method.DEVICE_POST_WIFI, body, createCallback(callback)));
+            request(new APICall(target, APICall.Method.DEVICE_POST_WIFI, body, createCallback(callback, true)));
         }
 
         @Override
         public void getHome(Callback<GetHomeResponse> callback) {
-            request(new APICall(APICall.Method.DEVICE_GET_HOME, null, createCallback(callback)));
+            request(new APICall(target, APICall.Method.DEVICE_GET_HOME, null, createCallback(callback, true)));
         }
     }
 
@@ -265,7 +615,12 @@ public class IRRequestThrottler {
 
         @Override
         public void postMessages(@FieldMap Map<String, String> params, Callback<PostMessagesResponse> callback) {
-            request(new APICall(APICall.Method.INTERNET_POST_MESSAGES, params, createCallback(callback)));
+            request(new APICall(APICall.Method.INTERNET_POST_MESSAGES, params, createCallback(callback, false)));
+        }
+
+        @Override
+        public void postEncodedMessages(@Body TypedOutput body, Callback<PostMessagesResponse> callback) {
+            request(new APICall(APICall.Method.INTERNET_POST_ENCODED_MESSAGES, body, createCallback(callback, false)));
         }
 
         @Override
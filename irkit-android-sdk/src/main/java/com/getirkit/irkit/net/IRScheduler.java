@@ -0,0 +1,41 @@
+package com.getirkit.irkit.net;
+
+/**
+ * <p class="ja">
+ * 遅延実行のためのスケジューラです。IRRequestThrottlerのリクエスト間隔とIRPeripheralの
+ * リトライに使われます。Looperを必要としないため、ワーカースレッドやServiceからも使えます。
+ * テストなどで差し替える場合はIRExecutorScheduler#setDefault(IRScheduler)を使ってください。
+ * </p>
+ *
+ * <p class="en">
+ * Scheduler for delayed execution. Used for the gap between requests in IRRequestThrottler
+ * and for retries in IRPeripheral. It does not require a Looper, so it can be driven from
+ * worker threads and Services. To replace it, e.g. in tests, use
+ * IRExecutorScheduler#setDefault(IRScheduler).
+ * </p>
+ *
+ * @since 1.4.0
+ */
+public interface IRScheduler {
+    /**
+     * スケジュールされたタスクです。
+     * A scheduled task.
+     */
+    interface Task {
+        /**
+         * まだ実行されていなければタスクを取り消します。
+         * Cancel the task if it has not been run yet.
+         */
+        void cancel();
+    }
+
+    /**
+     * delayMsミリ秒後にrunnableを実行します。runnableはスケジューラのスレッドで実行されます。
+     * Run runnable after delayMs milliseconds. runnable is run on a thread of the scheduler.
+     *
+     * @param runnable 実行する処理。 Task to be run.
+     * @param delayMs 遅延時間（ミリ秒）。 Delay in milliseconds.
+     * @return 取り消しに使うTask。 Task for cancellation.
+     */
+    Task schedule(Runnable runnable, long delayMs);
+}
@@ -0,0 +1,368 @@
+package com.getirkit.irkit.net;
+
+import com.getirkit.irkit.IRSignal;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import retrofit.mime.TypedOutput;
+
+/**
+ * <p class="ja">
+ * 赤外線信号のリクエストボディをIRSignalのidごとにエンコード済みの状態で保持するLRUキャッシュです。
+ * 同じ信号を繰り返し送信する際に、dataの展開とJSONおよびURLエンコードを省略します。
+ * キャッシュの合計バイト数が上限を超えると、最も長く使われていない信号から破棄されます。
+ * IRSignalのdata、format、freqが変更されるとその信号のエントリは無効になります。
+ * </p>
+ *
+ * <p class="en">
+ * LRU cache which holds pre-encoded request bodies of IR signals keyed by IRSignal id.
+ * Repeated sends of the same signal skip decompressing data as well as JSON and URL encoding.
+ * When the total size of the cache exceeds its budget, the least recently used signals
+ * are evicted. Changing data, format or freq of an IRSignal invalidates its entry.
+ * </p>
+ *
+ * @since 1.4.0
+ */
+public class IRSignalBodyCache {
+    public static final String TAG = IRSignalBodyCache.class.getSimpleName();
+
+    /**
+     * キャッシュのバイト数の既定の上限。
+     * Default budget of the cache in bytes.
+     */
+    public static final int DEFAULT_MAX_BYTES = 256 * 1024;
+
+    private static final String FORM_MIME_TYPE = "application/x-www-form-urlencoded; charset=UTF-8";
+    private static final String JSON_MIME_TYPE = "application/json; charset=UTF-8";
+
+    private static IRSignalBodyCache instance;
+
+    /**
+     * 1個の信号のエンコード済みボディです。
+     * Encoded bodies of a signal.
+     */
+    private static class Entry {
+        private final String format;
+        private final float freq;
+        private final String deviceId;
+
+        /**
+         * Device HTTP APIのPOST /messagesのボディ。
+         * Body of POST /messages of Device HTTP API.
+         */
+        private byte[] deviceBody;
+
+        /**
+         * Internet HTTP APIのPOST /1/messagesのボディのうちclientkey以外の部分。
+         * Body of POST /1/messages of Internet HTTP API except clientkey.
+         */
+        private byte[] internetFields;
+
+        private Entry(IRSignal signal) {
+            this.format = signal.getFormat();
+            this.freq = signal.getFrequency();
+            this.deviceId = signal.getDeviceId();
+        }
+
+        private boolean matches(IRSignal signal) {
+            return freq == signal.getFrequency() &&
+                    equals(format, signal.getFormat()) &&
+                    equals(deviceId, signal.getDeviceId());
+        }
+
+        private int byteCount() {
+            return (deviceBody != null ? deviceBody.length : 0) +
+                    (internetFields != null ? internetFields.length : 0);
+        }
+
+        private static boolean equals(String a, String b) {
+            return a == null ? b == null : a.equals(b);
+        }
+    }
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private int maxBytes = DEFAULT_MAX_BYTES;
+    private int totalBytes;
+    private long hitCount;
+    private long missCount;
+
+    /**
+     * invalidate()やclear()のたびに増える番号。エンコード中に無効化されたボディを保存しないために使います。
+     * Incremented by invalidate() and clear(). Used not to store a body invalidated while it was encoded.
+     */
+    private long generation;
+
+    public static synchronized IRSignalBodyCache sharedInstance() {
+        if (instance == null) {
+            instance = new IRSignalBodyCache();
+        }
+        return instance;
+    }
+
+    /**
+     * キャッシュのバイト数の上限をセットします。0をセットするとキャッシュは無効になります。
+     * Set the budget of the cache in bytes. Setting 0 disables the cache.
+     *
+     * @param maxBytes バイト数の上限。 Budget in bytes.
+     */
+    public synchronized void setMaxBytes(int maxBytes) {
+        this.maxBytes = maxBytes;
+        trimToSize();
+    }
+
+    /**
+     * キャッシュのバイト数の上限を返します。
+     * Return the budget of the cache in bytes.
+     *
+     * @return バイト数の上限。 Budget in bytes.
+     */
+    public synchronized int getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * キャッシュされているボディの合計バイト数を返します。
+     * Return the total size of cached bodies in bytes.
+     *
+     * @return バイト数。 Size in bytes.
+     */
+    public synchronized int getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * キャッシュがヒットした回数を返します。
+     * Return the number of cache hits.
+     *
+     * @return ヒット数。 Number of hits.
+     */
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * キャッシュがヒットしなかった回数を返します。
+     * Return the number of cache misses.
+     *
+     * @return ミス数。 Number of misses.
+     */
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * idの信号のエントリを破棄します。
+     * Discard the entry for the signal of id.
+     *
+     * @param id IRSignalのid。 Id of IRSignal.
+     */
+    public synchronized void invalidate(String id) {
+        if (id == null) {
+            return;
+        }
+        Entry entry = entries.remove(id);
+        if (entry != null) {
+            totalBytes -= entry.byteCount();
+        }
+        generation++;
+    }
+
+    /**
+     * すべてのエントリを破棄します。
+     * Discard all entries.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        totalBytes = 0;
+        generation++;
+    }
+
+    /**
+     * Device HTTP APIのPOST /messagesに使うリクエストを返します。
+     * Return a request for POST /messages of Device HTTP API.
+     *
+     * @param signal 送信する信号。 Signal to be sent.
+     * @return リクエストパラメータ。 Request parameters.
+     */
+    public IRDeviceAPIService.PostMessagesRequest getDeviceRequest(IRSignal signal) {
+        byte[] body;
+        long startGeneration;
+        synchronized (this) {
+            startGeneration = generation;
+            Entry entry = getEntry(signal);
+            body = entry != null ? entry.deviceBody : null;
+            if (body != null) {
+                hitCount++;
+            } else {
+                missCount++;
+            }
+        }
+        if (body == null) {
+            body = IRJsonWriter.toMessageBytes(signal.getFormat(), signal.getFrequency(), signal.getData());
+            synchronized (this) {
+                Entry entry = generation == startGeneration ? getOrCreateEntry(signal) : null;
+                if (entry != null && entry.deviceBody == null) {
+                    entry.deviceBody = body;
+                    totalBytes += body.length;
+                    trimToSize();
+                }
+            }
+        }
+        EncodedPostMessagesRequest request = new EncodedPostMessagesRequest(body);
+        request.format = signal.getFormat();
+        request.freq = signal.getFrequency();
+        return request;
+    }
+
+    /**
+     * Internet HTTP APIのPOST /1/messagesに使うボディを返します。
+     * Return a body for POST /1/messages of Internet HTTP API.
+     *
+     * @param signal 送信する信号。 Signal to be sent.
+     * @param clientkey clientkey
+     * @return リクエストボディ。 Request body.
+     */
+    public TypedOutput getInternetBody(IRSignal signal, String clientkey) {
+        byte[] fields;
+        long startGeneration;
+        synchronized (this) {
+            startGeneration = generation;
+            Entry entry = getEntry(signal);
+            fields = entry != null ? entry.internetFields : null;
+            if (fields != null) {
+                hitCount++;
+            } else {
+                missCount++;
+            }
+        }
+        if (fields == null) {
+            fields = encodeInternetFields(signal);
+            synchronized (this) {
+                Entry entry = generation == startGeneration ? getOrCreateEntry(signal) : null;
+                if (entry != null && entry.internetFields == null) {
+                    entry.internetFields = fields;
+                    totalBytes += fields.length;
+                    trimToSize();
+                }
+            }
+        }
+        byte[] prefix = null;
+        if (clientkey != null) {
+            prefix = ("clientkey=" + urlEncode(clientkey) + "&").getBytes(IRJsonWriter.UTF_8);
+        }
+        return new BytesTypedOutput(FORM_MIME_TYPE, prefix, fields);
+    }
+
+    private Entry getEntry(IRSignal signal) {
+        String id = signal.getId();
+        if (id == null) {
+            return null;
+        }
+        Entry entry = entries.get(id);
+        if (entry != null && !entry.matches(signal)) {
+            entries.remove(id);
+            totalBytes -= entry.byteCount();
+            return null;
+        }
+        return entry;
+    }
+
+    private Entry getOrCreateEntry(IRSignal signal) {
+        if (signal.getId() == null || maxBytes <= 0) {
+            return null;
+        }
+        Entry entry = getEntry(signal);
+        if (entry == null) {
+            entry = new Entry(signal);
+            entries.put(signal.getId(), entry);
+        }
+        return entry;
+    }
+
+    private void trimToSize() {
+        Iterator<Map.Entry<String, Entry>> iter = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && iter.hasNext()) {
+            totalBytes -= iter.next().getValue().byteCount();
+            iter.remove();
+        }
+    }
+
+    private static byte[] encodeInternetFields(IRSignal signal) {
+        StringBuilder builder = new StringBuilder();
+        if (signal.getDeviceId() != null) {
+            builder.append("deviceid=").append(urlEncode(signal.getDeviceId())).append('&');
+        }
+        builder.append("message=").append(urlEncode(signal.toJson()));
+        return builder.toString().getBytes(IRJsonWriter.UTF_8);
+    }
+
+    private static String urlEncode(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            // UTF-8 is always supported
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * エンコード済みのボディを持つPostMessagesRequestです。IRJsonConverterはこのボディをそのまま送信します。
+     * PostMessagesRequest which carries a pre-encoded body. IRJsonConverter sends the body as is.
+     */
+    static class EncodedPostMessagesRequest extends IRDeviceAPIService.PostMessagesRequest {
+        final transient byte[] body;
+
+        EncodedPostMessagesRequest(byte[] body) {
+            this.body = body;
+        }
+
+        TypedOutput toBody() {
+            return new BytesTypedOutput(JSON_MIME_TYPE, null, body);
+        }
+    }
+
+    /**
+     * 長さが確定しているバイト列のリクエストボディです。
+     * Request body of byte arrays of a known length.
+     */
+    static class BytesTypedOutput implements TypedOutput {
+        private final String mimeType;
+        private final byte[] prefix;
+        private final byte[] bytes;
+
+        BytesTypedOutput(String mimeType, byte[] prefix, byte[] bytes) {
+            this.mimeType = mimeType;
+            this.prefix = prefix;
+            this.bytes = bytes;
+        }
+
+        @Override
+        public String fileName() {
+            return null;
+        }
+
+        @Override
+        public String mimeType() {
+            return mimeType;
+        }
+
+        @Override
+        public long length() {
+            return (prefix != null ? prefix.length : 0) + bytes.length;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            if (prefix != null) {
+                out.write(prefix);
+            }
+            out.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,459 @@
+package com.getirkit.irkit.net;
+
+import android.util.Log;
+
+import com.getirkit.irkit.IRKit;
+import com.getirkit.irkit.IRPeripheral;
+import com.getirkit.irkit.IRPeripherals;
+import com.getirkit.irkit.IRSignal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import retrofit.Callback;
+import retrofit.RetrofitError;
+import retrofit.client.Response;
+
+/**
+ * <p class="ja">
+ * 受信した赤外線信号を購読者に次々と届けるクラスです。購読者がいる間だけ、IRHTTPClientごとに
+ * 1本のInternet HTTP APIのロングポーリング（GET /1/messages）を維持し、ローカルネットワーク内に
+ * 見つかっているIRKitにはDevice HTTP APIのGET /messagesも定期的に発行します。
+ * 両方の経路から届いた同じ信号は1回だけ届けられます。
+ * 購読者が全員いなくなると受信を停止します。
+ * </p>
+ *
+ * <p class="en">
+ * Delivers received IR signals to subscribers as a stream. While there is at least one
+ * subscriber, a single long-poll of Internet HTTP API (GET /1/messages) is kept per IRHTTPClient,
+ * and GET /messages of Device HTTP API is also issued periodically to IRKits found on the
+ * local network. A signal which arrives from both routes is delivered only once.
+ * Receiving stops when the last subscriber has gone.
+ * </p>
+ *
+ * @see IRHTTPClient#getSignalReceiver()
+ * @since 1.4.0
+ */
+public class IRSignalReceiver {
+    public static final String TAG = IRSignalReceiver.class.getSimpleName();
+
+    /**
+     * Device HTTP APIのGET /messagesを発行する間隔（ミリ秒）。
+     * Interval in milliseconds of GET /messages of Device HTTP API.
+     */
+    public static final long LOCAL_POLL_INTERVAL_MS = 1000;
+
+    /**
+     * もう一方の経路から届いた同じ信号を重複とみなす時間（ミリ秒）。
+     * Milliseconds within which the same signal from the other route is regarded as a duplicate.
+     */
+    private static final long DUPLICATE_WINDOW_MS = 3000;
+
+    private static final long MIN_RETRY_DELAY_MS = 1000;
+    private static final long MAX_RETRY_DELAY_MS = 30000;
+
+    /**
+     * 受信した信号を受け取るインタフェースです。
+     * Interface to receive signals.
+     */
+    public interface Subscriber {
+        /**
+         * 信号を受信した際に呼ばれます。signalは購読者ごとに別のインスタンスです。
+         * Called when a signal has been received. signal is a separate instance for each subscriber.
+         *
+         * @param signal 受信した信号。 Received signal.
+         */
+        void onSignalReceived(IRSignal signal);
+
+        /**
+         * Internet HTTP APIのロングポーリングが失敗した際に呼ばれます。受信は自動的に再試行されます。
+         * Called when the long-poll of Internet HTTP API has failed. Receiving is retried automatically.
+         *
+         * @param error エラー。 Error.
+         */
+        void onError(RetrofitError error);
+    }
+
+    /**
+     * subscribe()が返す購読です。
+     * Subscription returned by subscribe().
+     */
+    public interface Subscription {
+        /**
+         * 購読をやめます。以後、購読者は呼ばれません。
+         * Stop the subscription. The subscriber is never called afterwards.
+         */
+        void cancel();
+    }
+
+    /**
+     * 受信した信号の内容。
+     * Content of a received signal.
+     */
+    private static class Capture {
+        private final String deviceId;
+        private final String format;
+        private final float freq;
+        private final int[] data;
+        private final boolean isLocal;
+        private final long receivedAt;
+
+        private Capture(String deviceId, IRDeviceAPIService.GetMessagesResponse message, boolean isLocal) {
+            this.deviceId = deviceId;
+            this.format = message.format;
+            this.freq = (float) message.freq;
+            this.data = message.data;
+            this.isLocal = isLocal;
+            this.receivedAt = System.currentTimeMillis();
+        }
+
+        private boolean isDuplicateOf(Capture other) {
+            return other.isLocal != isLocal &&
+                    receivedAt - other.receivedAt < DUPLICATE_WINDOW_MS &&
+                    freq == other.freq &&
+                    (deviceId == null ? other.deviceId == null : deviceId.equals(other.deviceId)) &&
+                    (format == null ? other.format == null : format.equals(other.format)) &&
+                    Arrays.equals(data, other.data);
+        }
+
+        private IRSignal toSignal() {
+            IRSignal signal = new IRSignal();
+            signal.setDeviceId(deviceId);
+            signal.setFrequency(freq);
+            signal.setFormat(format);
+            signal.setData(data);
+            return signal;
+        }
+    }
+
+    private final IRHTTPClient httpClient;
+    private final CopyOnWriteArrayList<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+    private boolean isLocalReceiveEnabled = true;
+
+    /**
+     * start()とstop()のたびに増える番号。停止後に届いた応答を捨てるために使います。
+     * Incremented by start() and stop(). Used to discard responses which arrive after stopping.
+     */
+    private int generation;
+    private boolean isRunning;
+    private long retryDelayMs = MIN_RETRY_DELAY_MS;
+    private IRScheduler.Task localPollTask;
+    private Capture lastCapture;
+
+    /**
+     * <p class="ja">
+     * 信号を削除して受信を始めた場合、最初のGET /messagesはIRKitに残っていた古い信号を返すため捨てます。
+     * 現在の回で既に1回読んだIRKitのdeviceidです。
+     * </p>
+     *
+     * <p class="en">
+     * When receiving starts with clearing, the first GET /messages returns a stale signal left in
+     * the IRKit, so it is discarded. Deviceids of IRKits which have already been read once in the
+     * current generation.
+     * </p>
+     */
+    private final HashSet<String> drainedDeviceIds = new HashSet<>();
+    private boolean isClearing;
+
+    /**
+     * 現在の回のリクエストを結び付けるハンドル。stop()で取り消され、実行中のリクエストを中断します。
+     * Handle to which requests of the current generation are tied. Cancelled by stop() to abort them.
+     */
+    private IRRequestHandle runningHandle;
+
+    IRSignalReceiver(IRHTTPClient httpClient) {
+        this.httpClient = httpClient;
+    }
+
+    /**
+     * subscriberの購読を始めます。受信が停止していれば開始します。
+     * Start a subscription of subscriber. Receiving is started if it has been stopped.
+     *
+     * @param subscriber 購読者。 Subscriber.
+     * @param clear trueの場合、受信を開始する際にIRKitサーバに保存されている信号を削除し、
+     *              各IRKitから最初にDevice HTTP APIで読んだ信号も捨てます。受信中であれば無視されます。
+     *              If true, delete the signal saved in IRKit server when receiving starts, and also
+     *              discard the first signal read from each IRKit over Device HTTP API.
+     *              Ignored if already receiving.
+     * @return 購読。 Subscription.
+     */
+    public Subscription subscribe(final Subscriber subscriber, boolean clear) {
+        subscribers.add(subscriber);
+        start(clear);
+        return new Subscription() {
+            @Override
+            public void cancel() {
+                unsubscribe(subscriber);
+            }
+        };
+    }
+
+    /**
+     * subscriberの購読をやめます。購読者がいなくなると受信を停止します。
+     * Stop the subscription of subscriber. Receiving stops when no subscriber is left.
+     *
+     * @param subscriber 購読者。 Subscriber.
+     */
+    public void unsubscribe(Subscriber subscriber) {
+        subscribers.remove(subscriber);
+        stop();
+    }
+
+    /**
+     * すべての購読をやめて受信を停止します。
+     * Stop all subscriptions and receiving.
+     */
+    public void unsubscribeAll() {
+        subscribers.clear();
+        stop();
+    }
+
+    /**
+     * ローカルネットワーク内のIRKitからDevice HTTP APIで受信するかどうかをセットします。既定ではtrueです。
+     * Set whether to receive from IRKits on the local network over Device HTTP API. Default is true.
+     *
+     * @param enabled 受信する場合はtrue。 True to receive.
+     */
+    public synchronized void setLocalReceiveEnabled(boolean enabled) {
+        isLocalReceiveEnabled = enabled;
+    }
+
+    /**
+     * 受信中かどうかを返します。
+     * Return whether receiving.
+     *
+     * @return 受信中の場合はtrue。 True if receiving.
+     */
+    public synchronized boolean isRunning() {
+        return isRunning;
+    }
+
+    private void start(boolean clear) {
+        int startGeneration;
+        synchronized (this) {
+            if (isRunning || subscribers.isEmpty()) {
+                return;
+            }
+            isRunning = true;
+            startGeneration = ++generation;
+            retryDelayMs = MIN_RETRY_DELAY_MS;
+            lastCapture = null;
+            isClearing = clear;
+            drainedDeviceIds.clear();
+            runningHandle = new IRRequestHandle();
+        }
+        requestInternet(startGeneration, clear);
+        scheduleLocalPoll(startGeneration, 0);
+    }
+
+    private void stop() {
+        IRScheduler.Task task;
+        IRRequestHandle handle;
+        synchronized (this) {
+            // Someone may have subscribed again since the last subscriber left
+            if (!isRunning || !subscribers.isEmpty()) {
+                return;
+            }
+            isRunning = false;
+            generation++;
+            task = localPollTask;
+            localPollTask = null;
+            handle = runningHandle;
+            runningHandle = null;
+        }
+        if (task != null) {
+            task.cancel();
+        }
+        if (handle != null) {
+            // Abort the long-poll instead of leaving it open until the server times out
+            handle.cancel();
+        }
+    }
+
+    private synchronized boolean isCurrent(int requestGeneration) {
+        return isRunning && generation == requestGeneration;
+    }
+
+    /**
+     * deviceIdのIRKitから読んだ信号が受信開始前の古いものであればtrueを返します。
+     * Return true if the signal read from the IRKit of deviceId is a stale one from before receiving started.
+     */
+    private synchronized boolean isStaleLocalRead(String deviceId) {
+        // The first successful read drains the buffer of the IRKit
+        return drainedDeviceIds.add(deviceId) && isClearing;
+    }
+
+    /**
+     * requestGenerationが現在の回であれば、その回のハンドルを返します。
+     * Return the handle of requestGeneration if it is the current generation.
+     *
+     * @return ハンドル。現在の回でなければnull。 Handle, or null if not current.
+     */
+    private synchronized IRRequestHandle getRunningHandle(int requestGeneration) {
+        return isCurrent(requestGeneration) ? runningHandle : null;
+    }
+
+    private void requestInternet(final int requestGeneration, boolean clear) {
+        IRRequestHandle handle = getRunningHandle(requestGeneration);
+        if (handle == null) {
+            return;
+        }
+        final HashMap<String, String> params = new HashMap<>(2);
+        if (clear) {
+            params.put("clear", "1");
+        }
+        httpClient.addClientKey(params);
+        handle.run(new Runnable() {
+            @Override
+            public void run() {
+                getInternetMessages(requestGeneration, params);
+            }
+        });
+    }
+
+    private void getInternetMessages(final int requestGeneration, HashMap<String, String> params) {
+        httpClient.getInternetAPIService().getMessages(params, new Callback<IRInternetAPIService.GetMessagesResponse>() {
+            @Override
+            public void success(IRInternetAPIService.GetMessagesResponse getMessagesResponse, Response response) {
+                if (!isCurrent(requestGeneration)) {
+                    // Receiving has been stopped. Discard this response.
+                    return;
+                }
+                synchronized (IRSignalReceiver.this) {
+                    retryDelayMs = MIN_RETRY_DELAY_MS;
+                }
+                // A null response means the long-poll has timed out on the server
+                if (getMessagesResponse != null && getMessagesResponse.message != null && getMessagesResponse.message.data != null) {
+                    deliver(new Capture(getMessagesResponse.deviceid, getMessagesResponse.message, false));
+                }
+                requestInternet(requestGeneration, false);
+            }
+
+            @Override
+            public void failure(RetrofitError error) {
+                if (!isCurrent(requestGeneration)) {
+                    return;
+                }
+                Log.e(TAG, "internet getMessages failure: " + error.getMessage());
+                for (Subscriber subscriber : subscribers) {
+                    subscriber.onError(error);
+                }
+                long delayMs;
+                synchronized (IRSignalReceiver.this) {
+                    delayMs = retryDelayMs;
+                    retryDelayMs = Math.min(MAX_RETRY_DELAY_MS, retryDelayMs * 2);
+                }
+                IRExecutorScheduler.getDefault().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (isCurrent(requestGeneration)) {
+                            requestInternet(requestGeneration, false);
+                        }
+                    }
+                }, delayMs);
+            }
+        });
+    }
+
+    private void scheduleLocalPoll(final int requestGeneration, long delayMs) {
+        IRScheduler.Task task = IRExecutorScheduler.getDefault().schedule(new Runnable() {
+            @Override
+            public void run() {
+                pollLocal(requestGeneration);
+            }
+        }, delayMs);
+        synchronized (this) {
+            if (isCurrent(requestGeneration)) {
+                localPollTask = task;
+                return;
+            }
+        }
+        task.cancel();
+    }
+
+    /**
+     * ローカルネットワーク内に見つかっているすべてのIRKitにGET /messagesを1回ずつ発行し、
+     * すべて終わったら次の回をスケジュールします。
+     * Issue GET /messages once to every IRKit found on the local network, and schedule
+     * the next round when all of them have finished.
+     */
+    private void pollLocal(final int requestGeneration) {
+        boolean isEnabled;
+        final IRRequestHandle handle;
+        synchronized (this) {
+            handle = getRunningHandle(requestGeneration);
+            if (handle == null) {
+                return;
+            }
+            isEnabled = isLocalReceiveEnabled;
+        }
+        ArrayList<IRPeripheral> targets = new ArrayList<>();
+        if (isEnabled) {
+            IRPeripherals peripherals = IRKit.sharedInstance().peripherals;
+            if (peripherals != null) {
+                synchronized (peripherals) {
+                    for (IRPeripheral peripheral : peripherals) {
+                        if (peripheral.isLocalAddressResolved() && peripheral.getDeviceId() != null) {
+                            targets.add(peripheral);
+                        }
+                    }
+                }
+            }
+        }
+        if (targets.isEmpty()) {
+            scheduleLocalPoll(requestGeneration, LOCAL_POLL_INTERVAL_MS);
+            return;
+        }
+        final AtomicInteger remaining = new AtomicInteger(targets.size());
+        for (final IRPeripheral peripheral : targets) {
+            handle.run(new Runnable() {
+                @Override
+                public void run() {
+                    getLocalMessages(requestGeneration, peripheral, remaining);
+                }
+            });
+        }
+    }
+
+    private void getLocalMessages(final int requestGeneration, final IRPeripheral peripheral, final AtomicInteger remaining) {
+        httpClient.getThrottledDeviceAPIService(peripheral).getMessages(new Callback<IRDeviceAPIService.GetMessagesResponse>() {
+            @Override
+            public void success(IRDeviceAPIService.GetMessagesResponse getMessagesResponse, Response response) {
+                if (isCurrent(requestGeneration) && !isStaleLocalRead(peripheral.getDeviceId()) &&
+                        // An empty body means no signal has been received since the last request
+                        getMessagesResponse != null && getMessagesResponse.data != null) {
+                    deliver(new Capture(peripheral.getDeviceId(), getMessagesResponse, true));
+                }
+                onDone();
+            }
+
+            @Override
+            public void failure(RetrofitError error) {
+                Log.w(TAG, "device getMessages failure: message=" + error.getMessage() + " kind=" + error.getKind());
+                onDone();
+            }
+
+            private void onDone() {
+                if (remaining.decrementAndGet() == 0) {
+                    scheduleLocalPoll(requestGeneration, LOCAL_POLL_INTERVAL_MS);
+                }
+            }
+        });
+    }
+
+    private void deliver(Capture capture) {
+        synchronized (this) {
+            if (lastCapture != null && capture.isDuplicateOf(lastCapture)) {
+                return;
+            }
+            lastCapture = capture;
+        }
+        for (Subscriber subscriber : subscribers) {
+            subscriber.onSignalReceived(capture.toSignal());
+        }
+    }
+}